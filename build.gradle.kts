@@ -10,6 +10,23 @@ repositories {
     jcenter()
 }
 
+// Benchmarks and load generator live in their own source sets,
+// so they see the main classes but don't get into the application
+val sourceSets = the<JavaPluginConvention>().sourceSets
+val jmh by sourceSets.creating {
+    compileClasspath += sourceSets["main"].output
+    runtimeClasspath += sourceSets["main"].output
+}
+configurations["jmhCompile"].extendsFrom(configurations["compile"])
+configurations["jmhRuntime"].extendsFrom(configurations["runtime"])
+
+val load by sourceSets.creating {
+    compileClasspath += sourceSets["main"].output
+    runtimeClasspath += sourceSets["main"].output
+}
+configurations["loadCompile"].extendsFrom(configurations["compile"])
+configurations["loadRuntime"].extendsFrom(configurations["runtime"])
+
 dependencies {
     // Annotations for better code documentation
     compile("com.intellij:annotations:12.0")
@@ -22,12 +39,45 @@ dependencies {
 
     // Guava for tests
     testCompile("com.google.guava:guava:23.1-jre")
+
+    // JMH benchmarks, the annotation processor generates the harness
+    "jmhCompile"("org.openjdk.jmh:jmh-core:1.19")
+    "jmhCompile"("org.openjdk.jmh:jmh-generator-annprocess:1.19")
+
+    // Latency histograms of the load generator
+    "loadCompile"("org.hdrhistogram:HdrHistogram:2.1.10")
 }
 
 tasks {
     "test"(Test::class) {
         maxHeapSize = "1g"
     }
+
+    // Runs the benchmarks with the GC profiler, e.g. ./gradlew jmh -Pjmh="DaoBenchmark.get -p engine=lsm -t 4"
+    "jmh"(JavaExec::class) {
+        description = "Runs JMH benchmarks"
+        group = "verification"
+        dependsOn("jmhClasses")
+        classpath = jmh.runtimeClasspath
+        main = "org.openjdk.jmh.Main"
+        args("-prof", "gc", "-rf", "json", "-rff", "$buildDir/jmh-result.json")
+        if (project.hasProperty("jmh")) {
+            args(project.property("jmh").toString().split(" ").filter { it.isNotEmpty() })
+        }
+    }
+
+    // Loads a cluster on localhost, e.g. ./gradlew load -Dload.rate=5000 -Dload.replicas=2/3
+    "load"(JavaExec::class) {
+        description = "Runs the open-loop load generator"
+        group = "verification"
+        dependsOn("loadClasses")
+        classpath = load.runtimeClasspath
+        main = "ru.mail.polis.LoadGenerator"
+        maxHeapSize = "1g"
+        systemProperties(System.getProperties()
+                .filterKeys { it.toString().startsWith("load.") || it.toString().startsWith("kv.") }
+                .mapKeys { it.key.toString() })
+    }
 }
 
 application {
@@ -0,0 +1,104 @@
+package ru.mail.polis;
+
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Requests to a single node over loopback, covering the server, the handlers and the storage.
+ * <p>
+ * The number of client threads is set by JMH {@code -t}, e.g. {@code -t 16}.
+ *
+ * @see ru.mail.polis.storage.DaoBenchmark for the storage alone
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx1g")
+public class HttpBenchmark {
+    private static final int PORT = 8090;
+
+    @Param({"nio", "jdk"})
+    String server;
+
+    @Param({"128", "4096"})
+    int valueSize;
+
+    @Param({"1000", "10000"})
+    int keys;
+
+    private KVService storage;
+    private CloseableHttpClient client;
+    private String endpoint;
+    private byte[] value;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        System.setProperty("kv.server", server);
+        endpoint = "http://localhost:" + PORT;
+        storage = KVServiceFactory.create(PORT, Files.createTempDirectory(), Collections.singleton(endpoint));
+        storage.start();
+        client = HttpClients.custom().setMaxConnTotal(256).setMaxConnPerRoute(256).build();
+
+        value = new byte[valueSize];
+        ThreadLocalRandom.current().nextBytes(value);
+        for (int i = 0; i < keys; i++) {
+            put(i);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        client.close();
+        storage.stop();
+    }
+
+    private String url(final int key) {
+        return endpoint + "/v0/entity?id=key" + key;
+    }
+
+    private int put(final int key) throws IOException {
+        final HttpPut request = new HttpPut(url(key));
+        request.setEntity(new ByteArrayEntity(value));
+        try (CloseableHttpResponse response = client.execute(request)) {
+            EntityUtils.consume(response.getEntity());
+            return response.getStatusLine().getStatusCode();
+        }
+    }
+
+    @Benchmark
+    public byte[] get() throws IOException {
+        try (CloseableHttpResponse response = client.execute(new HttpGet(url(ThreadLocalRandom.current().nextInt(keys))))) {
+            return EntityUtils.toByteArray(response.getEntity());
+        }
+    }
+
+    @Benchmark
+    public int upsert() throws IOException {
+        return put(ThreadLocalRandom.current().nextInt(keys));
+    }
+}
@@ -0,0 +1,113 @@
+package ru.mail.polis.storage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.mail.polis.storage.cache.CachingDao;
+import ru.mail.polis.storage.log.LogStructuredDao;
+import ru.mail.polis.storage.lsm.LsmDao;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Point operations of the storage engines on a preloaded data set.
+ * <p>
+ * The number of threads is set by JMH {@code -t}, e.g. {@code -t 4}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx1g")
+public class DaoBenchmark {
+
+  @Param({"lsm", "log", "file", "cached-lsm"})
+  String engine;
+
+  @Param({"128", "4096", "65536"})
+  int valueSize;
+
+  @Param({"1000", "10000"})
+  int keys;
+
+  private File dir;
+  private DAO dao;
+  private String[] present;
+  private String[] deleted;
+  private byte[] value;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    dir = Files.createTempDirectory("dao-benchmark").toFile();
+    dao = create(engine, dir);
+    value = new byte[valueSize];
+    ThreadLocalRandom.current().nextBytes(value);
+    present = new String[keys];
+    deleted = new String[keys];
+    for (int i = 0; i < keys; i++) {
+      present[i] = "key" + i;
+      deleted[i] = "deleted" + i;
+      dao.upsert(present[i], value);
+      dao.delete(deleted[i]);
+    }
+  }
+
+  private static DAO create(String engine, File dir) throws IOException {
+    switch (engine) {
+      case "lsm":
+        return new LsmDao(dir, GroupCommit.Mode.NONE, 0);
+      case "log":
+        return new LogStructuredDao(dir, GroupCommit.Mode.NONE, 0);
+      case "file":
+        return new StorageDao(dir);
+      case "cached-lsm":
+        return new CachingDao(new LsmDao(dir, GroupCommit.Mode.NONE, 0), 64 * 1024 * 1024);
+      default:
+        throw new IllegalArgumentException("Unknown engine: " + engine);
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    dao.close();
+    try (Stream<Path> files = Files.walk(dir.toPath())) {
+      files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+    }
+  }
+
+  @Benchmark
+  public byte[] get() throws IOException {
+    return dao.get(present[ThreadLocalRandom.current().nextInt(keys)]);
+  }
+
+  /**
+   * Lookup of a deleted key, which takes the tombstone check instead of the value copy
+   */
+  @Benchmark
+  public boolean getDeleted() throws IOException {
+    return dao.getValue(deleted[ThreadLocalRandom.current().nextInt(keys)]).isTombstone();
+  }
+
+  @Benchmark
+  public void upsert() throws IOException {
+    dao.upsert(present[ThreadLocalRandom.current().nextInt(keys)], value);
+  }
+}
@@ -0,0 +1,39 @@
+package ru.mail.polis.utils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing of the query strings every request goes through
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueryParamsBenchmark {
+
+  @Param({"id=5b3c4f1e9a2d7c60", "id=5b3c4f1e9a2d7c60&replicas=2/3"})
+  String query;
+
+  @Benchmark
+  public QueryParams extractQuery() {
+    return QueryParams.extractQuery(query);
+  }
+
+  @Benchmark
+  public Replicas extractReplicas() {
+    return QueryParams.extractReplicas(query);
+  }
+}
@@ -0,0 +1,341 @@
+package ru.mail.polis;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Open-loop load generator for a storage cluster on localhost.
+ * <p>
+ * Requests are issued at a constant rate however fast the cluster answers, and the latency of a request
+ * is counted from the moment it was due rather than sent, so a stalled cluster shows up in the percentiles
+ * instead of silently lowering the load (coordinated omission). Settings are system properties:
+ * <ul>
+ * <li>{@code load.rate} -- requests per second, 1000 by default</li>
+ * <li>{@code load.duration} and {@code load.warmup} -- seconds of measured and discarded load, 30 and 5 by default</li>
+ * <li>{@code load.mix} -- shares of the operations, {@code get:80,put:15,delete:5} by default</li>
+ * <li>{@code load.keys} -- number of keys, 100000 by default, written once before the run</li>
+ * <li>{@code load.zipf} -- Zipfian skew of the keys, 0.99 by default, 0 for uniform keys</li>
+ * <li>{@code load.valueSize} -- bytes per value, 1024 by default</li>
+ * <li>{@code load.replicas} -- {@code ack/from} of every request, the cluster default if not set</li>
+ * <li>{@code load.connections} -- requests in flight at most, 128 by default</li>
+ * <li>{@code load.endpoints} -- comma-separated nodes to send the requests to in turn,
+ * by default 3 nodes on 8080-8082 are started in-process</li>
+ * <li>{@code load.histogram} -- file to save the latency distributions to in HdrHistogram {@code .hgrm} format</li>
+ * </ul>
+ *
+ * @see ZipfianKeys
+ */
+public final class LoadGenerator {
+    private static final int[] PORTS = {8080, 8081, 8082};
+    private static final long MAX_LATENCY_MICROS = TimeUnit.MINUTES.toMicros(10);
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9, 99.99};
+
+    private final List<String> endpoints;
+    private final String replicas;
+    private final ZipfianKeys keys;
+    private final byte[] value;
+    private final CloseableHttpClient client;
+    private final ExecutorService workers;
+    private final AtomicLong backlog = new AtomicLong();
+    private final AtomicLong next = new AtomicLong();
+    private final Map<Operation, Stats> stats = new TreeMap<>();
+    private volatile long measureFromNanos = Long.MAX_VALUE;
+
+    enum Operation {
+        GET, PUT, DELETE
+    }
+
+    private LoadGenerator(
+            @NotNull final List<String> endpoints,
+            final String replicas,
+            @NotNull final ZipfianKeys keys,
+            final int valueSize,
+            final int connections) {
+        this.endpoints = endpoints;
+        this.replicas = replicas;
+        this.keys = keys;
+        this.value = new byte[valueSize];
+        ThreadLocalRandom.current().nextBytes(value);
+        final RequestConfig config = RequestConfig.custom()
+                .setConnectTimeout(1000)
+                .setSocketTimeout(30_000)
+                .build();
+        this.client = HttpClients.custom()
+                .setDefaultRequestConfig(config)
+                .setMaxConnTotal(connections)
+                .setMaxConnPerRoute(connections)
+                .build();
+        this.workers = Executors.newFixedThreadPool(connections, r -> {
+            final Thread thread = new Thread(r, "load-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (final Operation operation : Operation.values()) {
+            stats.put(operation, new Stats());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        final int rate = Integer.getInteger("load.rate", 1000);
+        final int duration = Integer.getInteger("load.duration", 30);
+        final int warmup = Integer.getInteger("load.warmup", 5);
+        final Map<Operation, Integer> mix = parseMix(System.getProperty("load.mix", "get:80,put:15,delete:5"));
+        final int keyCount = Integer.getInteger("load.keys", 100_000);
+        final double zipf = Double.parseDouble(System.getProperty("load.zipf", "0.99"));
+        final int valueSize = Integer.getInteger("load.valueSize", 1024);
+        final String replicas = System.getProperty("load.replicas");
+        final int connections = Integer.getInteger("load.connections", 128);
+        final String histogram = System.getProperty("load.histogram");
+        if (rate <= 0) {
+            throw new IllegalArgumentException("Rate should be positive");
+        }
+
+        final List<KVService> nodes = new ArrayList<>();
+        final List<String> endpoints = new ArrayList<>();
+        final String external = System.getProperty("load.endpoints");
+        if (external != null) {
+            endpoints.addAll(Arrays.asList(external.split(",")));
+        } else {
+            final Set<String> topology = new LinkedHashSet<>();
+            for (final int port : PORTS) {
+                topology.add("http://localhost:" + port);
+            }
+            for (final int port : PORTS) {
+                final KVService node = KVServiceFactory.create(port, Files.createTempDirectory(), topology);
+                node.start();
+                nodes.add(node);
+            }
+            endpoints.addAll(topology);
+        }
+
+        final LoadGenerator load =
+                new LoadGenerator(endpoints, replicas, new ZipfianKeys(keyCount, zipf), valueSize, connections);
+        try {
+            System.out.println("Writing " + keyCount + " keys of " + valueSize + " bytes");
+            load.preload(keyCount);
+
+            System.out.println("Running " + rate + " requests/s of " + mix + " for " + warmup + "+" + duration + " s"
+                    + (replicas == null ? "" : " with replicas=" + replicas));
+            load.run(rate, mix, warmup, duration);
+            load.report(System.out, duration);
+            if (histogram != null) {
+                try (PrintStream out = new PrintStream(new FileOutputStream(new File(histogram)))) {
+                    load.saveHistograms(out);
+                }
+            }
+        } finally {
+            load.close();
+            for (final KVService node : nodes) {
+                node.stop();
+            }
+        }
+    }
+
+    @NotNull
+    private static Map<Operation, Integer> parseMix(@NotNull final String mix) {
+        final Map<Operation, Integer> shares = new TreeMap<>();
+        for (final String share : mix.split(",")) {
+            final String[] parts = share.split(":");
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("Mix should have format get:80,put:15,delete:5");
+            }
+            shares.put(Operation.valueOf(parts[0].trim().toUpperCase()), Integer.parseInt(parts[1].trim()));
+        }
+        if (shares.values().stream().mapToInt(Integer::intValue).sum() <= 0) {
+            throw new IllegalArgumentException("Mix should have a positive share");
+        }
+        return shares;
+    }
+
+    /**
+     * Writes every key once, as fast as the cluster takes it
+     */
+    private void preload(final int keyCount) throws InterruptedException {
+        final Stats preload = new Stats();
+        final long start = System.nanoTime();
+        final List<Future<?>> writes = new ArrayList<>(keyCount);
+        for (int rank = 0; rank < keyCount; rank++) {
+            final String key = ZipfianKeys.keyOf(rank);
+            writes.add(workers.submit(() -> {
+                final long sent = System.nanoTime();
+                preload.record(execute(Operation.PUT, key), sent);
+            }));
+        }
+        for (final Future<?> write : writes) {
+            try {
+                write.get();
+            } catch (ExecutionException e) {
+                e.printStackTrace();
+            }
+        }
+        final long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        System.out.println("Preloaded in " + millis + " ms, statuses " + preload.statuses);
+    }
+
+    /**
+     * Schedules the requests at fixed intervals from a single thread, falling behind the schedule never skips
+     * a request: it is sent at once and charged with the delay
+     */
+    private void run(
+            final int rate,
+            @NotNull final Map<Operation, Integer> mix,
+            final int warmup,
+            final int duration) throws InterruptedException {
+        final Operation[] operations = new Operation[mix.values().stream().mapToInt(Integer::intValue).sum()];
+        int filled = 0;
+        for (final Map.Entry<Operation, Integer> share : mix.entrySet()) {
+            Arrays.fill(operations, filled, filled + share.getValue(), share.getKey());
+            filled += share.getValue();
+        }
+
+        final long interval = TimeUnit.SECONDS.toNanos(1) / rate;
+        final long start = System.nanoTime();
+        measureFromNanos = start + TimeUnit.SECONDS.toNanos(warmup);
+        final long end = measureFromNanos + TimeUnit.SECONDS.toNanos(duration);
+        long maxBacklog = 0;
+        for (long due = start; due < end; due += interval) {
+            long now;
+            while ((now = System.nanoTime()) < due) {
+                LockSupport.parkNanos(due - now);
+            }
+
+            final Operation operation = operations[ThreadLocalRandom.current().nextInt(operations.length)];
+            final String key = keys.next();
+            final long scheduled = due;
+            maxBacklog = Math.max(maxBacklog, backlog.incrementAndGet());
+            workers.execute(() -> {
+                backlog.decrementAndGet();
+                final int status = execute(operation, key);
+                if (scheduled >= measureFromNanos) {
+                    stats.get(operation).record(status, scheduled);
+                }
+            });
+        }
+
+        // Requests still queued are waited for, they are part of the load
+        workers.shutdown();
+        workers.awaitTermination(1, TimeUnit.MINUTES);
+        System.out.println("Max requests waiting for a connection: " + maxBacklog);
+    }
+
+    /**
+     * @return status of the response, 0 if it failed
+     */
+    private int execute(
+            @NotNull final Operation operation,
+            @NotNull final String key) {
+        final String endpoint = endpoints.get((int) (next.getAndIncrement() % endpoints.size()));
+        final String url = endpoint + "/v0/entity?id=" + key + (replicas == null ? "" : "&replicas=" + replicas);
+        final HttpUriRequest request;
+        switch (operation) {
+            case GET:
+                request = new HttpGet(url);
+                break;
+            case PUT:
+                final HttpPut put = new HttpPut(url);
+                put.setEntity(new ByteArrayEntity(value));
+                request = put;
+                break;
+            case DELETE:
+                request = new HttpDelete(url);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown operation: " + operation);
+        }
+
+        try (CloseableHttpResponse response = client.execute(request)) {
+            EntityUtils.consume(response.getEntity());
+            return response.getStatusLine().getStatusCode();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private void report(
+            @NotNull final PrintStream out,
+            final int duration) {
+        out.println();
+        out.printf("%-7s %9s %9s %10s", "op", "count", "req/s", "mean, ms");
+        for (final double percentile : PERCENTILES) {
+            out.printf(" %9s", "p" + percentile);
+        }
+        out.printf(" %9s  %s%n", "max", "statuses (0 is an I/O error)");
+        for (final Map.Entry<Operation, Stats> entry : stats.entrySet()) {
+            final Histogram latency = entry.getValue().latency;
+            if (latency.getTotalCount() == 0) {
+                continue;
+            }
+
+            out.printf("%-7s %9d %9d %10.2f",
+                    entry.getKey(), latency.getTotalCount(), latency.getTotalCount() / duration, latency.getMean() / 1000);
+            for (final double percentile : PERCENTILES) {
+                out.printf(" %9.2f", latency.getValueAtPercentile(percentile) / 1000.0);
+            }
+            out.printf(" %9.2f  %s%n", latency.getMaxValue() / 1000.0, entry.getValue().statuses);
+        }
+    }
+
+    private void saveHistograms(@NotNull final PrintStream out) {
+        for (final Map.Entry<Operation, Stats> entry : stats.entrySet()) {
+            out.println("# " + entry.getKey() + ", milliseconds");
+            entry.getValue().latency.outputPercentileDistribution(out, 1000.0);
+        }
+    }
+
+    private void close() throws IOException {
+        workers.shutdownNow();
+        client.close();
+    }
+
+    /**
+     * Latencies in microseconds and response counts by status of an operation
+     */
+    private static final class Stats {
+        final Histogram latency = new ConcurrentHistogram(MAX_LATENCY_MICROS, 3);
+        final Map<Integer, LongAdder> statuses = new ConcurrentHashMap<>();
+
+        /**
+         * @param dueNanos moment the request was due, the latency is counted from
+         */
+        void record(
+                final int status,
+                final long dueNanos) {
+            final long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - dueNanos);
+            latency.recordValue(Math.min(micros, MAX_LATENCY_MICROS));
+            statuses.computeIfAbsent(status, s -> new LongAdder()).increment();
+        }
+    }
+}
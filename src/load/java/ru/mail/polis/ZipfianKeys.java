@@ -0,0 +1,91 @@
+package ru.mail.polis;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Keys of a fixed key space drawn with Zipfian popularity, as in YCSB (Gray et al., "Quickly generating
+ * billion-record synthetic databases").
+ * <p>
+ * Ranks are scrambled before they become keys, so the hot keys are spread over the ring
+ * instead of landing next to each other.
+ */
+final class ZipfianKeys {
+    private final int count;
+    private final double theta;
+    private final double zetaN;
+    private final double alpha;
+    private final double eta;
+
+    /**
+     * @param count number of keys
+     * @param theta skew in {@code [0, 1)}, 0 for uniform keys
+     */
+    ZipfianKeys(
+            final int count,
+            final double theta) {
+        if (count <= 0) {
+            throw new IllegalArgumentException("Key count should be positive");
+        }
+        if (theta < 0 || theta >= 1) {
+            throw new IllegalArgumentException("Zipfian skew should be in [0, 1)");
+        }
+
+        this.count = count;
+        this.theta = theta;
+        this.zetaN = zeta(count, theta);
+        this.alpha = 1 / (1 - theta);
+        this.eta = (1 - Math.pow(2.0 / count, 1 - theta)) / (1 - zeta(2, theta) / zetaN);
+    }
+
+    private static double zeta(
+            final int n,
+            final double theta) {
+        double sum = 0;
+        for (int i = 1; i <= n; i++) {
+            sum += 1 / Math.pow(i, theta);
+        }
+        return sum;
+    }
+
+    /**
+     * @return rank of the next key, 0 being the most popular
+     */
+    int nextRank() {
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (theta == 0) {
+            return random.nextInt(count);
+        }
+
+        final double u = random.nextDouble();
+        final double uz = u * zetaN;
+        if (uz < 1) {
+            return 0;
+        }
+        if (uz < 1 + Math.pow(0.5, theta)) {
+            return 1;
+        }
+        return Math.min(count - 1, (int) (count * Math.pow(eta * u - eta + 1, alpha)));
+    }
+
+    @NotNull
+    String next() {
+        return keyOf(nextRank());
+    }
+
+    /**
+     * @return key of the rank, the same for every run
+     */
+    @NotNull
+    static String keyOf(final int rank) {
+        // Finalizer of MurmurHash3, a bijection of longs
+        long h = rank;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return "k" + Long.toHexString(h);
+    }
+}
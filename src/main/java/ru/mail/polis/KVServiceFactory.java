@@ -1,11 +1,27 @@
 package ru.mail.polis;
 
+import com.sun.net.httpserver.HttpServer;
 import org.jetbrains.annotations.NotNull;
+import ru.mail.polis.http.NioHttpServer;
+import ru.mail.polis.metrics.Metrics;
+import ru.mail.polis.storage.AdmissionControl;
+import ru.mail.polis.storage.DAO;
+import ru.mail.polis.storage.GroupCommit;
+import ru.mail.polis.storage.MeteredDao;
 import ru.mail.polis.storage.StorageDao;
 import ru.mail.polis.storage.StorageService;
+import ru.mail.polis.storage.Workers;
+import ru.mail.polis.storage.cache.CachingDao;
+import ru.mail.polis.storage.interaction.ClusterClient;
+import ru.mail.polis.storage.interaction.Hedging;
+import ru.mail.polis.storage.interaction.HintedHandoff;
+import ru.mail.polis.storage.interaction.ReadRepair;
+import ru.mail.polis.storage.log.LogStructuredDao;
+import ru.mail.polis.storage.lsm.LsmDao;
 
 import java.io.File;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.util.Set;
 
 /**
@@ -15,6 +31,28 @@ import java.util.Set;
  */
 final class KVServiceFactory {
     private static final long MAX_HEAP = 1024 * 1024 * 1024;
+    private static final String STORAGE_PROPERTY = "kv.storage";
+    private static final String SYNC_PROPERTY = "kv.sync";
+    private static final String SYNC_PERIOD_PROPERTY = "kv.sync.period";
+    private static final String SERVER_PROPERTY = "kv.server";
+    private static final String SERVER_MAX_BODY_PROPERTY = "kv.server.maxBody";
+    private static final int BACKLOG = 1024;
+    private static final String CLIENT_CONNECTIONS_PROPERTY = "kv.client.connections";
+    private static final String CLIENT_CONNECT_TIMEOUT_PROPERTY = "kv.client.connectTimeout";
+    private static final String CLIENT_SOCKET_TIMEOUT_PROPERTY = "kv.client.socketTimeout";
+    private static final String HINTS_RATE_PROPERTY = "kv.hints.rate";
+    private static final String READ_REPAIR_CHANCE_PROPERTY = "kv.readRepair.chance";
+    private static final String GC_GRACE_PROPERTY = "kv.gc.grace";
+    private static final String GC_RATE_PROPERTY = "kv.gc.rate";
+    private static final String CACHE_PROPERTY = "kv.cache";
+    private static final long DEFAULT_CACHE = 64 * 1024 * 1024;
+    private static final String EXECUTOR_PROPERTY = "kv.executor";
+    private static final String EXECUTOR_LIMIT_PROPERTY = "kv.executor.limit";
+    private static final int DEFAULT_VIRTUAL_LIMIT = 256;
+    private static final String HEDGE_PERCENTILE_PROPERTY = "kv.hedge.percentile";
+    private static final String HEDGE_BUDGET_PROPERTY = "kv.hedge.budget";
+    private static final String ADMISSION_PROPERTY = "kv.admission";
+    private static final String ADMISSION_MIN_LIMIT_PROPERTY = "kv.admission.minLimit";
 
     private KVServiceFactory() {
         // Not supposed to be instantiated
@@ -22,6 +60,15 @@ final class KVServiceFactory {
 
     /**
      * Construct a storage instance.
+     * <p>
+     * Writes missed by the other nodes are kept as hints and replayed at most {@code kv.hints.rate}
+     * per second (500 by default). Replicas a read found stale are repaired in background; a
+     * {@code kv.readRepair.chance} fraction of reads (0 by default) also checks the replicas answered after
+     * {@code ack}.
+     * <p>
+     * A read asks {@code ack} replicas first and one more for a replica answering later than
+     * the {@code kv.hedge.percentile} (95 by default) of its latencies, with at most {@code kv.hedge.budget}
+     * extra requests per read (0.05 by default, 0 asks all the {@code from} replicas at once).
      *
      * @param port     port to bind HTTP server to
      * @param data     local disk folder to persist the data to
@@ -49,7 +96,168 @@ final class KVServiceFactory {
             throw new IllegalArgumentException("Path is not a directory: " + data);
         }
 
-        return new StorageService(new StorageDao(data), topology,port);
+        final Metrics metrics = new Metrics();
+        final ClusterClient client = createClient(topology, metrics);
+        final HintedHandoff hints = new HintedHandoff(data, client, Integer.getInteger(HINTS_RATE_PROPERTY, 500), metrics);
+        final Workers workers = createWorkers();
+        return new StorageService(
+                createDao(data, metrics),
+                topology,
+                createServer(port),
+                client,
+                hints,
+                new ReadRepair(client, hints, Double.parseDouble(System.getProperty(READ_REPAIR_CHANCE_PROPERTY, "0"))),
+                new Hedging(
+                        Double.parseDouble(System.getProperty(HEDGE_PERCENTILE_PROPERTY, "95")),
+                        Double.parseDouble(System.getProperty(HEDGE_BUDGET_PROPERTY, "0.05")),
+                        metrics),
+                workers,
+                createAdmission(workers),
+                metrics);
+    }
+
+    /**
+     * Construct the threads running request handlers chosen by {@code kv.executor} system property:
+     * a fixed {@code pool} (default) of {@code kv.executor.limit} threads, twice the cores but at least 8 by default,
+     * or a {@code virtual} thread per request with up to {@code kv.executor.limit} requests (256 by default)
+     * handled at once.
+     * <p>
+     * Virtual threads need Java 21, on older JVMs the pool of the same size is used instead.
+     */
+    @NotNull
+    private static Workers createWorkers() {
+        final String executor = System.getProperty(EXECUTOR_PROPERTY, "pool");
+        switch (executor) {
+            case "pool":
+                return Workers.pool(Integer.getInteger(EXECUTOR_LIMIT_PROPERTY, Workers.DEFAULT_THREADS));
+            case "virtual":
+                final int limit = Integer.getInteger(EXECUTOR_LIMIT_PROPERTY, DEFAULT_VIRTUAL_LIMIT);
+                try {
+                    return Workers.virtual(limit);
+                } catch (UnsupportedOperationException e) {
+                    e.printStackTrace();
+                    return Workers.pool(limit);
+                }
+            default:
+                throw new IllegalArgumentException("Unknown executor: " + executor);
+        }
+    }
 
+    /**
+     * Construct a client for inter-node requests keeping up to {@code kv.client.connections} connections
+     * to every node (16 by default) with {@code kv.client.connectTimeout} (1000 ms by default)
+     * and {@code kv.client.socketTimeout} (5000 ms by default).
+     */
+    @NotNull
+    private static ClusterClient createClient(
+            @NotNull final Set<String> topology,
+            @NotNull final Metrics metrics) {
+        return new ClusterClient(
+                topology.size(),
+                Integer.getInteger(CLIENT_CONNECTIONS_PROPERTY, 16),
+                Integer.getInteger(CLIENT_CONNECT_TIMEOUT_PROPERTY, 1000),
+                Integer.getInteger(CLIENT_SOCKET_TIMEOUT_PROPERTY, 5000),
+                metrics);
+    }
+
+    /**
+     * Construct admission control chosen by {@code kv.admission} system property: {@code gradient} (default)
+     * limits the requests handled at once between {@code kv.admission.minLimit} (4 by default) and the capacity
+     * of the workers depending on latency, {@code none} admits everything.
+     */
+    @NotNull
+    private static AdmissionControl createAdmission(@NotNull final Workers workers) {
+        final String admission = System.getProperty(ADMISSION_PROPERTY, "gradient");
+        switch (admission) {
+            case "gradient":
+                final int minLimit = Math.min(workers.capacity(), Integer.getInteger(ADMISSION_MIN_LIMIT_PROPERTY, 4));
+                return new AdmissionControl(minLimit, workers.capacity());
+            case "none":
+                return AdmissionControl.unlimited();
+            default:
+                throw new IllegalArgumentException("Unknown admission control: " + admission);
+        }
+    }
+
+    /**
+     * Construct an HTTP server bound to the port chosen by {@code kv.server} system property:
+     * non-blocking {@code nio} (default) or {@code jdk}.
+     * The {@code nio} one answers 413 to a body longer than {@code kv.server.maxBody} bytes, 1 GB by default.
+     */
+    @NotNull
+    private static HttpServer createServer(final int port) throws IOException {
+        final String server = System.getProperty(SERVER_PROPERTY, "nio");
+        switch (server) {
+            case "nio":
+                final NioHttpServer nio = new NioHttpServer(new InetSocketAddress(port), BACKLOG);
+                nio.setMaxBodyLength(Long.getLong(SERVER_MAX_BODY_PROPERTY, NioHttpServer.DEFAULT_MAX_BODY_LENGTH));
+                return nio;
+            case "jdk":
+                return HttpServer.create(new InetSocketAddress(port), BACKLOG);
+            default:
+                throw new IllegalArgumentException("Unknown HTTP server: " + server);
+        }
+    }
+
+    /**
+     * Construct a storage engine chosen by {@code kv.storage} system property:
+     * {@code lsm} (default), {@code log} or {@code file}.
+     * <p>
+     * Durability of log-based engines is set by {@code kv.sync} property: {@code none}, {@code periodic}
+     * (every {@code kv.sync.period} ms, 100 by default) or {@code batch} (default).
+     * <p>
+     * Tombstones are purged once older than {@code kv.gc.grace} ms, a day by default, by compaction of {@code lsm}
+     * and by a background sweep of {@code file} checking at most {@code kv.gc.rate} files per second
+     * (1000 by default).
+     * <p>
+     * The engine is wrapped into an off-heap value cache of {@code kv.cache} bytes, 64 MB by default, 0 disables it.
+     * Operations of the storage as a whole are timed in the metrics. The bytes {@code log} cut off on recovery
+     * are exported as well and reported when there are any.
+     */
+    @NotNull
+    private static DAO createDao(
+            @NotNull final File data,
+            @NotNull final Metrics metrics) throws IOException {
+        final DAO dao = createEngine(data);
+        if (dao instanceof LsmDao) {
+            metrics.gauge("kv_lsm_filter_false_positive_rate", "Share of table lookups passed by Bloom filters in vain",
+                    ((LsmDao) dao)::filterFalsePositiveRate);
+        }
+        if (dao instanceof LogStructuredDao) {
+            final long truncated = ((LogStructuredDao) dao).truncatedOnRecovery();
+            metrics.gauge("kv_log_truncated_on_recovery_bytes", "Bytes of torn or corrupted records cut off on startup",
+                    () -> truncated);
+            if (truncated > 0) {
+                new IOException("Recovery cut off " + truncated + " bytes of torn or corrupted records in " + data)
+                        .printStackTrace();
+            }
+        }
+
+        final long cache = Long.getLong(CACHE_PROPERTY, DEFAULT_CACHE);
+        if (cache <= 0) {
+            return new MeteredDao(dao, metrics);
+        }
+
+        final CachingDao cached = new CachingDao(dao, cache);
+        metrics.gauge("kv_cache_hit_rate", "Share of reads served from the cache", cached::hitRate);
+        return new MeteredDao(cached, metrics);
+    }
+
+    @NotNull
+    private static DAO createEngine(@NotNull final File data) throws IOException {
+        final String storage = System.getProperty(STORAGE_PROPERTY, "lsm");
+        final GroupCommit.Mode sync = GroupCommit.Mode.valueOf(System.getProperty(SYNC_PROPERTY, "batch").toUpperCase());
+        final long syncPeriod = Long.getLong(SYNC_PERIOD_PROPERTY, 100);
+        final long grace = Long.getLong(GC_GRACE_PROPERTY, StorageDao.DEFAULT_GRACE_MILLIS);
+        switch (storage) {
+            case "lsm":
+                return new LsmDao(data, sync, syncPeriod, grace);
+            case "log":
+                return new LogStructuredDao(data, sync, syncPeriod);
+            case "file":
+                return new StorageDao(data, grace, Integer.getInteger(GC_RATE_PROPERTY, StorageDao.DEFAULT_GC_RATE));
+            default:
+                throw new IllegalArgumentException("Unknown storage engine: " + storage);
+        }
     }
 }
@@ -0,0 +1,487 @@
+package ru.mail.polis.http;
+
+import com.sun.net.httpserver.Headers;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.io.InterruptedIOException;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * HTTP/1.1 connection served by an {@link EventLoop}.
+ * <p>
+ * Requests are parsed from the read buffer one at a time. While a request is being handled the connection
+ * stops reading, so pipelined requests wait in the buffer and responses go out in the request order.
+ * Once the response is written the connection either closes or goes on with the next buffered request.
+ * <p>
+ * A body longer than {@link #MAX_BUFFERED_BODY} is not buffered: the request is dispatched as soon as its head
+ * is parsed and the body is streamed to the handler through {@link RequestBody}. A response may be sent in parts
+ * as well, the handler sending them waits while more than {@link #MAX_QUEUED} bytes are not written to the socket.
+ * So a large value passes through the connection in bounded memory.
+ * <p>
+ * A connection which has neither read nor written anything for the idle timeout of the server is closed,
+ * unless it waits for its handler rather than for the client.
+ */
+final class Connection implements EventLoop.Handler {
+
+  private static final int BUFFER_SIZE = 8 * 1024;
+  private static final int MAX_HEAD_SIZE = 64 * 1024;
+  private static final byte[] HEAD_END = {'\r', '\n', '\r', '\n'};
+  private static final int MAX_BUFFERED_BODY = 1024 * 1024;
+  static final int MAX_QUEUED = 1024 * 1024;
+
+  private final NioHttpServer server;
+  private final EventLoop loop;
+  private final SocketChannel channel;
+  private SelectionKey key;
+
+  private ByteBuffer in = ByteBuffer.allocate(BUFFER_SIZE);
+  private int scanned;
+
+  private Request request;
+  private boolean busy;
+
+  private RequestBody body;
+  private long bodyRemaining;
+  private boolean readPaused;
+
+  private final ArrayDeque<ByteBuffer> out = new ArrayDeque<>();
+  private boolean responseEnd;
+  private boolean closeAfterWrite;
+  private long lastProgress = System.nanoTime();
+
+  /**
+   * Guards the count of the bytes handed to the loop and not written yet.
+   * Not a monitor, so a virtual thread waiting for the window doesn't pin its carrier.
+   */
+  private final ReentrantLock window = new ReentrantLock();
+  private final Condition windowOpen = window.newCondition();
+  private long queued;
+
+  Connection(@NotNull NioHttpServer server, @NotNull EventLoop loop, @NotNull SocketChannel channel) {
+    this.server = server;
+    this.loop = loop;
+    this.channel = channel;
+  }
+
+  @NotNull
+  SocketChannel channel() {
+    return channel;
+  }
+
+  void register() {
+    try {
+      key = loop.register(channel, SelectionKey.OP_READ, this);
+    }
+    catch (IOException e) {
+      close();
+    }
+  }
+
+  @Override
+  public void ready(@NotNull SelectionKey key) throws IOException {
+    if (key.isWritable()) {
+      write();
+    }
+    else if (key.isReadable()) {
+      read();
+    }
+  }
+
+  private void read() throws IOException {
+    if (!in.hasRemaining()) {
+      grow(in.capacity() * 2);
+    }
+    int read = channel.read(in);
+    if (read < 0) {
+      close();
+      return;
+    }
+    if (read > 0) {
+      lastProgress = System.nanoTime();
+    }
+    if (body != null) {
+      feed();
+      return;
+    }
+    process();
+  }
+
+  /**
+   * Hands the body bytes read so far to the handler
+   */
+  private void feed() {
+    in.flip();
+    int length = (int) Math.min(in.remaining(), bodyRemaining);
+    if (length > 0) {
+      ByteBuffer chunk = ByteBuffer.allocate(length);
+      ByteBuffer source = in.duplicate();
+      source.limit(source.position() + length);
+      chunk.put(source).flip();
+      in.position(in.position() + length);
+      bodyRemaining -= length;
+      readPaused = !body.offer(chunk);
+    }
+    in.compact();
+    if (bodyRemaining == 0) {
+      body = null;
+    }
+    updateInterest();
+  }
+
+  /**
+   * Resumes reading the body from any thread
+   */
+  void resumeLater() {
+    loop.execute(() -> {
+      readPaused = false;
+      if (channel.isOpen()) {
+        updateInterest();
+      }
+    });
+  }
+
+  private void updateInterest() {
+    int ops = out.isEmpty() ? 0 : SelectionKey.OP_WRITE;
+    if (body != null ? !readPaused : !busy) {
+      ops |= SelectionKey.OP_READ;
+    }
+    key.interestOps(ops);
+  }
+
+  /**
+   * Parses and dispatches the next buffered request, if it has fully arrived
+   */
+  private void process() throws IOException {
+    if (busy)
+      return;
+
+    if (request == null) {
+      int headLength = headLength();
+      if (headLength < 0) {
+        if (in.position() >= MAX_HEAD_SIZE) {
+          reject(431, "Request Header Fields Too Large");
+          return;
+        }
+        updateInterest();
+        return;
+      }
+
+      try {
+        request = parse(headLength);
+      }
+      catch (PayloadTooLargeException e) {
+        reject(413, "Payload Too Large");
+        return;
+      }
+      catch (IllegalArgumentException | URISyntaxException e) {
+        reject(400, "Bad Request");
+        return;
+      }
+      if (request.headers.containsKey("Transfer-Encoding")) {
+        reject(501, "Not Implemented");
+        return;
+      }
+    }
+
+    long length = request.headLength + request.bodyLength;
+    if (in.position() < length) {
+      // Without an executor the handler runs on the loop and can't wait for the body
+      if (request.bodyLength > MAX_BUFFERED_BODY && server.getExecutor() != null) {
+        stream();
+        return;
+      }
+      // Not longer than the buffered body limit checked by parse
+      if (in.capacity() < length) {
+        grow((int) length);
+      }
+      updateInterest();
+      return;
+    }
+
+    byte[] data = new byte[(int) request.bodyLength];
+    in.flip();
+    in.position(request.headLength);
+    in.get(data);
+    in.compact();
+    scanned = 0;
+
+    NioHttpExchange exchange = new NioHttpExchange(this, request, new ByteArrayInputStream(data));
+    request = null;
+    busy = true;
+    updateInterest();
+    server.dispatch(exchange);
+  }
+
+  /**
+   * Dispatches the request with the body to be received while the handler runs
+   */
+  private void stream() {
+    in.flip();
+    in.position(request.headLength);
+    in.compact();
+    scanned = 0;
+
+    body = new RequestBody(this, request.bodyLength);
+    bodyRemaining = request.bodyLength;
+    NioHttpExchange exchange = new NioHttpExchange(this, request, body);
+    request = null;
+    busy = true;
+    feed();
+    server.dispatch(exchange);
+  }
+
+  private int headLength() {
+    int end = in.position();
+    for (int i = Math.max(0, scanned - HEAD_END.length + 1); i <= end - HEAD_END.length; i++) {
+      if (in.get(i) == '\r' && in.get(i + 1) == '\n' && in.get(i + 2) == '\r' && in.get(i + 3) == '\n')
+        return i + HEAD_END.length;
+    }
+    scanned = end;
+    return -1;
+  }
+
+  private Request parse(int headLength) throws URISyntaxException {
+    String head = new String(in.array(), 0, headLength - HEAD_END.length, StandardCharsets.ISO_8859_1);
+    String[] lines = head.split("\r\n");
+    String[] requestLine = lines[0].split(" ");
+    if (requestLine.length != 3)
+      throw new IllegalArgumentException("Malformed request line: " + lines[0]);
+
+    Headers headers = new Headers();
+    for (int i = 1; i < lines.length; i++) {
+      int colon = lines[i].indexOf(':');
+      if (colon <= 0)
+        throw new IllegalArgumentException("Malformed header: " + lines[i]);
+
+      headers.add(lines[i].substring(0, colon).trim(), lines[i].substring(colon + 1).trim());
+    }
+
+    String contentLength = headers.getFirst("Content-Length");
+    long bodyLength = contentLength == null ? 0 : Long.parseLong(contentLength);
+    if (bodyLength < 0)
+      throw new IllegalArgumentException("Negative Content-Length");
+
+    // A body handled on the loop is buffered whole, so it can't be larger than a buffered one
+    long maxBodyLength = server.getExecutor() == null
+      ? Math.min(MAX_BUFFERED_BODY, server.maxBodyLength())
+      : server.maxBodyLength();
+    if (bodyLength > maxBodyLength)
+      throw new PayloadTooLargeException();
+
+    return new Request(requestLine[0], new URI(requestLine[1]), requestLine[2], headers, headLength, bodyLength);
+  }
+
+  private void grow(int capacity) {
+    ByteBuffer grown = ByteBuffer.allocate(capacity);
+    in.flip();
+    grown.put(in);
+    in = grown;
+  }
+
+  private void reject(int code, String reason) throws IOException {
+    ByteBuffer[] response = {
+      ByteBuffer.wrap(("HTTP/1.1 " + code + " " + reason + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n")
+        .getBytes(StandardCharsets.ISO_8859_1))
+    };
+    enqueue(response);
+    send(response, true, true);
+  }
+
+  /**
+   * Sends the whole response from any thread
+   */
+  void sendLater(@NotNull ByteBuffer[] response, boolean close) {
+    sendLater(response, true, close);
+  }
+
+  /**
+   * Sends a part of the response from any thread. The parts go out in the order they are sent.
+   *
+   * @param last  true if the part ends the response
+   * @param close true if the connection should be closed after the response
+   */
+  void sendLater(@NotNull ByteBuffer[] part, boolean last, boolean close) {
+    enqueue(part);
+    loop.execute(() -> {
+      try {
+        send(part, last, close);
+      }
+      catch (IOException e) {
+        close();
+      }
+    });
+  }
+
+  private void enqueue(ByteBuffer[] part) {
+    long size = 0;
+    for (ByteBuffer buffer : part) {
+      size += buffer.remaining();
+    }
+    window.lock();
+    try {
+      queued += size;
+    }
+    finally {
+      window.unlock();
+    }
+  }
+
+  /**
+   * Blocks the calling thread while too many bytes of the response are waiting to be written.
+   * Must not be called on the loop thread.
+   */
+  void awaitWindow() throws IOException {
+    window.lock();
+    try {
+      while (queued > MAX_QUEUED) {
+        if (!channel.isOpen())
+          throw new IOException("Connection closed");
+
+        windowOpen.await();
+      }
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted sending the response");
+    }
+    finally {
+      window.unlock();
+    }
+  }
+
+  /**
+   * @return true if the caller can't block waiting for the connection
+   */
+  boolean inLoop() {
+    return loop.inLoop();
+  }
+
+  /**
+   * Closes the connection from any thread
+   */
+  void closeLater() {
+    loop.execute(this::close);
+  }
+
+  private void send(ByteBuffer[] part, boolean last, boolean close) throws IOException {
+    if (!channel.isOpen())
+      return;
+
+    // The client is waited for from now on, not from the time the handler started
+    lastProgress = System.nanoTime();
+
+    Collections.addAll(out, part);
+    if (last) {
+      responseEnd = true;
+      closeAfterWrite = close;
+    }
+    write();
+  }
+
+  private void write() throws IOException {
+    long written = channel.write(out.toArray(new ByteBuffer[0]));
+    if (written > 0) {
+      lastProgress = System.nanoTime();
+    }
+    window.lock();
+    try {
+      queued -= written;
+      if (queued <= MAX_QUEUED) {
+        windowOpen.signalAll();
+      }
+    }
+    finally {
+      window.unlock();
+    }
+    while (!out.isEmpty() && !out.peek().hasRemaining()) {
+      out.poll();
+    }
+    if (!out.isEmpty() || !responseEnd) {
+      updateInterest();
+      return;
+    }
+
+    responseEnd = false;
+    // A body the handler has not waited for can't be skipped without reading it
+    if (closeAfterWrite || body != null) {
+      close();
+      return;
+    }
+    busy = false;
+    process();
+  }
+
+  @Override
+  public boolean expired(long now) {
+    // The handler is running and nothing is expected from the client until it responds
+    boolean awaitsHandler = busy && out.isEmpty() && (body == null || readPaused);
+    return !awaitsHandler && now - lastProgress > server.idleTimeoutNanos();
+  }
+
+  @Override
+  public void close() {
+    try {
+      channel.close();
+    }
+    catch (IOException e) {
+      e.printStackTrace();
+    }
+    if (body != null) {
+      body.abort();
+    }
+    window.lock();
+    try {
+      windowOpen.signalAll();
+    }
+    finally {
+      window.unlock();
+    }
+  }
+
+  /**
+   * Request line and headers parsed from the buffer
+   */
+  static final class Request {
+    final String method;
+    final URI uri;
+    final String protocol;
+    final Headers headers;
+    final int headLength;
+    final long bodyLength;
+
+    Request(String method, URI uri, String protocol, Headers headers, int headLength, long bodyLength) {
+      this.method = method;
+      this.uri = uri;
+      this.protocol = protocol;
+      this.headers = headers;
+      this.headLength = headLength;
+      this.bodyLength = bodyLength;
+    }
+
+    boolean keepAlive() {
+      String connection = headers.getFirst("Connection");
+      if ("HTTP/1.0".equals(protocol))
+        return "keep-alive".equalsIgnoreCase(connection);
+
+      return !"close".equalsIgnoreCase(connection);
+    }
+  }
+
+  /**
+   * Content-Length is above the limit of the server
+   */
+  private static final class PayloadTooLargeException extends IllegalArgumentException {
+    private static final long serialVersionUID = 1L;
+  }
+}
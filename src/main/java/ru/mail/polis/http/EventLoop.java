@@ -0,0 +1,171 @@
+package ru.mail.polis.http;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single thread polling its own {@link Selector} and running tasks submitted from other threads.
+ * Every channel registered with a loop is served by the loop thread only, so it needs no locking.
+ * <p>
+ * A failure of a task or a channel doesn't stop the loop: the failed channel is closed and the rest go on.
+ * Once in a while the loop closes the channels which {@link Handler#expired expired}.
+ */
+final class EventLoop implements Runnable {
+
+  /**
+   * Channel registered with the loop
+   */
+  interface Handler {
+    void ready(@NotNull SelectionKey key) throws IOException;
+
+    /**
+     * @param now current {@link System#nanoTime()}
+     * @return true if the channel waited for its peer for too long and should be closed
+     */
+    default boolean expired(long now) {
+      return false;
+    }
+
+    void close();
+  }
+
+  private static final long SWEEP_MILLIS = 1000;
+
+  private final Selector selector;
+  private final Thread thread;
+  private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+  private volatile boolean running;
+  private long lastSweep = System.nanoTime();
+
+  EventLoop(@NotNull String name) throws IOException {
+    this.selector = Selector.open();
+    this.thread = new Thread(this, name);
+  }
+
+  void start() {
+    running = true;
+    thread.start();
+  }
+
+  /**
+   * Runs the task on the loop thread
+   */
+  void execute(@NotNull Runnable task) {
+    tasks.add(task);
+    selector.wakeup();
+  }
+
+  /**
+   * @return true if called on the loop thread
+   */
+  boolean inLoop() {
+    return Thread.currentThread() == thread;
+  }
+
+  /**
+   * Should be called on the loop thread
+   */
+  SelectionKey register(@NotNull SelectableChannel channel, int ops, @NotNull Handler handler) throws IOException {
+    return channel.register(selector, ops, handler);
+  }
+
+  @Override
+  public void run() {
+    try {
+      while (running) {
+        selector.select(SWEEP_MILLIS);
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+          try {
+            task.run();
+          }
+          catch (Throwable e) {
+            e.printStackTrace();
+          }
+        }
+
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+          Handler handler = (Handler) key.attachment();
+          try {
+            handler.ready(key);
+          }
+          catch (IOException | CancelledKeyException e) {
+            handler.close();
+          }
+          catch (Throwable e) {
+            e.printStackTrace();
+            handler.close();
+          }
+        }
+        sweep();
+      }
+    }
+    catch (IOException | RuntimeException e) {
+      // The selector itself failed
+      e.printStackTrace();
+    }
+    finally {
+      close();
+    }
+  }
+
+  private void sweep() {
+    long now = System.nanoTime();
+    if (now - lastSweep < TimeUnit.MILLISECONDS.toNanos(SWEEP_MILLIS))
+      return;
+
+    lastSweep = now;
+    for (SelectionKey key : selector.keys().toArray(new SelectionKey[0])) {
+      Handler handler = (Handler) key.attachment();
+      if (key.isValid() && handler.expired(now)) {
+        handler.close();
+      }
+    }
+  }
+
+  private void close() {
+    if (!selector.isOpen())
+      return;
+
+    try {
+      for (SelectionKey key : selector.keys()) {
+        ((Handler) key.attachment()).close();
+      }
+      selector.close();
+    }
+    catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Stops the loop closing all its channels
+   */
+  void stop() {
+    if (!thread.isAlive()) {
+      close();
+      return;
+    }
+
+    running = false;
+    selector.wakeup();
+    try {
+      thread.join(TimeUnit.SECONDS.toMillis(10));
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,79 @@
+package ru.mail.polis.http;
+
+import com.sun.net.httpserver.Authenticator;
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Handler mapped to a path prefix of {@link NioHttpServer}
+ */
+final class NioHttpContext extends HttpContext {
+
+  private final String path;
+  private final HttpServer server;
+  private final Map<String, Object> attributes = new ConcurrentHashMap<>();
+  private final List<Filter> filters = new CopyOnWriteArrayList<>();
+  private volatile HttpHandler handler;
+  private volatile Authenticator authenticator;
+
+  NioHttpContext(@NotNull String path, HttpHandler handler, @NotNull HttpServer server) {
+    this.path = path;
+    this.handler = handler;
+    this.server = server;
+  }
+
+  @Override
+  public HttpHandler getHandler() {
+    return handler;
+  }
+
+  @Override
+  public void setHandler(HttpHandler handler) {
+    if (handler == null)
+      throw new NullPointerException("Null handler");
+    if (this.handler != null)
+      throw new IllegalArgumentException("Handler already set");
+
+    this.handler = handler;
+  }
+
+  @Override
+  public String getPath() {
+    return path;
+  }
+
+  @Override
+  public HttpServer getServer() {
+    return server;
+  }
+
+  @Override
+  public Map<String, Object> getAttributes() {
+    return attributes;
+  }
+
+  @Override
+  public List<Filter> getFilters() {
+    return filters;
+  }
+
+  @Override
+  public Authenticator setAuthenticator(Authenticator authenticator) {
+    Authenticator previous = this.authenticator;
+    this.authenticator = authenticator;
+    return previous;
+  }
+
+  @Override
+  public Authenticator getAuthenticator() {
+    return authenticator;
+  }
+}
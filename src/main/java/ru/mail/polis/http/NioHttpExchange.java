@@ -0,0 +1,460 @@
+package ru.mail.polis.http;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Exchange of a request, which body is either fully read or streamed by {@link RequestBody}.
+ * The response body is buffered and handed to the event loop on close.
+ * <p>
+ * As with the JDK server, {@code sendResponseHeaders} length of -1 means an empty body and 0 means
+ * a body of unknown length. Either way the response goes out with the actual {@code Content-Length}.
+ * A response with a known length over {@link #STREAMING_THRESHOLD} is not buffered: the headers go out at once
+ * and the body follows in {@link #CHUNK_SIZE} parts as it is written. A body of unknown length over
+ * {@link #CHUNK_SIZE} goes out with {@code Transfer-Encoding: chunked} in the same way, unless the client is HTTP/1.0.
+ * An exchange closed without response headers closes the connection.
+ */
+final class NioHttpExchange extends HttpExchange {
+
+  private static final long STREAMING_THRESHOLD = 1024 * 1024;
+  private static final int CHUNK_SIZE = 64 * 1024;
+  private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+  private final Connection connection;
+  private final Connection.Request request;
+  private final Map<String, Object> attributes = new HashMap<>();
+  private final Headers responseHeaders = new Headers();
+
+  /**
+   * Guards sending the response. Not a monitor, since the writer of a streamed body waits for the connection
+   * under it and a virtual thread would pin its carrier meanwhile.
+   */
+  private final ReentrantLock sending = new ReentrantLock();
+
+  private HttpContext context;
+  private InputStream requestBody;
+  private OutputStream responseBody;
+  private final ResponseBody buffer = new ResponseBody();
+  private StreamingBody streaming;
+  private ChunkedBody chunked;
+  private int responseCode = -1;
+  private boolean closed;
+  private Runnable onClose;
+
+  NioHttpExchange(@NotNull Connection connection, @NotNull Connection.Request request, @NotNull InputStream body) {
+    this.connection = connection;
+    this.request = request;
+    this.requestBody = body;
+    this.responseBody = buffer;
+  }
+
+  /**
+   * Sets the action run once the exchange is closed
+   */
+  void onClose(@NotNull Runnable action) {
+    this.onClose = action;
+  }
+
+  void setHttpContext(@NotNull HttpContext context) {
+    this.context = context;
+  }
+
+  @Override
+  public Headers getRequestHeaders() {
+    return request.headers;
+  }
+
+  @Override
+  public Headers getResponseHeaders() {
+    return responseHeaders;
+  }
+
+  @Override
+  public URI getRequestURI() {
+    return request.uri;
+  }
+
+  @Override
+  public String getRequestMethod() {
+    return request.method;
+  }
+
+  @Override
+  public HttpContext getHttpContext() {
+    return context;
+  }
+
+  @Override
+  public InputStream getRequestBody() {
+    return requestBody;
+  }
+
+  @Override
+  public OutputStream getResponseBody() {
+    return responseBody;
+  }
+
+  @Override
+  public void sendResponseHeaders(int code, long length) throws IOException {
+    if (responseCode >= 0)
+      throw new IOException("Response headers already sent");
+
+    responseCode = code;
+    if (length > STREAMING_THRESHOLD && !connection.inLoop()) {
+      streaming = new StreamingBody(length);
+      if (responseBody == buffer) {
+        responseBody = new BufferedOutputStream(streaming, CHUNK_SIZE);
+      }
+      connection.sendLater(new ByteBuffer[]{head(length)}, false, false);
+    }
+    else if (length > 0) {
+      buffer.reserve(length);
+    }
+    else if (length == 0 && responseBody == buffer && !connection.inLoop() && !"HTTP/1.0".equals(request.protocol)) {
+      chunked = new ChunkedBody();
+      responseBody = chunked;
+    }
+  }
+
+  /**
+   * Hands the response to the event loop. Subsequent calls do nothing.
+   */
+  @Override
+  public void close() {
+    if (!complete())
+      return;
+
+    Runnable action = onClose;
+    if (action != null) {
+      action.run();
+    }
+  }
+
+  /**
+   * @return false if the exchange is already closed
+   */
+  private boolean complete() {
+    sending.lock();
+    try {
+      if (closed)
+        return false;
+
+      closed = true;
+      if (responseCode < 0) {
+        connection.closeLater();
+      }
+      else if (streaming != null) {
+        streaming.finish();
+      }
+      else if (chunked != null) {
+        chunked.finish();
+      }
+      else {
+        connection.sendLater(new ByteBuffer[]{head(buffer.size()), buffer.toBuffer()}, !request.keepAlive());
+      }
+      return true;
+    }
+    finally {
+      sending.unlock();
+    }
+  }
+
+  /**
+   * @param contentLength length of the body or -1 to send it in chunks
+   */
+  private ByteBuffer head(long contentLength) {
+    boolean keepAlive = request.keepAlive();
+    StringBuilder head = new StringBuilder(128)
+      .append("HTTP/1.1 ").append(responseCode).append(' ').append(reasonOf(responseCode)).append("\r\n");
+    for (Map.Entry<String, List<String>> header : responseHeaders.entrySet()) {
+      for (String value : header.getValue()) {
+        head.append(header.getKey()).append(": ").append(value).append("\r\n");
+      }
+    }
+    if (contentLength < 0) {
+      head.append("Transfer-Encoding: chunked\r\n");
+    }
+    else {
+      head.append("Content-Length: ").append(contentLength).append("\r\n");
+    }
+    if (!keepAlive) {
+      head.append("Connection: close\r\n");
+    }
+    head.append("\r\n");
+    return ByteBuffer.wrap(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+  }
+
+  private static String reasonOf(int code) {
+    switch (code) {
+      case 200: return "OK";
+      case 201: return "Created";
+      case 202: return "Accepted";
+      case 400: return "Bad Request";
+      case 404: return "Not Found";
+      case 405: return "Method Not Allowed";
+      case 413: return "Payload Too Large";
+      case 500: return "Internal Server Error";
+      case 501: return "Not Implemented";
+      case 503: return "Service Unavailable";
+      case 504: return "Gateway Timeout";
+      default: return "";
+    }
+  }
+
+  @Override
+  public InetSocketAddress getRemoteAddress() {
+    return (InetSocketAddress) connection.channel().socket().getRemoteSocketAddress();
+  }
+
+  @Override
+  public int getResponseCode() {
+    return responseCode;
+  }
+
+  @Override
+  public InetSocketAddress getLocalAddress() {
+    return (InetSocketAddress) connection.channel().socket().getLocalSocketAddress();
+  }
+
+  @Override
+  public String getProtocol() {
+    return request.protocol;
+  }
+
+  @Override
+  public Object getAttribute(String name) {
+    return attributes.get(name);
+  }
+
+  @Override
+  public void setAttribute(String name, Object value) {
+    attributes.put(name, value);
+  }
+
+  @Override
+  public void setStreams(InputStream in, OutputStream out) {
+    if (in != null) {
+      requestBody = in;
+    }
+    if (out != null) {
+      responseBody = out;
+    }
+  }
+
+  @Override
+  public HttpPrincipal getPrincipal() {
+    return null;
+  }
+
+  /**
+   * Response body buffer accepting writes only after the response headers are sent
+   */
+  private final class ResponseBody extends ByteArrayOutputStream {
+
+    void reserve(long length) {
+      if (length > buf.length && length <= Integer.MAX_VALUE - 8) {
+        buf = Arrays.copyOf(buf, (int) length);
+      }
+    }
+
+    @Override
+    public synchronized void write(int b) {
+      checkHeadersSent();
+      super.write(b);
+    }
+
+    @Override
+    public synchronized void write(@NotNull byte[] b, int off, int len) {
+      checkHeadersSent();
+      super.write(b, off, len);
+    }
+
+    private void checkHeadersSent() {
+      if (responseCode < 0)
+        throw new IllegalStateException("Response headers are not sent");
+    }
+
+    synchronized ByteBuffer toBuffer() {
+      return ByteBuffer.wrap(buf, 0, count);
+    }
+
+    @Override
+    public void close() {
+      NioHttpExchange.this.close();
+    }
+  }
+
+  /**
+   * Response body handed to the event loop while it is written.
+   * The writer waits while the connection has too much of it to send.
+   */
+  private final class StreamingBody extends OutputStream {
+
+    private final long length;
+    private long written;
+    private boolean finished;
+
+    StreamingBody(long length) {
+      this.length = length;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(@NotNull byte[] b, int off, int len) throws IOException {
+      sending.lock();
+      try {
+        if (finished)
+          throw new IOException("Response is sent");
+
+        if (written + len > length)
+          throw new IOException("Response body exceeds Content-Length " + length);
+
+        if (len == 0)
+          return;
+
+        written += len;
+        connection.sendLater(new ByteBuffer[]{ByteBuffer.wrap(Arrays.copyOfRange(b, off, off + len))}, false, false);
+        connection.awaitWindow();
+      }
+      finally {
+        sending.unlock();
+      }
+    }
+
+    /**
+     * Ends the response. A body shorter than promised leaves the connection unusable, so it is closed.
+     */
+    void finish() {
+      sending.lock();
+      try {
+        if (finished)
+          return;
+
+        try {
+          responseBody.flush();
+        }
+        catch (IOException e) {
+          e.printStackTrace();
+        }
+        finished = true;
+        connection.sendLater(new ByteBuffer[0], true, written < length || !request.keepAlive());
+      }
+      finally {
+        sending.unlock();
+      }
+    }
+
+    @Override
+    public void close() {
+      NioHttpExchange.this.close();
+    }
+  }
+
+  /**
+   * Response body of unknown length collected in chunks. The headers go out with the first full chunk,
+   * so a body fitting in one is sent with {@code Content-Length} as usual.
+   */
+  private final class ChunkedBody extends OutputStream {
+
+    private final byte[] chunk = new byte[CHUNK_SIZE];
+    private int count;
+    private boolean started;
+    private boolean finished;
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(@NotNull byte[] b, int off, int len) throws IOException {
+      sending.lock();
+      try {
+        if (finished)
+          throw new IOException("Response is sent");
+
+        while (len > 0) {
+          int n = Math.min(len, CHUNK_SIZE - count);
+          System.arraycopy(b, off, chunk, count, n);
+          count += n;
+          off += n;
+          len -= n;
+          if (count == CHUNK_SIZE) {
+            sendChunk();
+          }
+        }
+      }
+      finally {
+        sending.unlock();
+      }
+    }
+
+    private void sendChunk() throws IOException {
+      if (!started) {
+        started = true;
+        connection.sendLater(new ByteBuffer[]{head(-1)}, false, false);
+      }
+
+      byte[] size = (Integer.toHexString(count) + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+      ByteBuffer frame = ByteBuffer.allocate(size.length + count + 2);
+      frame.put(size).put(chunk, 0, count).put((byte) '\r').put((byte) '\n');
+      frame.flip();
+      count = 0;
+      connection.sendLater(new ByteBuffer[]{frame}, false, false);
+      connection.awaitWindow();
+    }
+
+    void finish() {
+      sending.lock();
+      try {
+        if (finished)
+          return;
+
+        finished = true;
+        if (!started) {
+          connection.sendLater(new ByteBuffer[]{head(count), ByteBuffer.wrap(chunk, 0, count)}, !request.keepAlive());
+          return;
+        }
+
+        if (count > 0) {
+          sendChunk();
+        }
+        connection.sendLater(new ByteBuffer[]{ByteBuffer.wrap(LAST_CHUNK)}, true, !request.keepAlive());
+      }
+      catch (IOException e) {
+        e.printStackTrace();
+        connection.sendLater(new ByteBuffer[0], true, true);
+      }
+      finally {
+        sending.unlock();
+      }
+    }
+
+    @Override
+    public void close() {
+      NioHttpExchange.this.close();
+    }
+  }
+}
@@ -0,0 +1,340 @@
+package ru.mail.polis.http;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.BindException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Non-blocking HTTP/1.1 server with the same API as the JDK one, so handlers work with both unchanged.
+ * <p>
+ * A fixed set of {@link EventLoop} threads, one per core by default, accepts connections and does all the socket I/O.
+ * Connections are kept alive and may pipeline requests. A fully read request is dispatched to the executor,
+ * or handled right on the event loop if there is none, and its response is written back by the event loop.
+ * With an executor, large request and response bodies are streamed rather than buffered, see {@link Connection}.
+ * An {@link Admission} decides on every request before it waits for the executor.
+ * <p>
+ * Unlike {@link HttpServer#create(InetSocketAddress, int)}, the port is bound by the constructor.
+ */
+public final class NioHttpServer extends HttpServer {
+
+  /**
+   * Requests with a longer body are answered 413 before any of it is read
+   */
+  public static final long DEFAULT_MAX_BODY_LENGTH = 1024L * 1024 * 1024;
+
+  /**
+   * Connections waiting for the client for longer are closed
+   */
+  public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 60_000;
+
+  /**
+   * Decides on a request as soon as it arrives, so the excess is rejected at once instead of waiting
+   * in the queue of the executor until timeout
+   */
+  public interface Admission {
+
+    /**
+     * @return true to handle the request, which is {@link #release released} once its exchange is closed,
+     * false to answer 503 right away with the response headers set by this method
+     */
+    boolean tryAcquire(@NotNull HttpExchange exchange);
+
+    /**
+     * @param latencyNanos time from the arrival of the request to the close of its exchange, queueing included
+     */
+    void release(@NotNull HttpExchange exchange, long latencyNanos);
+  }
+
+  private final ServerSocketChannel acceptor;
+  private final InetSocketAddress address;
+  private final EventLoop[] loops;
+  private final List<NioHttpContext> contexts = new CopyOnWriteArrayList<>();
+  private volatile Executor executor;
+  private volatile Admission admission;
+  private volatile long maxBodyLength = DEFAULT_MAX_BODY_LENGTH;
+  private volatile long idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_IDLE_TIMEOUT_MILLIS);
+  private int next;
+  private boolean started;
+  private boolean stopped;
+
+  public NioHttpServer(@NotNull InetSocketAddress address, int backlog) throws IOException {
+    this(address, backlog, Runtime.getRuntime().availableProcessors());
+  }
+
+  public NioHttpServer(@NotNull InetSocketAddress address, int backlog, int threads) throws IOException {
+    this.acceptor = ServerSocketChannel.open();
+    try {
+      acceptor.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+      acceptor.bind(address, backlog);
+      acceptor.configureBlocking(false);
+      this.address = (InetSocketAddress) acceptor.getLocalAddress();
+      this.loops = new EventLoop[threads];
+      for (int i = 0; i < threads; i++) {
+        loops[i] = new EventLoop("nio-http-" + this.address.getPort() + "-" + i);
+      }
+    }
+    catch (IOException e) {
+      acceptor.close();
+      throw e;
+    }
+  }
+
+  @Override
+  public void bind(InetSocketAddress address, int backlog) throws IOException {
+    throw new BindException("Server is bound by constructor");
+  }
+
+  @Override
+  public synchronized void start() {
+    if (started || stopped)
+      throw new IllegalStateException("Server can be started only once");
+
+    started = true;
+    for (EventLoop loop : loops) {
+      loop.start();
+    }
+    loops[0].execute(() -> {
+      try {
+        loops[0].register(acceptor, SelectionKey.OP_ACCEPT, new Acceptor());
+      }
+      catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    });
+  }
+
+  /**
+   * Accepts all the pending connections and spreads them over the event loops round-robin
+   */
+  private final class Acceptor implements EventLoop.Handler {
+    @Override
+    public void ready(@NotNull SelectionKey key) throws IOException {
+      SocketChannel channel;
+      // Failures of a connection, e.g. too many open files, leave the acceptor open for the next ones
+      while ((channel = accept()) != null) {
+        try {
+          channel.configureBlocking(false);
+          channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        }
+        catch (IOException e) {
+          e.printStackTrace();
+          channel.close();
+          continue;
+        }
+        EventLoop loop = loops[next++ % loops.length];
+        Connection connection = new Connection(NioHttpServer.this, loop, channel);
+        loop.execute(connection::register);
+      }
+    }
+
+    private SocketChannel accept() {
+      try {
+        return acceptor.accept();
+      }
+      catch (IOException e) {
+        e.printStackTrace();
+        return null;
+      }
+    }
+
+    @Override
+    public void close() {
+      try {
+        acceptor.close();
+      }
+      catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  void dispatch(@NotNull NioHttpExchange exchange) {
+    Admission admission = this.admission;
+    if (admission != null) {
+      long arrival = System.nanoTime();
+      if (!admission.tryAcquire(exchange)) {
+        respond(exchange, 503);
+        return;
+      }
+      exchange.onClose(() -> admission.release(exchange, System.nanoTime() - arrival));
+    }
+
+    Executor executor = this.executor;
+    if (executor == null) {
+      handle(exchange);
+      return;
+    }
+
+    try {
+      executor.execute(() -> handle(exchange));
+    }
+    catch (RejectedExecutionException e) {
+      respond(exchange, 503);
+    }
+  }
+
+  /**
+   * Runs the handler of the context matching the request path. The exchange is closed afterwards.
+   */
+  private void handle(NioHttpExchange exchange) {
+    try {
+      NioHttpContext context = contextOf(exchange.getRequestURI().getPath());
+      if (context == null || context.getHandler() == null) {
+        respond(exchange, 404);
+        return;
+      }
+
+      exchange.setHttpContext(context);
+      new Filter.Chain(context.getFilters(), context.getHandler()).doFilter(exchange);
+    }
+    catch (IOException | RuntimeException e) {
+      e.printStackTrace();
+    }
+    finally {
+      exchange.close();
+    }
+  }
+
+  private static void respond(NioHttpExchange exchange, int code) {
+    try {
+      exchange.sendResponseHeaders(code, -1);
+    }
+    catch (IOException e) {
+      e.printStackTrace();
+    }
+    exchange.close();
+  }
+
+  private NioHttpContext contextOf(String path) {
+    NioHttpContext matched = null;
+    for (NioHttpContext context : contexts) {
+      if (path != null && path.startsWith(context.getPath())
+        && (matched == null || context.getPath().length() > matched.getPath().length())) {
+        matched = context;
+      }
+    }
+    return matched;
+  }
+
+  @Override
+  public void setExecutor(Executor executor) {
+    this.executor = executor;
+  }
+
+  @Override
+  public Executor getExecutor() {
+    return executor;
+  }
+
+  /**
+   * Sets the admission of the requests, by default all of them are handled
+   */
+  public void setAdmission(Admission admission) {
+    this.admission = admission;
+  }
+
+  /**
+   * Sets the longest request body accepted, {@link #DEFAULT_MAX_BODY_LENGTH} by default.
+   * Without an executor bodies are buffered, so they are limited to a buffered body length as well.
+   */
+  public void setMaxBodyLength(long maxBodyLength) {
+    if (maxBodyLength < 0)
+      throw new IllegalArgumentException("Negative body length limit");
+
+    this.maxBodyLength = maxBodyLength;
+  }
+
+  long maxBodyLength() {
+    return maxBodyLength;
+  }
+
+  /**
+   * Sets the time a connection may wait for the client to send or receive anything,
+   * {@link #DEFAULT_IDLE_TIMEOUT_MILLIS} by default. It doesn't limit the time of a handler.
+   */
+  public void setIdleTimeout(long millis) {
+    if (millis <= 0)
+      throw new IllegalArgumentException("Idle timeout should be positive");
+
+    this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+  }
+
+  long idleTimeoutNanos() {
+    return idleTimeoutNanos;
+  }
+
+  /**
+   * Closes the listening socket and all the connections. Requests being handled are dropped.
+   */
+  @Override
+  public synchronized void stop(int delay) {
+    if (stopped)
+      return;
+
+    stopped = true;
+    try {
+      acceptor.close();
+    }
+    catch (IOException e) {
+      e.printStackTrace();
+    }
+    for (EventLoop loop : loops) {
+      loop.stop();
+    }
+  }
+
+  @Override
+  public HttpContext createContext(String path, HttpHandler handler) {
+    if (path == null || !path.startsWith("/"))
+      throw new IllegalArgumentException("Illegal context path: " + path);
+
+    synchronized (contexts) {
+      for (NioHttpContext context : contexts) {
+        if (context.getPath().equals(path))
+          throw new IllegalArgumentException("Context already exists: " + path);
+      }
+      NioHttpContext context = new NioHttpContext(path, handler, this);
+      contexts.add(context);
+      return context;
+    }
+  }
+
+  @Override
+  public HttpContext createContext(String path) {
+    return createContext(path, null);
+  }
+
+  @Override
+  public void removeContext(String path) throws IllegalArgumentException {
+    if (!contexts.removeIf(context -> context.getPath().equals(path)))
+      throw new IllegalArgumentException("No context: " + path);
+  }
+
+  @Override
+  public void removeContext(HttpContext context) {
+    if (!contexts.remove(context))
+      throw new IllegalArgumentException("No context: " + context.getPath());
+  }
+
+  @Override
+  public InetSocketAddress getAddress() {
+    return address;
+  }
+}
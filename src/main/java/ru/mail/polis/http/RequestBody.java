@@ -0,0 +1,128 @@
+package ru.mail.polis.http;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Body of a request handed to the handler before it has fully arrived.
+ * <p>
+ * The event loop offers the chunks read from the socket and the handler consumes them.
+ * Once {@link #MAX_BUFFERED} bytes are waiting for the handler the connection stops reading,
+ * and it resumes when the handler has consumed half of them, so a body of any size takes bounded memory.
+ * The handler waits on a lock rather than a monitor, so a virtual thread doesn't pin its carrier meanwhile.
+ */
+final class RequestBody extends InputStream {
+
+  static final int MAX_BUFFERED = 1024 * 1024;
+
+  private final Connection connection;
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition arrived = lock.newCondition();
+  private final ArrayDeque<ByteBuffer> chunks = new ArrayDeque<>();
+  private long remaining;
+  private int buffered;
+  private boolean paused;
+  private boolean aborted;
+
+  RequestBody(@NotNull Connection connection, long length) {
+    this.connection = connection;
+    this.remaining = length;
+  }
+
+  /**
+   * Called by the event loop
+   *
+   * @return false if the connection should stop reading until the handler consumes the buffered chunks
+   */
+  boolean offer(@NotNull ByteBuffer chunk) {
+    lock.lock();
+    try {
+      chunks.add(chunk);
+      buffered += chunk.remaining();
+      arrived.signalAll();
+      paused = buffered >= MAX_BUFFERED;
+      return !paused;
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Wakes up the handler waiting for the body of a closed connection
+   */
+  void abort() {
+    lock.lock();
+    try {
+      aborted = true;
+      arrived.signalAll();
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public int read() throws IOException {
+    byte[] b = new byte[1];
+    return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+  }
+
+  @Override
+  public int read(@NotNull byte[] b, int off, int len) throws IOException {
+    if (len == 0)
+      return 0;
+
+    lock.lock();
+    try {
+      while (chunks.isEmpty()) {
+        if (remaining == 0)
+          return -1;
+
+        if (aborted)
+          throw new IOException("Connection closed before the request body was received");
+
+        arrived.await();
+      }
+
+      ByteBuffer chunk = chunks.peek();
+      int read = Math.min(len, chunk.remaining());
+      chunk.get(b, off, read);
+      if (!chunk.hasRemaining()) {
+        chunks.poll();
+      }
+      buffered -= read;
+      remaining -= read;
+      if (paused && buffered <= MAX_BUFFERED / 2) {
+        paused = false;
+        connection.resumeLater();
+      }
+      return read;
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted reading the request body");
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public int available() {
+    lock.lock();
+    try {
+      return buffered;
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+}
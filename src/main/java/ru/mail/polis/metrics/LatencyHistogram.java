@@ -0,0 +1,62 @@
+package ru.mail.polis.metrics;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of durations with buckets growing in powers of two,
+ * from {@link #MIN_MICROS} up to {@link #MAX_MICROS}, so the relative error is bounded over the whole range
+ * as in HdrHistogram, while a record takes two striped increments.
+ */
+public final class LatencyHistogram {
+
+  static final long MIN_MICROS = 1L << 4;
+  static final long MAX_MICROS = 1L << 24;
+
+  private static final int MIN_SHIFT = Long.numberOfTrailingZeros(MIN_MICROS);
+  private static final int BOUNDED = Long.numberOfTrailingZeros(MAX_MICROS) - MIN_SHIFT + 1;
+
+  private final LongAdder[] buckets = new LongAdder[BOUNDED + 1];
+  private final LongAdder sumNanos = new LongAdder();
+
+  LatencyHistogram() {
+    for (int i = 0; i < buckets.length; i++) {
+      buckets[i] = new LongAdder();
+    }
+  }
+
+  public void record(long nanos) {
+    long micros = TimeUnit.NANOSECONDS.toMicros(Math.max(0, nanos));
+    int shift = micros <= 1 ? 0 : 64 - Long.numberOfLeadingZeros(micros - 1);
+    buckets[Math.min(BOUNDED, Math.max(0, shift - MIN_SHIFT))].increment();
+    sumNanos.add(nanos);
+  }
+
+  /**
+   * Records the time passed since the moment taken from {@link System#nanoTime()}
+   */
+  public void recordSince(long startNanos) {
+    record(System.nanoTime() - startNanos);
+  }
+
+  /**
+   * Writes cumulative buckets, sum and count in seconds in Prometheus text format
+   *
+   * @param labels rendered labels without braces, may be empty
+   */
+  void writeTo(@NotNull StringBuilder out, @NotNull String name, @NotNull String labels) {
+    String separator = labels.isEmpty() ? "" : ",";
+    long count = 0;
+    for (int i = 0; i < buckets.length; i++) {
+      count += buckets[i].sum();
+      String le = i == BOUNDED ? "+Inf" : Double.toString((double) (MIN_MICROS << i) / 1_000_000);
+      out.append(name).append("_bucket{").append(labels).append(separator).append("le=\"").append(le).append("\"} ")
+        .append(count).append('\n');
+    }
+    String braced = labels.isEmpty() ? "" : "{" + labels + "}";
+    out.append(name).append("_sum").append(braced).append(' ').append((double) sumNanos.sum() / 1_000_000_000).append('\n');
+    out.append(name).append("_count").append(braced).append(' ').append(count).append('\n');
+  }
+}
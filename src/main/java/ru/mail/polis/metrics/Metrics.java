@@ -0,0 +1,140 @@
+package ru.mail.polis.metrics;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+import java.util.function.Function;
+
+/**
+ * Registry of the metrics of a node exported in Prometheus text format.
+ * <p>
+ * Metrics are created on first use and never removed. Recording takes no locks: a lookup of a concurrent map
+ * and striped increments, so hot paths can record every operation.
+ */
+public final class Metrics {
+
+  public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+  private final Map<String, Family<?>> families = new ConcurrentSkipListMap<>();
+
+  /**
+   * @param labels names and values of the labels in turn
+   */
+  @NotNull
+  public LatencyHistogram histogram(@NotNull String name, @NotNull String help, @NotNull String... labels) {
+    return family(name, help, "histogram", LatencyHistogram.class).get(labels, l -> new LatencyHistogram());
+  }
+
+  /**
+   * @param labels names and values of the labels in turn
+   */
+  @NotNull
+  public LongAdder counter(@NotNull String name, @NotNull String help, @NotNull String... labels) {
+    return family(name, help, "counter", LongAdder.class).get(labels, l -> new LongAdder());
+  }
+
+  /**
+   * Registers a value read at export time, replacing the previous one of the same name and labels
+   *
+   * @param labels names and values of the labels in turn
+   */
+  public void gauge(@NotNull String name, @NotNull String help, @NotNull DoubleSupplier value, @NotNull String... labels) {
+    family(name, help, "gauge", DoubleSupplier.class).metrics.put(render(labels), value);
+  }
+
+  @SuppressWarnings("unchecked")
+  private <T> Family<T> family(String name, String help, String type, Class<T> metric) {
+    Family<?> family = families.computeIfAbsent(name, n -> new Family<>(help, type, metric));
+    if (family.metric != metric)
+      throw new IllegalArgumentException("Metric " + name + " is registered as " + family.type);
+
+    return (Family<T>) family;
+  }
+
+  private static String render(String[] labels) {
+    if (labels.length % 2 != 0)
+      throw new IllegalArgumentException("Labels should be pairs of name and value");
+
+    StringBuilder rendered = new StringBuilder();
+    for (int i = 0; i < labels.length; i += 2) {
+      if (i > 0) {
+        rendered.append(',');
+      }
+      rendered.append(labels[i]).append("=\"");
+      String value = labels[i + 1];
+      for (int j = 0; j < value.length(); j++) {
+        char c = value.charAt(j);
+        if (c == '\\' || c == '"') {
+          rendered.append('\\').append(c);
+        }
+        else if (c == '\n') {
+          rendered.append("\\n");
+        }
+        else {
+          rendered.append(c);
+        }
+      }
+      rendered.append('"');
+    }
+    return rendered.toString();
+  }
+
+  /**
+   * @return all the metrics in Prometheus text format
+   */
+  @NotNull
+  public String export() {
+    StringBuilder out = new StringBuilder(4096);
+    for (Map.Entry<String, Family<?>> entry : families.entrySet()) {
+      String name = entry.getKey();
+      Family<?> family = entry.getValue();
+      out.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+      out.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+      for (Map.Entry<String, ?> metric : family.metrics.entrySet()) {
+        String labels = metric.getKey();
+        Object value = metric.getValue();
+        if (value instanceof LatencyHistogram) {
+          ((LatencyHistogram) value).writeTo(out, name, labels);
+          continue;
+        }
+
+        out.append(name);
+        if (!labels.isEmpty()) {
+          out.append('{').append(labels).append('}');
+        }
+        out.append(' ');
+        if (value instanceof LongAdder) {
+          out.append(((LongAdder) value).sum());
+        }
+        else {
+          out.append(((DoubleSupplier) value).getAsDouble());
+        }
+        out.append('\n');
+      }
+    }
+    return out.toString();
+  }
+
+  private static final class Family<T> {
+    final String help;
+    final String type;
+    final Class<T> metric;
+    final ConcurrentMap<String, T> metrics = new ConcurrentSkipListMap<>();
+
+    Family(String help, String type, Class<T> metric) {
+      this.help = help;
+      this.type = type;
+      this.metric = metric;
+    }
+
+    T get(String[] labels, Function<String, T> factory) {
+      String key = render(labels);
+      T existing = metrics.get(key);
+      return existing != null ? existing : metrics.computeIfAbsent(key, factory);
+    }
+  }
+}
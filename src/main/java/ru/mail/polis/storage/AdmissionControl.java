@@ -0,0 +1,135 @@
+package ru.mail.polis.storage;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Limits the number of requests handled at once, so the excess is rejected instead of waiting for a worker.
+ * <p>
+ * The limit adapts to latency like the gradient algorithm of Netflix concurrency-limits: while the average
+ * latency of a window of requests stays close to the long-term one, the limit grows by its square root, and
+ * it shrinks in proportion as the latency rises, i.e. as requests start queueing somewhere.
+ * <p>
+ * A quarter of the limit is reserved for {@link Priority#INTERNAL} requests, so a node busy coordinating
+ * client requests still serves the replica requests of the other coordinators, and they don't wait
+ * on each other until timeout.
+ */
+public final class AdmissionControl {
+
+  public enum Priority {
+    /** Request of a client, possibly coordinating requests to other nodes */
+    CLIENT,
+    /** Request of another node to a replica */
+    INTERNAL
+  }
+
+  private static final double TOLERANCE = 1.5;
+  private static final double SMOOTHING = 0.2;
+  private static final int LONG_WINDOWS = 600;
+  static final int WINDOW_SAMPLES = 32;
+  static final long WINDOW_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+  private final int minLimit;
+  private final int maxLimit;
+  private final AtomicInteger inflight = new AtomicInteger();
+  private volatile double limit;
+
+  // Current window of samples and the long-term latency, guarded by this
+  private long windowStart = System.nanoTime();
+  private int samples;
+  private long latencySum;
+  private int maxInflight;
+  private double longLatency;
+
+  /**
+   * The limit starts at the maximum and goes down only when latency grows
+   */
+  public AdmissionControl(int minLimit, int maxLimit) {
+    if (minLimit <= 0 || minLimit > maxLimit)
+      throw new IllegalArgumentException("Limits should satisfy 0 < min <= max");
+
+    this.minLimit = minLimit;
+    this.maxLimit = maxLimit;
+    this.limit = maxLimit;
+  }
+
+  /**
+   * @return control admitting everything
+   */
+  @NotNull
+  public static AdmissionControl unlimited() {
+    return new AdmissionControl(Integer.MAX_VALUE, Integer.MAX_VALUE);
+  }
+
+  /**
+   * @return true if the request is admitted and must be {@link #release released} when handled
+   */
+  public boolean tryAcquire(@NotNull Priority priority) {
+    int capacity = capacityOf(priority);
+    while (true) {
+      int current = inflight.get();
+      if (current >= capacity)
+        return false;
+
+      if (inflight.compareAndSet(current, current + 1))
+        return true;
+    }
+  }
+
+  /**
+   * @param latencyNanos time of handling the admitted request
+   */
+  public void release(long latencyNanos) {
+    sample(latencyNanos, inflight.getAndDecrement());
+  }
+
+  public int limit() {
+    return (int) limit;
+  }
+
+  public int inflight() {
+    return inflight.get();
+  }
+
+  private int capacityOf(Priority priority) {
+    int limit = limit();
+    return priority == Priority.INTERNAL ? limit : limit - limit / 4;
+  }
+
+  private synchronized void sample(long latency, int inflight) {
+    samples++;
+    latencySum += latency;
+    maxInflight = Math.max(maxInflight, inflight);
+    long now = System.nanoTime();
+    if (samples < WINDOW_SAMPLES || now - windowStart < WINDOW_NANOS)
+      return;
+
+    update((double) latencySum / samples, maxInflight);
+    windowStart = now;
+    samples = 0;
+    latencySum = 0;
+    maxInflight = 0;
+  }
+
+  private void update(double shortLatency, int inflight) {
+    if (longLatency == 0) {
+      longLatency = shortLatency;
+    }
+    else {
+      longLatency += (shortLatency - longLatency) * 2 / (LONG_WINDOWS + 1);
+    }
+    // Recovering from overload, forget the long-term latency faster so the limit can grow back
+    if (longLatency > 2 * shortLatency) {
+      longLatency *= 0.95;
+    }
+    // Too few requests to tell anything about the limit
+    if (inflight < limit / 2)
+      return;
+
+    double gradient = Math.max(0.5, Math.min(1, TOLERANCE * longLatency / shortLatency));
+    double target = limit * gradient + Math.sqrt(limit);
+    limit = Math.max(minLimit, Math.min(maxLimit, limit * (1 - SMOOTHING) + target * SMOOTHING));
+  }
+}
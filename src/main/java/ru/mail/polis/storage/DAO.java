@@ -1,18 +1,103 @@
 package ru.mail.polis.storage;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.mail.polis.utils.HybridClock;
 
+import java.io.Closeable;
+import java.io.DataInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
 import java.util.NoSuchElementException;
 
 /**
  * Created by rudolph on 04.02.18.
+ * <p>
+ * Every write carries a {@link HybridClock} timestamp and a write older than the stored version of the key
+ * is ignored, so replicas converge regardless of the order the writes reach them in.
  */
-public interface DAO {
+public interface DAO extends Closeable {
 
-  @NotNull byte[] get(@NotNull String id) throws NoSuchElementException, IllegalArgumentException, IOException;
+  @NotNull
+  default byte[] get(@NotNull String id) throws NoSuchElementException, IllegalArgumentException, IOException {
+    ByteBuffer value = getBuffer(id);
+    byte[] data = new byte[value.remaining()];
+    value.get(data);
+    return data;
+  }
 
-  void upsert(@NotNull String id, @NotNull byte[] data) throws IllegalArgumentException, IOException;
+  /**
+   * Same as {@link #get(String)}, but storages able to serve the value from memory-mapped files
+   * return a read-only slice of the mapping instead of a heap copy
+   */
+  @NotNull
+  default ByteBuffer getBuffer(@NotNull String id) throws NoSuchElementException, IllegalArgumentException, IOException {
+    Value value = getValue(id);
+    if (value.isTombstone())
+      throw new DataDeletedException("Value was deleted by id = " + id);
 
-  void delete(@NotNull String id) throws IllegalArgumentException, IOException;
+    return value.data();
+  }
+
+  /**
+   * @return the latest version of the key, which may be a tombstone
+   * @throws IdNotFoundException if the key was never written
+   */
+  @NotNull
+  Value getValue(@NotNull String id) throws IdNotFoundException, IllegalArgumentException, IOException;
+
+  default void upsert(@NotNull String id, @NotNull byte[] data) throws IllegalArgumentException, IOException {
+    upsert(id, data, HybridClock.now());
+  }
+
+  /**
+   * Stores the data unless a newer version of the key is stored already
+   */
+  void upsert(@NotNull String id, @NotNull byte[] data, long timestamp) throws IllegalArgumentException, IOException;
+
+  /**
+   * Same as {@link #upsert(String, byte[], long)} with {@code length} bytes of the data read from the stream.
+   * Storages able to write the stream straight to disk override it, the rest read the whole value into memory.
+   */
+  default void upsert(@NotNull String id, @NotNull InputStream in, long length, long timestamp)
+    throws IllegalArgumentException, IOException {
+    if (length < 0 || length > Integer.MAX_VALUE - 8)
+      throw new IllegalArgumentException("Can't store " + length + " bytes by id = " + id);
+
+    byte[] data = new byte[(int) length];
+    new DataInputStream(in).readFully(data);
+    upsert(id, data, timestamp);
+  }
+
+  default void delete(@NotNull String id) throws IllegalArgumentException, IOException {
+    delete(id, HybridClock.now());
+  }
+
+  /**
+   * Stores a tombstone unless a newer version of the key is stored already
+   */
+  void delete(@NotNull String id, long timestamp) throws IllegalArgumentException, IOException;
+
+  /**
+   * Iterates over the keys from {@code start} inclusive to {@code end} exclusive in {@link String} order.
+   * Entries are read lazily, so a range of any size takes constant memory, and tombstones are returned as well.
+   * The iterator sees the writes made before the call and may see the later ones.
+   *
+   * @param end bound of the range or null to iterate up to the last key
+   * @throws UnsupportedOperationException if the storage doesn't keep keys sorted
+   */
+  @NotNull
+  default Iterator<Entry> range(@NotNull String start, @Nullable String end) throws IOException {
+    throw new UnsupportedOperationException(getClass().getSimpleName() + " doesn't keep keys sorted");
+  }
+
+  /**
+   * Releases files held by the storage. Should be idempotent.
+   */
+  @Override
+  default void close() throws IOException {
+    // Nothing to release by default
+  }
 }
@@ -5,14 +5,7 @@ package ru.mail.polis.storage;
  */
 public class DataDeletedException extends RuntimeException {
 
-  private String tombstone;
-
-  public DataDeletedException(String message, String tombstone) {
+  public DataDeletedException(String message) {
     super(message);
-    this.tombstone = tombstone;
-  }
-
-  public String getTombstone() {
-    return tombstone;
   }
 }
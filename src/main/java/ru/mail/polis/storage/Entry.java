@@ -0,0 +1,27 @@
+package ru.mail.polis.storage;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Key along with its latest version, as returned by {@link DAO#range}
+ */
+public final class Entry {
+
+  private final String key;
+  private final Value value;
+
+  public Entry(@NotNull String key, @NotNull Value value) {
+    this.key = key;
+    this.value = value;
+  }
+
+  @NotNull
+  public String key() {
+    return key;
+  }
+
+  @NotNull
+  public Value value() {
+    return value;
+  }
+}
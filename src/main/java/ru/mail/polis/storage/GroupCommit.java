@@ -0,0 +1,153 @@
+package ru.mail.polis.storage;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Batches {@code fsync} calls of concurrent writers of a log.
+ * <p>
+ * Every write gets a log sequence number (LSN), e.g. the log size after the write.
+ * Depending on {@link Mode} a writer either doesn't wait at all, or waits until its LSN becomes durable.
+ * In the latter case the first waiting writer becomes a leader and forces the log once for everyone who
+ * has written so far, while the others wait for the result. Writers arriving during the force are batched
+ * into the next one, so there is at most one {@code fsync} in flight and not one per request.
+ * <p>
+ * Writers wait on a lock rather than a monitor, which would pin the carrier of a virtual thread.
+ */
+public final class GroupCommit implements Closeable {
+
+  /**
+   * Durability guarantee of an acknowledged write
+   */
+  public enum Mode {
+    /** Never force the log and rely on the OS page cache */
+    NONE,
+    /** Force the log in background every period, a crash may lose the last period of writes */
+    PERIODIC,
+    /** Acknowledge a write only after the batch containing it is forced */
+    BATCH
+  }
+
+  /**
+   * The log being committed
+   */
+  public interface Log {
+    /**
+     * Forces everything written so far to disk
+     *
+     * @return the highest LSN durable after the call
+     */
+    long force() throws IOException;
+  }
+
+  private final Mode mode;
+  private final Log log;
+  private final ScheduledExecutorService timer;
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition done = lock.newCondition();
+
+  private long durable;
+  private boolean forcing;
+
+  public GroupCommit(@NotNull Mode mode, long periodMillis, @NotNull Log log) {
+    this.mode = mode;
+    this.log = log;
+    if (mode == Mode.PERIODIC) {
+      timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "group-commit");
+        thread.setDaemon(true);
+        return thread;
+      });
+      timer.scheduleWithFixedDelay(this::forcePeriodically, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+    else {
+      timer = null;
+    }
+  }
+
+  @NotNull
+  public Mode mode() {
+    return mode;
+  }
+
+  /**
+   * Blocks until the write with the given LSN is durable according to the mode
+   */
+  public void await(long lsn) throws IOException {
+    if (mode != Mode.BATCH)
+      return;
+
+    while (true) {
+      lock.lock();
+      try {
+        while (forcing && durable < lsn) {
+          try {
+            done.await();
+          }
+          catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for commit", e);
+          }
+        }
+        if (durable >= lsn)
+          return;
+
+        forcing = true;
+      }
+      finally {
+        lock.unlock();
+      }
+      force();
+    }
+  }
+
+  private void force() throws IOException {
+    long forced = -1;
+    try {
+      forced = log.force();
+    }
+    finally {
+      lock.lock();
+      try {
+        forcing = false;
+        durable = Math.max(durable, forced);
+        done.signalAll();
+      }
+      finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  private void forcePeriodically() {
+    try {
+      log.force();
+    }
+    catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Stops periodic commits, the owner is responsible for the final force
+   */
+  @Override
+  public void close() {
+    if (timer != null) {
+      timer.shutdown();
+      try {
+        timer.awaitTermination(1, TimeUnit.MINUTES);
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+}
@@ -0,0 +1,103 @@
+package ru.mail.polis.storage;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Read-only memory mapping of a whole file.
+ * <p>
+ * A single {@link MappedByteBuffer} can't exceed 2 GB, so the file is mapped by regions.
+ * Slices inside one region are returned without copying, the rare ones crossing a region boundary
+ * are assembled on heap.
+ * <p>
+ * The mapping stays valid after the channel is closed and even after the file is deleted,
+ * so readers holding slices never observe a closed file.
+ */
+public final class MappedFile {
+
+  private static final int REGION_SIZE = 1 << 30;
+
+  private final MappedByteBuffer[] regions;
+  private final int regionSize;
+  private final long size;
+
+  private MappedFile(MappedByteBuffer[] regions, int regionSize, long size) {
+    this.regions = regions;
+    this.regionSize = regionSize;
+    this.size = size;
+  }
+
+  @NotNull
+  public static MappedFile map(@NotNull FileChannel channel) throws IOException {
+    return map(channel, REGION_SIZE);
+  }
+
+  @NotNull
+  static MappedFile map(@NotNull FileChannel channel, int regionSize) throws IOException {
+    long size = channel.size();
+    int count = (int) ((size + regionSize - 1) / regionSize);
+    MappedByteBuffer[] regions = new MappedByteBuffer[count];
+    for (int i = 0; i < count; i++) {
+      long position = (long) i * regionSize;
+      regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(regionSize, size - position));
+    }
+    return new MappedFile(regions, regionSize, size);
+  }
+
+  public long size() {
+    return size;
+  }
+
+  /**
+   * @return read-only buffer with {@code length} bytes of the file starting from {@code offset}
+   */
+  @NotNull
+  public ByteBuffer slice(long offset, int length) {
+    if (offset < 0 || length < 0 || offset + length > size)
+      throw new IndexOutOfBoundsException("Can't slice " + length + " bytes at " + offset + " of " + size);
+
+    int region = (int) (offset / regionSize);
+    int position = (int) (offset % regionSize);
+    if (position + length <= regionSize) {
+      ByteBuffer slice = regions[region].duplicate();
+      slice.position(position);
+      slice.limit(position + length);
+      return slice.slice().asReadOnlyBuffer();
+    }
+
+    ByteBuffer copy = ByteBuffer.allocate(length);
+    while (copy.hasRemaining()) {
+      ByteBuffer chunk = regions[region++].duplicate();
+      chunk.position(position);
+      chunk.limit(Math.min(chunk.capacity(), position + copy.remaining()));
+      copy.put(chunk);
+      position = 0;
+    }
+    copy.flip();
+    return copy.asReadOnlyBuffer();
+  }
+
+  public byte get(long offset) {
+    return regions[(int) (offset / regionSize)].get((int) (offset % regionSize));
+  }
+
+  public int getInt(long offset) {
+    int position = (int) (offset % regionSize);
+    if (position + 4 <= regionSize)
+      return regions[(int) (offset / regionSize)].getInt(position);
+
+    return slice(offset, 4).getInt();
+  }
+
+  public long getLong(long offset) {
+    int position = (int) (offset % regionSize);
+    if (position + 8 <= regionSize)
+      return regions[(int) (offset / regionSize)].getLong(position);
+
+    return slice(offset, 8).getLong();
+  }
+}
@@ -0,0 +1,150 @@
+package ru.mail.polis.storage;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.mail.polis.metrics.LatencyHistogram;
+import ru.mail.polis.metrics.Metrics;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Records the time of every operation of any {@link DAO} and the I/O failures.
+ * A range is timed until its iterator is created.
+ */
+public class MeteredDao implements DAO {
+
+  private final DAO dao;
+  private final LatencyHistogram reads;
+  private final LatencyHistogram writes;
+  private final LatencyHistogram deletes;
+  private final LatencyHistogram ranges;
+  private final LongAdder errors;
+
+  public MeteredDao(@NotNull DAO dao, @NotNull Metrics metrics) {
+    this.dao = dao;
+    String help = "Time of storage operations";
+    this.reads = metrics.histogram("kv_dao_seconds", help, "op", "get");
+    this.writes = metrics.histogram("kv_dao_seconds", help, "op", "upsert");
+    this.deletes = metrics.histogram("kv_dao_seconds", help, "op", "delete");
+    this.ranges = metrics.histogram("kv_dao_seconds", help, "op", "range");
+    this.errors = metrics.counter("kv_dao_errors_total", "Storage operations failed with I/O error");
+  }
+
+  @NotNull
+  @Override
+  public byte[] get(@NotNull String id) throws IOException {
+    long start = System.nanoTime();
+    try {
+      return dao.get(id);
+    }
+    catch (IOException e) {
+      errors.increment();
+      throw e;
+    }
+    finally {
+      reads.recordSince(start);
+    }
+  }
+
+  @NotNull
+  @Override
+  public ByteBuffer getBuffer(@NotNull String id) throws IOException {
+    long start = System.nanoTime();
+    try {
+      return dao.getBuffer(id);
+    }
+    catch (IOException e) {
+      errors.increment();
+      throw e;
+    }
+    finally {
+      reads.recordSince(start);
+    }
+  }
+
+  @NotNull
+  @Override
+  public Value getValue(@NotNull String id) throws IOException {
+    long start = System.nanoTime();
+    try {
+      return dao.getValue(id);
+    }
+    catch (IOException e) {
+      errors.increment();
+      throw e;
+    }
+    finally {
+      reads.recordSince(start);
+    }
+  }
+
+  @Override
+  public void upsert(@NotNull String id, @NotNull byte[] data, long timestamp) throws IOException {
+    long start = System.nanoTime();
+    try {
+      dao.upsert(id, data, timestamp);
+    }
+    catch (IOException e) {
+      errors.increment();
+      throw e;
+    }
+    finally {
+      writes.recordSince(start);
+    }
+  }
+
+  @Override
+  public void upsert(@NotNull String id, @NotNull InputStream in, long length, long timestamp) throws IOException {
+    long start = System.nanoTime();
+    try {
+      dao.upsert(id, in, length, timestamp);
+    }
+    catch (IOException e) {
+      errors.increment();
+      throw e;
+    }
+    finally {
+      writes.recordSince(start);
+    }
+  }
+
+  @Override
+  public void delete(@NotNull String id, long timestamp) throws IOException {
+    long start = System.nanoTime();
+    try {
+      dao.delete(id, timestamp);
+    }
+    catch (IOException e) {
+      errors.increment();
+      throw e;
+    }
+    finally {
+      deletes.recordSince(start);
+    }
+  }
+
+  @NotNull
+  @Override
+  public Iterator<Entry> range(@NotNull String start, @Nullable String end) throws IOException {
+    long started = System.nanoTime();
+    try {
+      return dao.range(start, end);
+    }
+    catch (IOException e) {
+      errors.increment();
+      throw e;
+    }
+    finally {
+      ranges.recordSince(started);
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    dao.close();
+  }
+}
@@ -1,59 +1,292 @@
 package ru.mail.polis.storage;
 
 import org.jetbrains.annotations.NotNull;
+import ru.mail.polis.utils.HybridClock;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 
 /**
  * Created by rudolph on 04.02.18.
+ * <p>
+ * Keeps every key in a file of its own as {@code | flags (byte) | timestamp (long) | value |},
+ * a tombstone has {@link #TOMBSTONE_FLAG} set and no value, so it is told from the data by the first byte.
+ * <p>
+ * Every version is written to a temporary file in the {@code .uploads} subdirectory and renamed over the key file,
+ * so readers never see it half-written, and a streamed value takes no heap. The subdirectory keeps temporary files
+ * apart from the keys and is cleared on open of the versions left by a crash. Values over {@link #MAP_THRESHOLD} are read
+ * by mapping the file rather than copying it to heap.
+ * <p>
+ * A background collector sweeps the directory every {@link #GC_PERIOD_MILLIS} and removes tombstones older than
+ * the grace period, reading at most the given number of headers per second, so it doesn't compete with requests
+ * for the disk. The grace period should exceed the time a replica may miss a delete for: once a tombstone
+ * is gone, a replica still having the value would bring it back.
  */
 public class StorageDao implements DAO {
 
+  public static final long DEFAULT_GRACE_MILLIS = TimeUnit.DAYS.toMillis(1);
+  public static final int DEFAULT_GC_RATE = 1000;
+
+  static final long GC_PERIOD_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+  private static final int HEADER_SIZE = 1 + 8;
+  private static final byte TOMBSTONE_FLAG = 1;
+  private static final int GC_BATCH_SIZE = 100;
+  private static final int MAP_THRESHOLD = 64 * 1024;
+  private static final String UPLOAD_PREFIX = "upload";
+  private static final String UPLOADS = ".uploads";
 
   private final File dir;
+  private final File uploads;
+  private final long graceMillis;
+  private final int filesPerSecond;
 
-  private static final Tombstone TOMBSTONE = new Tombstone();
+  /**
+   * Serializes the writes, so a version is compared with the stored one and replaces it at once.
+   * Not a monitor, so a virtual thread doing file I/O under it doesn't pin its carrier.
+   */
+  private final ReentrantLock writes = new ReentrantLock();
+  private final ScheduledExecutorService collector = Executors.newSingleThreadScheduledExecutor(r -> {
+    Thread thread = new Thread(r, "tombstone-gc");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  public StorageDao(File dir) throws IOException {
+    this(dir, DEFAULT_GRACE_MILLIS, DEFAULT_GC_RATE);
+  }
 
-  public StorageDao(File dir) {
+  /**
+   * @param graceMillis    age of a tombstone it is removed after
+   * @param filesPerSecond limit of files the collector checks per second
+   */
+  public StorageDao(File dir, long graceMillis, int filesPerSecond) throws IOException {
+    this(dir, graceMillis, filesPerSecond, GC_PERIOD_MILLIS);
+  }
+
+  StorageDao(File dir, long graceMillis, int filesPerSecond, long gcPeriodMillis) throws IOException {
     this.dir = dir;
+    this.uploads = new File(dir, UPLOADS);
+    this.graceMillis = graceMillis;
+    this.filesPerSecond = filesPerSecond;
+    clearUploads();
+    collector.scheduleWithFixedDelay(this::collectGarbage, gcPeriodMillis, gcPeriodMillis, TimeUnit.MILLISECONDS);
   }
 
 
+  /**
+   * Removes the versions a crash left half-written
+   */
+  private void clearUploads() throws IOException {
+    File[] left = uploads.listFiles();
+    if (left != null) {
+      for (File file : left) {
+        java.nio.file.Files.delete(file.toPath());
+      }
+    }
+    if (!uploads.isDirectory() && !uploads.mkdirs())
+      throw new IOException("Can't create " + uploads);
+  }
+
   @NotNull
   @Override
-  public byte[] get(@NotNull String id) throws IdNotFoundException, DataDeletedException, IllegalArgumentException, IOException {
+  public Value getValue(@NotNull String id) throws IdNotFoundException, IllegalArgumentException, IOException {
     File file = getFile(id);
-    if (!file.exists())
+    if (!file.isFile())
       throw new IdNotFoundException("Can't get data by id = " + id);
 
-    byte[] data = new byte[(int) file.length()];
-    try (InputStream fis = new FileInputStream(file)){
-      if (fis.read(data) != data.length)
-        throw new IOException("Can't read file with name = " + id);
-    }
-    if (TOMBSTONE.isSetIn(data))
-      throw new DataDeletedException("Value was deleted by id = " + id, TOMBSTONE.toString());
+    try (RandomAccessFile in = open(file)) {
+      byte flags = in.readByte();
+      long timestamp = in.readLong();
+      if (flags == TOMBSTONE_FLAG)
+        return Value.tombstone(timestamp);
 
-    return data;
+      long length = in.length() - HEADER_SIZE;
+      if (length >= MAP_THRESHOLD)
+        return Value.present(in.getChannel().map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, length), timestamp);
+
+      byte[] data = new byte[(int) length];
+      in.readFully(data);
+      return Value.present(ByteBuffer.wrap(data), timestamp);
+    }
   }
 
   private File getFile(String id) {
+    if (UPLOADS.equals(id))
+      throw new IllegalArgumentException("Id " + id + " is reserved");
+
     return new File(dir, id);
   }
 
+  private static RandomAccessFile open(File file) throws IOException {
+    try {
+      return new RandomAccessFile(file, "r");
+    }
+    catch (FileNotFoundException e) {
+      // Collected right after the check
+      throw new IdNotFoundException("Can't get data by id = " + file.getName());
+    }
+  }
+
+  @Override
+  public void upsert(@NotNull String id, @NotNull byte[] data, long timestamp) throws IllegalArgumentException, IOException {
+    write(id, data, timestamp, (byte) 0);
+  }
+
   @Override
-  public void upsert(@NotNull String id, @NotNull byte[] data) throws IllegalArgumentException, IOException {
-     File file = getFile(id);
-     try (OutputStream fos = new FileOutputStream(file)) {
-       fos.write(data);
-     }
+  public void upsert(@NotNull String id, @NotNull InputStream in, long length, long timestamp)
+    throws IllegalArgumentException, IOException {
+    if (length < 0 || length > Integer.MAX_VALUE)
+      throw new IllegalArgumentException("Can't store " + length + " bytes by id = " + id);
+
+    File upload = File.createTempFile(UPLOAD_PREFIX, null, uploads);
+    try {
+      try (FileChannel out = new FileOutputStream(upload).getChannel()) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).put((byte) 0).putLong(timestamp);
+        header.flip();
+        out.write(header);
+        if (out.transferFrom(Channels.newChannel(in), HEADER_SIZE, length) != length)
+          throw new EOFException("Value by id = " + id + " is shorter than " + length + " bytes");
+      }
+      replace(id, upload, timestamp, false);
+    }
+    finally {
+      java.nio.file.Files.deleteIfExists(upload.toPath());
+    }
   }
 
   @Override
-  public void delete(@NotNull String id) throws IllegalArgumentException, IOException {
-    if (getFile(id).exists()) {
-      upsert(id, TOMBSTONE.toBytes());
+  public void delete(@NotNull String id, long timestamp) throws IllegalArgumentException, IOException {
+    write(id, new byte[]{}, timestamp, TOMBSTONE_FLAG);
+  }
+
+  /**
+   * Writes the version to a temporary file and renames it over the key file,
+   * since truncating the key file in place would let a concurrent reader see it empty or half-written
+   */
+  private void write(String id, byte[] data, long timestamp, byte flags) throws IOException {
+    File upload = File.createTempFile(UPLOAD_PREFIX, null, uploads);
+    try {
+      try (OutputStream fos = new FileOutputStream(upload)) {
+        fos.write(ByteBuffer.allocate(HEADER_SIZE).put(flags).putLong(timestamp).array());
+        fos.write(data);
+      }
+      replace(id, upload, timestamp, flags == TOMBSTONE_FLAG);
+    }
+    finally {
+      java.nio.file.Files.deleteIfExists(upload.toPath());
+    }
+  }
+
+  /**
+   * Renames the written version over the key file unless the stored version wins over it
+   */
+  private void replace(String id, File upload, long timestamp, boolean tombstone) throws IOException {
+    writes.lock();
+    try {
+      File file = getFile(id);
+      if (outdated(file, timestamp, tombstone))
+        return;
+
+      java.nio.file.Files.move(upload.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    finally {
+      writes.unlock();
+    }
+  }
+
+  /**
+   * @return true if the file keeps a version the given one doesn't win over
+   */
+  private static boolean outdated(File file, long timestamp, boolean tombstone) throws IOException {
+    if (!file.exists())
+      return false;
+
+    try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+      boolean storedTombstone = in.readByte() == TOMBSTONE_FLAG;
+      return !Value.newer(timestamp, tombstone, in.readLong(), storedTombstone);
+    }
+  }
+
+  private void collectGarbage() {
+    long expired = HybridClock.fromMillis(System.currentTimeMillis() - graceMillis);
+    long batchStart = System.nanoTime();
+    int batch = 0;
+    try (DirectoryStream<Path> files = java.nio.file.Files.newDirectoryStream(dir.toPath())) {
+      for (Path path : files) {
+        if (Thread.currentThread().isInterrupted())
+          return;
+
+        File file = path.toFile();
+        if (file.isFile()) {
+          collect(file, expired);
+        }
+
+        if (++batch == GC_BATCH_SIZE) {
+          throttle(batchStart, batch);
+          batchStart = System.nanoTime();
+          batch = 0;
+        }
+      }
+    }
+    catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Removes the file if it keeps a tombstone older than the given timestamp.
+   * The lock keeps a concurrent write from being removed along with the tombstone.
+   */
+  private void collect(File file, long expired) throws IOException {
+    writes.lock();
+    try {
+      try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+        if (in.readByte() != TOMBSTONE_FLAG || in.readLong() >= expired)
+          return;
+      }
+      catch (FileNotFoundException | EOFException e) {
+        // Not a storage file
+        return;
+      }
+      java.nio.file.Files.deleteIfExists(file.toPath());
+    }
+    finally {
+      writes.unlock();
+    }
+  }
+
+  private void throttle(long batchStart, int batch) {
+    long budget = TimeUnit.SECONDS.toNanos(batch) / filesPerSecond;
+    long spent = System.nanoTime() - batchStart;
+    if (spent < budget) {
+      try {
+        TimeUnit.NANOSECONDS.sleep(budget - spent);
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    collector.shutdownNow();
+    try {
+      collector.awaitTermination(1, TimeUnit.MINUTES);
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
     }
   }
 }
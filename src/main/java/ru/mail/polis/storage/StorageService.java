@@ -3,24 +3,48 @@ package ru.mail.polis.storage;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 
 import org.jetbrains.annotations.NotNull;
 import ru.mail.polis.KVService;
+import ru.mail.polis.http.NioHttpServer;
+import ru.mail.polis.metrics.LatencyHistogram;
+import ru.mail.polis.metrics.Metrics;
 import ru.mail.polis.storage.interaction.*;
+import ru.mail.polis.utils.HashRing;
+import ru.mail.polis.utils.HybridClock;
 import ru.mail.polis.utils.QueryParams;
 import ru.mail.polis.utils.Replicas;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-
-import java.net.InetSocketAddress;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
 
-import static java.lang.Integer.parseInt;
+import static java.lang.Long.parseLong;
 import static org.apache.http.HttpStatus.*;
+import static ru.mail.polis.storage.interaction.AbstractClusterInteraction.TIMESTAMP_HEADER;
+import static ru.mail.polis.storage.interaction.AbstractClusterInteraction.TOMBSTONE_HEADER;
 import static ru.mail.polis.utils.QueryParams.*;
 
 /**
@@ -28,38 +52,137 @@ import static ru.mail.polis.utils.QueryParams.*;
  */
 public class StorageService implements KVService {
 
+  private static final int PROXY_BUFFER_SIZE = 64 * 1024;
+
+  /**
+   * Seconds a client is asked to wait before retrying a request rejected by admission control
+   */
+  private static final String RETRY_AFTER = "1";
+
+  private static final int MAX_STATUS = 599;
+
+  /**
+   * Prefix of the endpoints for the other nodes, the only ones a write timestamp is taken from
+   */
+  private static final String INTERNAL_PATH = "/v0/internal";
+
+  /**
+   * Endpoints under admission control, longer paths first since they are matched by prefix
+   */
+  private static final String[] ADMITTED_ENDPOINTS = {"internal/entities", "internal", "entities", "entity"};
+
+  /**
+   * Buffers proxying replica responses to the client, reused so the coordinator takes no heap per read.
+   * Not thread-local, since a virtual worker thread lives for a single request.
+   */
+  private static final BlockingQueue<byte[]> PROXY_BUFFERS = new ArrayBlockingQueue<>(256);
+
   @NotNull
   private final HttpServer server;
 
   @NotNull
   private final Set<String> topology;
 
+  @NotNull
+  private final HashRing ring;
+
   @NotNull
   private final DAO dao;
 
-  public StorageService(@NotNull DAO dao, @NotNull Set<String> topology, int port) throws IOException {
-    this.server = HttpServer.create(new InetSocketAddress(port), 5);
-    server.setExecutor(new ThreadPoolExecutor(4, 10, 3, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(30)));
+  @NotNull
+  private final Workers workers;
+
+  @NotNull
+  private final ClusterClient client;
+
+  @NotNull
+  private final HintedHandoff hints;
+
+  @NotNull
+  private final ReadRepair repair;
+
+  @NotNull
+  private final Hedging hedging;
+
+  @NotNull
+  private final AdmissionControl admission;
+
+  private final boolean admitsAtDispatch;
+
+  /**
+   * Handlers of the endpoints under admission control, filled before the server starts
+   */
+  private final Map<String, ErrorHandler> handlers = new HashMap<>();
+
+  @NotNull
+  private final Metrics metrics;
+
+  /**
+   * @param server  bound server, either the JDK one or {@link ru.mail.polis.http.NioHttpServer}
+   * @param client  client for requests to the other nodes
+   * @param hints   storage of writes missed by the other nodes
+   * @param repair  repair of the replicas a read found stale
+   * @param hedging extra requests of reads to the replicas late to answer
+   * @param workers   threads running the handlers
+   * @param admission limit of requests handled at once, the excess is rejected with 503
+   * @param metrics registry of the node exported at {@code /v0/metrics}
+   */
+  public StorageService(
+    @NotNull DAO dao,
+    @NotNull Set<String> topology,
+    @NotNull HttpServer server,
+    @NotNull ClusterClient client,
+    @NotNull HintedHandoff hints,
+    @NotNull ReadRepair repair,
+    @NotNull Hedging hedging,
+    @NotNull Workers workers,
+    @NotNull AdmissionControl admission,
+    @NotNull Metrics metrics) {
+    this.server = server;
+    this.client = client;
+    this.hints = hints;
+    this.repair = repair;
+    this.hedging = hedging;
+    this.metrics = metrics;
+    this.workers = workers;
+    metrics.gauge("kv_executor_queue_size", "Requests waiting for a worker", workers::queued);
+    metrics.gauge("kv_executor_active_threads", "Workers handling requests", workers::active);
+    server.setExecutor(workers);
+    this.admission = admission;
+    metrics.gauge("kv_admission_limit", "Requests admitted at once", admission::limit);
+    metrics.gauge("kv_admission_inflight", "Admitted requests being handled", admission::inflight);
+    // The JDK server has no hook before its executor, so there the handlers admit the requests
+    this.admitsAtDispatch = server instanceof NioHttpServer;
+    if (admitsAtDispatch) {
+      ((NioHttpServer) server).setAdmission(new DispatchAdmission());
+    }
     this.topology = topology;
+    this.ring = new HashRing(topology);
     this.dao = dao;
     initMapping();
   }
 
   private void initMapping() {
     server.createContext("/v0/status", this::status);
-    server.createContext("/v0/entity", this::entity);
-    server.createContext("/v0/internal", this::internal);
+    server.createContext("/v0/metrics", this::metrics);
+    server.createContext("/v0/entity", handlerOf("entity", AdmissionControl.Priority.CLIENT, this::crudEntity));
+    server.createContext(INTERNAL_PATH, handlerOf("internal", AdmissionControl.Priority.INTERNAL, this::singleNodeRequest));
+    server.createContext("/v0/entities", handlerOf("entities", AdmissionControl.Priority.CLIENT, this::batch));
+    server.createContext("/v0/internal/entities",
+      handlerOf("internal/entities", AdmissionControl.Priority.INTERNAL, this::batchFromNode));
   }
 
-  private void internal(HttpExchange exchange) throws IOException {
-    new ErrorHandler(this::singleNodeRequest).handle(exchange);
+  private ErrorHandler handlerOf(String endpoint, AdmissionControl.Priority priority, HttpHandler delegate) {
+    ErrorHandler handler = new ErrorHandler(endpoint, priority, delegate);
+    handlers.put(endpoint, handler);
+    return handler;
   }
 
   private void singleNodeRequest(HttpExchange http) throws IOException {
     String query = http.getRequestURI().getQuery();
     QueryParams params = extractQuery(query);
     String httpMethod = http.getRequestMethod();
-    if ("GET".equals(httpMethod)) {
+    if ("GET".equals(httpMethod) || "HEAD".equals(httpMethod)) {
       readDataFromNode(http, params.id);
     }
     else if ("PUT".equals(httpMethod)) {
@@ -75,26 +198,220 @@ public class StorageService implements KVService {
   }
 
   private void deleteDataFromNode(HttpExchange http, QueryParams params) throws IOException {
-    dao.delete(params.id);
+    dao.delete(params.id, timestampOf(http));
     http.sendResponseHeaders(SC_ACCEPTED, 0);
   }
 
+  /**
+   * Streams the body straight into the storage
+   */
   private void upsertDataFromNode(HttpExchange http, QueryParams params) throws IOException {
-    byte[] data = getData(params.id, http);
-    dao.upsert(params.id, data);
+    try (InputStream in = http.getRequestBody()) {
+      dao.upsert(params.id, in, contentLengthOf(http), timestampOf(http));
+    }
     http.sendResponseHeaders(SC_CREATED, 0);
   }
 
+  /**
+   * @return timestamp of the write set by the coordinator or a new one for a write from a client,
+   *         which can't set it
+   * @throws IllegalArgumentException if the timestamp is too far ahead, see {@link HybridClock#update}
+   */
+  private static long timestampOf(HttpExchange http) {
+    String header = http.getRequestURI().getPath().startsWith(INTERNAL_PATH)
+      ? http.getRequestHeaders().getFirst(TIMESTAMP_HEADER)
+      : null;
+    if (header == null)
+      return HybridClock.now();
+
+    long timestamp = Long.parseLong(header);
+    HybridClock.update(timestamp);
+    return timestamp;
+  }
+
+  /**
+   * Sends the latest version with its timestamp, a {@code HEAD} request gets the timestamp only.
+   * A tombstone is sent as 404 marked with {@link AbstractClusterInteraction#TOMBSTONE_HEADER}.
+   */
   private void readDataFromNode(HttpExchange http, String id) throws IOException {
-    byte[] data = dao.get(id);
-    http.sendResponseHeaders(SC_OK, data.length);
-    try (OutputStream out = http.getResponseBody()) {
-      out.write(data);
+    Value value = dao.getValue(id);
+    http.getResponseHeaders().set(TIMESTAMP_HEADER, Long.toString(value.timestamp()));
+    if (value.isTombstone()) {
+      http.getResponseHeaders().set(TOMBSTONE_HEADER, "true");
+      throw new DataDeletedException("Value was deleted by id = " + id);
+    }
+
+    if ("HEAD".equals(http.getRequestMethod())) {
+      http.sendResponseHeaders(SC_OK, -1);
+      return;
+    }
+
+    ByteBuffer data = value.data();
+    http.sendResponseHeaders(SC_OK, data.remaining());
+    try (WritableByteChannel out = Channels.newChannel(http.getResponseBody())) {
+      while (data.hasRemaining()) {
+        out.write(data);
+      }
     }
   }
 
-  private void entity(HttpExchange exchange) throws IOException, NotEnoughReplicasSentAcknowledge {
-    new ErrorHandler(this::crudEntity).handle(exchange);
+  /**
+   * Serves a batch of a coordinator, see {@link Batch} for the format
+   */
+  private void batchFromNode(HttpExchange http) throws IOException {
+    String httpMethod = http.getRequestMethod();
+    if ("GET".equals(httpMethod)) {
+      String query = http.getRequestURI().getQuery();
+      sendRange(http, dao.range(startOf(query), extractParameter(query, END_PREFIX)), true);
+    }
+    else if ("POST".equals(httpMethod)) {
+      Map<String, Boolean> keys = new LinkedHashMap<>();
+      try (DataInputStream in = new DataInputStream(new BufferedInputStream(http.getRequestBody()))) {
+        String key;
+        while ((key = Batch.readKey(in)) != null) {
+          keys.put(key, (Batch.readFlags(in) & Batch.DATA) != 0);
+        }
+      }
+
+      http.sendResponseHeaders(SC_OK, 0);
+      try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(http.getResponseBody()))) {
+        for (Map.Entry<String, Boolean> key : keys.entrySet()) {
+          Batch.writeVersion(out, key.getKey(), valueOf(key.getKey()), key.getValue());
+        }
+      }
+    }
+    else if ("PUT".equals(httpMethod)) {
+      upsertBatchToNode(readEntries(http), timestampOf(http));
+      http.sendResponseHeaders(SC_CREATED, 0);
+    }
+    else {
+      http.sendResponseHeaders(SC_METHOD_NOT_ALLOWED, 0);
+    }
+  }
+
+  private Value valueOf(String id) throws IOException {
+    try {
+      return dao.getValue(id);
+    }
+    catch (IdNotFoundException e) {
+      return null;
+    }
+  }
+
+  private void upsertBatchToNode(Map<String, byte[]> entries, long timestamp) throws IOException {
+    for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+      dao.upsert(entry.getKey(), entry.getValue(), timestamp);
+    }
+  }
+
+  /**
+   * Reads a range, reads or writes a batch of keys, see {@link Batch} for the format.
+   * The keys of a batch are grouped by replica, so every replica gets a single request.
+   */
+  private void batch(HttpExchange http) throws IOException, NotEnoughReplicasSentAcknowledge {
+    String query = http.getRequestURI().getQuery();
+    Replicas replicas = extractReplicas(query);
+    boolean cluster = replicasExist(replicas) && !topology.isEmpty();
+    String httpMethod = http.getRequestMethod();
+    if ("GET".equals(httpMethod)) {
+      String start = startOf(query);
+      String end = extractParameter(query, END_PREFIX);
+      if (cluster) {
+        try (RangeReadFromCluster range = RangeReadFromCluster.with(start, end, replicas, topology, client)) {
+          sendRange(http, range.run(), false);
+        }
+      }
+      else {
+        sendRange(http, dao.range(start, end), false);
+      }
+    }
+    else if ("POST".equals(httpMethod)) {
+      List<String> keys = new ArrayList<>();
+      try (DataInputStream in = new DataInputStream(new BufferedInputStream(http.getRequestBody()))) {
+        String key;
+        while ((key = Batch.readKey(in)) != null) {
+          keys.add(key);
+        }
+      }
+      Map<String, byte[]> values = cluster ? BatchReadFromCluster.with(keys, replicas, ring, client).run() : null;
+
+      http.sendResponseHeaders(SC_OK, 0);
+      try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(http.getResponseBody()))) {
+        for (String key : keys) {
+          Batch.writeKey(out, key);
+          if (values != null) {
+            byte[] value = values.get(key);
+            Batch.writeValue(out, value == null ? null : ByteBuffer.wrap(value));
+          }
+          else {
+            Value value = valueOf(key);
+            Batch.writeValue(out, value == null || value.isTombstone() ? null : value.data());
+          }
+        }
+      }
+    }
+    else if ("PUT".equals(httpMethod)) {
+      Map<String, byte[]> entries = readEntries(http);
+      if (cluster) {
+        BatchUpsertOnCluster.with(entries, replicas, ring, HybridClock.now(), client, hints).run();
+      }
+      else {
+        upsertBatchToNode(entries, timestampOf(http));
+      }
+      http.sendResponseHeaders(SC_CREATED, 0);
+    }
+    else {
+      http.sendResponseHeaders(SC_METHOD_NOT_ALLOWED, 0);
+    }
+  }
+
+  private static String startOf(String query) {
+    String start = extractParameter(query, START_PREFIX);
+    if (start == null || start.isEmpty())
+      throw new IllegalArgumentException("Range should have non empty start");
+
+    return start;
+  }
+
+  /**
+   * Streams the range as it is read, either the present entries or all the versions for a coordinator
+   */
+  private static void sendRange(HttpExchange http, Iterator<Entry> range, boolean versions) throws IOException {
+    http.sendResponseHeaders(SC_OK, 0);
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(http.getResponseBody()))) {
+      while (range.hasNext()) {
+        Entry entry = range.next();
+        if (versions) {
+          Batch.writeVersion(out, entry.key(), entry.value(), true);
+        }
+        else if (!entry.value().isTombstone()) {
+          Batch.writeKey(out, entry.key());
+          Batch.writeValue(out, entry.value().data());
+        }
+      }
+      Batch.writeEnd(out);
+    }
+    catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+  }
+
+  /**
+   * @return entries of the request body by key, the last one of a repeated key wins
+   */
+  private static Map<String, byte[]> readEntries(HttpExchange http) throws IOException {
+    Map<String, byte[]> entries = new LinkedHashMap<>();
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(http.getRequestBody()))) {
+      String key;
+      while ((key = Batch.readKey(in)) != null) {
+        byte[] value = Batch.readValue(in);
+        if (value == null)
+          throw new IllegalArgumentException("No value for key " + key);
+
+        entries.put(key, value);
+      }
+    }
+    return entries;
   }
 
   private void crudEntity(HttpExchange http) throws IOException, NotEnoughReplicasSentAcknowledge {
@@ -128,7 +445,7 @@ public class StorageService implements KVService {
   }
 
   private HttpResponse deleteDataFromCluster(String id, Replicas replicas) {
-    return DeleteDataFromCluster.with(id, replicas, topology).run();
+    return DeleteDataFromCluster.with(id, replicas, ring.nodesFor(id, replicas.from), HybridClock.now(), client, hints).run();
   }
 
   private void upsertData(HttpExchange http, QueryParams params) throws IOException {
@@ -144,15 +461,17 @@ public class StorageService implements KVService {
   }
 
   private HttpResponse upsertDataToCluster(String id, byte[] data, Replicas replicas) {
-    return UpsertDataOnCluster.with(id, data, replicas, topology).run();
+    return UpsertDataOnCluster.with(id, data, replicas, ring.nodesFor(id, replicas.from), HybridClock.now(), client, hints).run();
   }
 
   private void readData(HttpExchange http, String id, Replicas replicas) throws IOException, NotEnoughReplicasSentAcknowledge {
     if (replicasExist(replicas) && !topology.isEmpty()) {
       HttpResponse resp = readDataFromCluster(id, replicas);
-      http.sendResponseHeaders(resp.getStatusLine().getStatusCode(), resp.getEntity().getContentLength());
-      try (OutputStream out = http.getResponseBody()) {
-        resp.getEntity().writeTo(out);
+      try {
+        proxy(resp, http);
+      }
+      finally {
+        AbstractClusterInteraction.release(resp);
       }
     }
     else {
@@ -160,8 +479,35 @@ public class StorageService implements KVService {
     }
   }
 
+  /**
+   * Streams the replica response body to the client
+   */
+  private static void proxy(HttpResponse resp, HttpExchange http) throws IOException {
+    HttpEntity entity = resp.getEntity();
+    if (entity == null) {
+      // Version metadata of a replica answered HEAD
+      http.sendResponseHeaders(resp.getStatusLine().getStatusCode(), -1);
+      return;
+    }
+
+    http.sendResponseHeaders(resp.getStatusLine().getStatusCode(), Math.max(0, entity.getContentLength()));
+    byte[] buffer = PROXY_BUFFERS.poll();
+    if (buffer == null) {
+      buffer = new byte[PROXY_BUFFER_SIZE];
+    }
+    try (InputStream in = entity.getContent(); OutputStream out = http.getResponseBody()) {
+      int read;
+      while ((read = in.read(buffer)) > 0) {
+        out.write(buffer, 0, read);
+      }
+    }
+    finally {
+      PROXY_BUFFERS.offer(buffer);
+    }
+  }
+
   private HttpResponse readDataFromCluster(String id, Replicas replicas) throws NotEnoughReplicasSentAcknowledge {
-    return ReadDataFromCluster.with(id, replicas, topology).run();
+    return ReadDataFromCluster.with(id, replicas, ring.nodesFor(id, replicas.from), client, repair, hedging).run();
   }
 
 
@@ -186,27 +532,114 @@ public class StorageService implements KVService {
     return true;
   }
 
-  private static class ErrorHandler implements HttpHandler {
+  /**
+   * @return endpoint of a path under admission control, null for the status and the metrics which are always served
+   */
+  private static String endpointOf(String path) {
+    if (path == null || !path.startsWith("/v0/"))
+      return null;
 
+    for (String endpoint : ADMITTED_ENDPOINTS) {
+      if (path.startsWith(endpoint, "/v0/".length()))
+        return endpoint;
+    }
+    return null;
+  }
+
+  /**
+   * Admits requests as they arrive at {@link NioHttpServer}, before they wait for a worker,
+   * so the excess is rejected at once and the time in the queue counts in the latency the limit follows
+   */
+  private class DispatchAdmission implements NioHttpServer.Admission {
+
+    @Override
+    public boolean tryAcquire(@NotNull HttpExchange http) {
+      String endpoint = endpointOf(http.getRequestURI().getPath());
+      if (endpoint == null || admission.tryAcquire(priorityOf(endpoint)))
+        return true;
+
+      http.getResponseHeaders().set("Retry-After", RETRY_AFTER);
+      handlers.get(endpoint).responsesOf(SC_SERVICE_UNAVAILABLE).increment();
+      return false;
+    }
+
+    @Override
+    public void release(@NotNull HttpExchange http, long latencyNanos) {
+      if (endpointOf(http.getRequestURI().getPath()) != null) {
+        admission.release(latencyNanos);
+      }
+    }
+
+    private AdmissionControl.Priority priorityOf(String endpoint) {
+      return endpoint.startsWith("internal") ? AdmissionControl.Priority.INTERNAL : AdmissionControl.Priority.CLIENT;
+    }
+  }
+
+  /**
+   * Rejects requests beyond the admission limit unless the server does, turns exceptions into error responses
+   * and records the time and the status of every response. The metrics are looked up once per method and status.
+   */
+  private class ErrorHandler implements HttpHandler {
+
+    private final String endpoint;
+    private final AdmissionControl.Priority priority;
     private final HttpHandler delegate;
+    private final Map<String, LatencyHistogram> latencies = new ConcurrentHashMap<>();
+    // Indexed by status + 1, since -1 stands for a connection closed without response
+    private final AtomicReferenceArray<LongAdder> responses = new AtomicReferenceArray<>(MAX_STATUS + 2);
 
-    public ErrorHandler(HttpHandler delegate) {
+    ErrorHandler(String endpoint, AdmissionControl.Priority priority, HttpHandler delegate) {
+      this.endpoint = endpoint;
+      this.priority = priority;
       this.delegate = delegate;
     }
 
+    LatencyHistogram latencyOf(String method) {
+      LatencyHistogram latency = latencies.get(method);
+      if (latency != null)
+        return latency;
+
+      return latencies.computeIfAbsent(method, m -> metrics.histogram("kv_request_seconds", "Time of handling requests",
+        "endpoint", endpoint, "method", m));
+    }
+
+    LongAdder responsesOf(int status) {
+      if (status < -1 || status > MAX_STATUS)
+        return lookUpResponses(status);
+
+      LongAdder counter = responses.get(status + 1);
+      if (counter == null) {
+        // Registered once, the race only looks it up twice
+        counter = lookUpResponses(status);
+        responses.set(status + 1, counter);
+      }
+      return counter;
+    }
+
+    private LongAdder lookUpResponses(int status) {
+      return metrics.counter("kv_responses_total", "Responses by status, -1 if the connection was closed instead",
+        "endpoint", endpoint, "status", Integer.toString(status));
+    }
+
     @Override
     public void handle(HttpExchange http) throws IOException {
+      long start = System.nanoTime();
+      // Admitted by the server before waiting for a worker, see DispatchAdmission
+      boolean admitted = admitsAtDispatch || admission.tryAcquire(priority);
       try {
-        delegate.handle(http);
+        if (admitted) {
+          delegate.handle(http);
+        }
+        else {
+          http.getResponseHeaders().set("Retry-After", RETRY_AFTER);
+          sendErrorResponse(SC_SERVICE_UNAVAILABLE, http, "Overloaded");
+        }
       }
       catch (IllegalArgumentException e) {
         sendError(SC_BAD_REQUEST, http, e);
       }
-      catch (DataDeletedException e) {
-        sendError404(http, e);
-      }
-      catch (IdNotFoundException e) {
-        sendError404(http, e);
+      catch (DataDeletedException | IdNotFoundException e) {
+        sendError404(http);
       }
       catch (IOException e) {
         sendError(SC_INTERNAL_SERVER_ERROR, http, e);
@@ -214,17 +647,21 @@ public class StorageService implements KVService {
       catch (NotEnoughReplicasSentAcknowledge e) {
         sendError(SC_GATEWAY_TIMEOUT, http, e);
       }
+      catch (UnsupportedOperationException e) {
+        sendError(SC_NOT_IMPLEMENTED, http, e);
+      }
       finally {
         http.close();
+        if (admitted && !admitsAtDispatch) {
+          admission.release(System.nanoTime() - start);
+        }
+        latencyOf(http.getRequestMethod()).recordSince(start);
+        responsesOf(http.getResponseCode()).increment();
       }
     }
 
-    private void sendError404(HttpExchange http, IdNotFoundException e) throws IOException {
-      http.sendResponseHeaders(SC_NOT_FOUND, 0);
-    }
-
-    private void sendError404(HttpExchange http, DataDeletedException e) throws IOException {
-      sendErrorResponse(SC_NOT_FOUND, http, e.getTombstone());
+    private void sendError404(HttpExchange http) throws IOException {
+      http.sendResponseHeaders(SC_NOT_FOUND, "HEAD".equals(http.getRequestMethod()) ? -1 : 0);
     }
 
     private void sendError(int statusCode, HttpExchange http, Exception e) throws IOException {
@@ -232,6 +669,11 @@ public class StorageService implements KVService {
     }
 
     private void sendErrorResponse(int statusCode, HttpExchange http, String errorMsg) throws IOException {
+      if ("HEAD".equals(http.getRequestMethod())) {
+        http.sendResponseHeaders(statusCode, -1);
+        return;
+      }
+
       http.sendResponseHeaders(statusCode, errorMsg.length());
       try (OutputStream out = http.getResponseBody()) {
         out.write(errorMsg.getBytes());
@@ -240,19 +682,25 @@ public class StorageService implements KVService {
   }
 
   private byte[] getData(String id, HttpExchange http) throws IOException {
-    final int contentLength = parseInt(http.getRequestHeaders().getFirst("Content-Length"));
-    if (contentLength == 0)
-      return new byte[]{};
-
-    byte[] data = new byte[contentLength];
-    try(InputStream in = http.getRequestBody()) {
-      if (in.read(data) != contentLength) {
-        throw new IOException("Can't read request body");
-      }
+    final long contentLength = contentLengthOf(http);
+    if (contentLength > Integer.MAX_VALUE - 8)
+      throw new IllegalArgumentException("Value is too large to replicate by id = " + id);
+
+    byte[] data = new byte[(int) contentLength];
+    try (DataInputStream in = new DataInputStream(http.getRequestBody())) {
+      in.readFully(data);
     }
     return data;
   }
 
+  private static long contentLengthOf(HttpExchange http) {
+    long contentLength = parseLong(http.getRequestHeaders().getFirst("Content-Length"));
+    if (contentLength < 0)
+      throw new IllegalArgumentException("Negative Content-Length");
+
+    return contentLength;
+  }
+
   private void status(HttpExchange http) throws IOException {
     if ("GET".equals(http.getRequestMethod())) {
       String response = "ONLINE";
@@ -263,6 +711,21 @@ public class StorageService implements KVService {
     }
   }
 
+  private void metrics(HttpExchange http) throws IOException {
+    if ("GET".equals(http.getRequestMethod())) {
+      byte[] response = metrics.export().getBytes(StandardCharsets.UTF_8);
+      http.getResponseHeaders().set("Content-Type", Metrics.CONTENT_TYPE);
+      http.sendResponseHeaders(SC_OK, response.length);
+      try (OutputStream out = http.getResponseBody()) {
+        out.write(response);
+      }
+    }
+    else {
+      http.sendResponseHeaders(SC_METHOD_NOT_ALLOWED, -1);
+      http.close();
+    }
+  }
+
   @Override
   public void start() {
     server.start();
@@ -271,5 +734,14 @@ public class StorageService implements KVService {
   @Override
   public void stop() {
     server.stop(0);
+    workers.shutdown();
+    try {
+      hints.close();
+      client.close();
+      dao.close();
+    }
+    catch (IOException e) {
+      e.printStackTrace();
+    }
   }
 }
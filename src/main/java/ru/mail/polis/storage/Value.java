@@ -0,0 +1,59 @@
+package ru.mail.polis.storage;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Version of a key stored by a {@link DAO}: either the data or a tombstone, with the timestamp of the write.
+ * <p>
+ * Versions are ordered by timestamp and the last write wins. A tombstone wins over the data written
+ * at the same moment, so a concurrent delete is never undone.
+ */
+public final class Value {
+
+  private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+  private final ByteBuffer data;
+  private final long timestamp;
+  private final boolean tombstone;
+
+  private Value(ByteBuffer data, long timestamp, boolean tombstone) {
+    this.data = data;
+    this.timestamp = timestamp;
+    this.tombstone = tombstone;
+  }
+
+  @NotNull
+  public static Value present(@NotNull ByteBuffer data, long timestamp) {
+    return new Value(data, timestamp, false);
+  }
+
+  @NotNull
+  public static Value tombstone(long timestamp) {
+    return new Value(EMPTY, timestamp, true);
+  }
+
+  /**
+   * @return read-only view of the data, empty for a tombstone
+   */
+  @NotNull
+  public ByteBuffer data() {
+    return data.asReadOnlyBuffer();
+  }
+
+  public long timestamp() {
+    return timestamp;
+  }
+
+  public boolean isTombstone() {
+    return tombstone;
+  }
+
+  /**
+   * @return true if a version wins over the other one
+   */
+  public static boolean newer(long timestamp, boolean tombstone, long otherTimestamp, boolean otherTombstone) {
+    return timestamp > otherTimestamp || timestamp == otherTimestamp && tombstone && !otherTombstone;
+  }
+}
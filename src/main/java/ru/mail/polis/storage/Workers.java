@@ -0,0 +1,159 @@
+package ru.mail.polis.storage;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Threads running request handlers, which block on disk and on other nodes.
+ * <p>
+ * Either a fixed pool of platform threads with a queue in front of it, or a virtual thread per request
+ * with at most a limited number of requests handled at once and the rest parked in line.
+ */
+public abstract class Workers implements Executor {
+
+  /**
+   * Handlers block on disk and on other nodes, so there are more workers than cores
+   */
+  public static final int DEFAULT_THREADS = Math.max(8, 2 * Runtime.getRuntime().availableProcessors());
+
+  /**
+   * @return maximum number of requests handled at once
+   */
+  public abstract int capacity();
+
+  /**
+   * @return number of requests waiting to be handled
+   */
+  public abstract int queued();
+
+  /**
+   * @return number of requests being handled
+   */
+  public abstract int active();
+
+  /**
+   * Lets the started requests complete and rejects the new ones
+   */
+  public abstract void shutdown();
+
+  @NotNull
+  public static Workers pool(int threads) {
+    return new Pool(threads);
+  }
+
+  /**
+   * @param limit maximum number of requests handled at once
+   * @throws UnsupportedOperationException if the JVM has no virtual threads, i.e. before Java 21
+   */
+  @NotNull
+  public static Workers virtual(int limit) {
+    ExecutorService threads;
+    try {
+      // Looked up at run time, since the code is compiled for Java 8
+      threads = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    }
+    catch (NoSuchMethodException | IllegalAccessException e) {
+      throw new UnsupportedOperationException("Virtual threads are not available in this JVM", e);
+    }
+    catch (InvocationTargetException e) {
+      throw new UnsupportedOperationException("Virtual threads are not enabled", e.getCause());
+    }
+    return new Virtual(threads, limit);
+  }
+
+  private static final class Pool extends Workers {
+    private final ThreadPoolExecutor executor;
+
+    Pool(int threads) {
+      this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
+        r -> new Thread(r, "storage-worker"));
+    }
+
+    @Override
+    public void execute(@NotNull Runnable task) {
+      executor.execute(task);
+    }
+
+    @Override
+    public int capacity() {
+      return executor.getMaximumPoolSize();
+    }
+
+    @Override
+    public int queued() {
+      return executor.getQueue().size();
+    }
+
+    @Override
+    public int active() {
+      return executor.getActiveCount();
+    }
+
+    @Override
+    public void shutdown() {
+      executor.shutdown();
+    }
+  }
+
+  private static final class Virtual extends Workers {
+    private final ExecutorService threads;
+    private final Semaphore permits;
+    private final int limit;
+    private final AtomicInteger waiting = new AtomicInteger();
+
+    Virtual(ExecutorService threads, int limit) {
+      this.threads = threads;
+      this.limit = limit;
+      // Fair to serve the parked requests in order of arrival, as the queue of the pool does
+      this.permits = new Semaphore(limit, true);
+    }
+
+    @Override
+    public void execute(@NotNull Runnable task) {
+      threads.execute(() -> {
+        waiting.incrementAndGet();
+        try {
+          permits.acquireUninterruptibly();
+        }
+        finally {
+          waiting.decrementAndGet();
+        }
+        try {
+          task.run();
+        }
+        finally {
+          permits.release();
+        }
+      });
+    }
+
+    @Override
+    public int capacity() {
+      return limit;
+    }
+
+    @Override
+    public int queued() {
+      return waiting.get();
+    }
+
+    @Override
+    public int active() {
+      return limit - permits.availablePermits();
+    }
+
+    @Override
+    public void shutdown() {
+      threads.shutdown();
+    }
+  }
+}
@@ -0,0 +1,107 @@
+package ru.mail.polis.storage.cache;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.mail.polis.storage.DAO;
+import ru.mail.polis.storage.Entry;
+import ru.mail.polis.storage.Value;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Read-through cache of values and tombstones along with their timestamps over any {@link DAO}, kept in the {@link OffHeapCache}
+ * so it doesn't compete with the storage for heap.
+ * <p>
+ * Writes go to the storage first and then invalidate the cached key, so a successful write is never
+ * followed by a stale read from the cache.
+ */
+public class CachingDao implements DAO {
+
+  private final DAO dao;
+  private final OffHeapCache cache;
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+
+  /**
+   * @param capacity off-heap memory for cached values in bytes
+   */
+  public CachingDao(@NotNull DAO dao, long capacity) {
+    this.dao = dao;
+    this.cache = new OffHeapCache(capacity);
+  }
+
+  @NotNull
+  @Override
+  public Value getValue(@NotNull String id) throws IllegalArgumentException, IOException {
+    Value cached = cache.get(id);
+    if (cached != null) {
+      hits.increment();
+      return cached;
+    }
+
+    misses.increment();
+    long stamp = cache.stamp(id);
+    Value value = dao.getValue(id);
+    cache.put(id, value, stamp);
+    return value;
+  }
+
+  @Override
+  public void upsert(@NotNull String id, @NotNull byte[] data, long timestamp) throws IllegalArgumentException, IOException {
+    try {
+      dao.upsert(id, data, timestamp);
+    }
+    finally {
+      cache.invalidate(id);
+    }
+  }
+
+  @Override
+  public void upsert(@NotNull String id, @NotNull InputStream in, long length, long timestamp)
+    throws IllegalArgumentException, IOException {
+    try {
+      dao.upsert(id, in, length, timestamp);
+    }
+    finally {
+      cache.invalidate(id);
+    }
+  }
+
+  @Override
+  public void delete(@NotNull String id, long timestamp) throws IllegalArgumentException, IOException {
+    try {
+      dao.delete(id, timestamp);
+    }
+    finally {
+      cache.invalidate(id);
+    }
+  }
+
+  /**
+   * Scans bypass the cache, so they don't evict the hot keys
+   */
+  @NotNull
+  @Override
+  public Iterator<Entry> range(@NotNull String start, @Nullable String end) throws IOException {
+    return dao.range(start, end);
+  }
+
+  /**
+   * @return share of reads served from the cache
+   */
+  public double hitRate() {
+    long hit = hits.sum();
+    long total = hit + misses.sum();
+    return total == 0 ? 0 : (double) hit / total;
+  }
+
+  @Override
+  public void close() throws IOException {
+    cache.clear();
+    dao.close();
+  }
+}
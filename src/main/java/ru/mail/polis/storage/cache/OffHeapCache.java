@@ -0,0 +1,312 @@
+package ru.mail.polis.storage.cache;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.mail.polis.storage.Value;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Size-bounded cache of values stored outside of heap.
+ * <p>
+ * Memory is allocated in direct {@link #SLAB_SIZE} slabs. A slab is split into equal chunks of one size class,
+ * a power of two from {@link #MIN_CHUNK} up to the slab size, and a value takes the smallest chunk it fits into.
+ * Once all the slabs are allocated, a new value evicts the least recently used value of the same size class,
+ * unless another class has gone unused for longer: then a whole slab of that class is emptied and split for
+ * the new value, so the slabs follow the sizes in use rather than staying with the sizes seen first.
+ * Values larger than a slab are not cached.
+ * <p>
+ * Keys are spread over independently locked segments, each owning its share of slabs.
+ * Every segment counts invalidations, so a value read from the storage before a concurrent write
+ * is not cached after it, see {@link #stamp(String)}.
+ */
+final class OffHeapCache {
+
+  static final int SLAB_SIZE = 1024 * 1024;
+  static final int MIN_CHUNK = 64;
+
+  private static final int MAX_SEGMENTS = 16;
+  private static final int MIN_SLABS_PER_SEGMENT = 32;
+
+  private final Segment[] segments;
+
+  OffHeapCache(long capacity) {
+    long slabs = Math.max(1, capacity / SLAB_SIZE);
+    int count = (int) Math.max(1, Math.min(MAX_SEGMENTS, slabs / MIN_SLABS_PER_SEGMENT));
+    segments = new Segment[count];
+    for (int i = 0; i < count; i++) {
+      segments[i] = new Segment((int) (slabs / count));
+    }
+  }
+
+  private Segment segmentOf(String key) {
+    int hash = key.hashCode();
+    hash ^= hash >>> 16;
+    return segments[(hash & Integer.MAX_VALUE) % segments.length];
+  }
+
+  /**
+   * @return the version with a heap copy of the data or null if the key is not cached
+   */
+  @Nullable
+  Value get(@NotNull String key) {
+    return segmentOf(key).get(key);
+  }
+
+  /**
+   * @return stamp to be passed to {@link #put(String, Value, long)} of a value read from the storage afterwards
+   */
+  long stamp(@NotNull String key) {
+    return segmentOf(key).stamp();
+  }
+
+  /**
+   * Caches the value unless the key was invalidated since the stamp was taken
+   */
+  void put(@NotNull String key, @NotNull Value value, long stamp) {
+    segmentOf(key).put(key, value, stamp);
+  }
+
+  void invalidate(@NotNull String key) {
+    segmentOf(key).invalidate(key);
+  }
+
+  /**
+   * Drops all the values, slabs are released by GC
+   */
+  void clear() {
+    for (Segment segment : segments) {
+      segment.clear();
+    }
+  }
+
+  static int sizeClassOf(int length) {
+    int chunk = Math.max(MIN_CHUNK, Integer.highestOneBit(Math.max(1, length - 1)) << 1);
+    return Integer.numberOfTrailingZeros(chunk) - Integer.numberOfTrailingZeros(MIN_CHUNK);
+  }
+
+  private static int chunkSizeOf(int sizeClass) {
+    return MIN_CHUNK << sizeClass;
+  }
+
+  private static final class Entry {
+    final String key;
+    final int sizeClass;
+    final Chunk chunk;
+    final int length;
+    final long timestamp;
+    final boolean tombstone;
+    long lastUsed;
+
+    Entry(String key, int sizeClass, Chunk chunk, int length, long timestamp, boolean tombstone) {
+      this.key = key;
+      this.sizeClass = sizeClass;
+      this.chunk = chunk;
+      this.length = length;
+      this.timestamp = timestamp;
+      this.tombstone = tombstone;
+    }
+  }
+
+  /**
+   * Slab split into the chunks of a single size class, which changes when the slab is moved to another one
+   */
+  private static final class Slab {
+    final ByteBuffer memory = ByteBuffer.allocateDirect(SLAB_SIZE);
+    final List<Chunk> chunks = new ArrayList<>();
+  }
+
+  private static final class Chunk {
+    final Slab slab;
+    final ByteBuffer buffer;
+    // The value stored in the chunk, null while it is free
+    Entry entry;
+
+    Chunk(Slab slab, ByteBuffer buffer) {
+      this.slab = slab;
+      this.buffer = buffer;
+    }
+  }
+
+  private static final class Segment {
+    private final int maxSlabs;
+    private final Map<String, Entry> entries = new HashMap<>();
+    private final List<LinkedHashMap<String, Entry>> lru = new ArrayList<>();
+    private final List<ArrayDeque<Chunk>> free = new ArrayList<>();
+    private final int[] slabsOf = new int[sizeClassOf(SLAB_SIZE) + 1];
+    private int slabs;
+    private long stamp;
+    private long clock;
+
+    Segment(int maxSlabs) {
+      this.maxSlabs = Math.max(1, maxSlabs);
+      for (int sizeClass = 0; sizeClass <= sizeClassOf(SLAB_SIZE); sizeClass++) {
+        lru.add(new LinkedHashMap<>(16, 0.75f, true));
+        free.add(new ArrayDeque<>());
+      }
+    }
+
+    synchronized Value get(String key) {
+      Entry entry = entries.get(key);
+      if (entry == null)
+        return null;
+
+      // Touch the entry in its LRU order
+      lru.get(entry.sizeClass).get(key);
+      entry.lastUsed = ++clock;
+      if (entry.tombstone)
+        return Value.tombstone(entry.timestamp);
+
+      ByteBuffer chunk = entry.chunk.buffer.duplicate();
+      chunk.clear().limit(entry.length);
+      byte[] data = new byte[entry.length];
+      chunk.get(data);
+      return Value.present(ByteBuffer.wrap(data), entry.timestamp);
+    }
+
+    synchronized long stamp() {
+      return stamp;
+    }
+
+    synchronized void put(String key, Value value, long stamp) {
+      ByteBuffer data = value.data();
+      if (stamp != this.stamp || data.remaining() > SLAB_SIZE)
+        return;
+
+      remove(key);
+      int sizeClass = sizeClassOf(data.remaining());
+      Chunk chunk = allocate(sizeClass);
+      if (chunk == null)
+        return;
+
+      Entry entry = new Entry(key, sizeClass, chunk, data.remaining(), value.timestamp(), value.isTombstone());
+      entry.lastUsed = ++clock;
+      chunk.entry = entry;
+      chunk.buffer.clear();
+      chunk.buffer.put(data);
+      entries.put(key, entry);
+      lru.get(sizeClass).put(key, entry);
+    }
+
+    synchronized void invalidate(String key) {
+      stamp++;
+      remove(key);
+    }
+
+    synchronized void clear() {
+      stamp++;
+      entries.clear();
+      for (int i = 0; i < lru.size(); i++) {
+        lru.get(i).clear();
+        free.get(i).clear();
+        slabsOf[i] = 0;
+      }
+      slabs = 0;
+    }
+
+    private void remove(String key) {
+      Entry entry = entries.remove(key);
+      if (entry != null) {
+        lru.get(entry.sizeClass).remove(key);
+        entry.chunk.entry = null;
+        free.get(entry.sizeClass).push(entry.chunk);
+      }
+    }
+
+    private Chunk allocate(int sizeClass) {
+      ArrayDeque<Chunk> chunks = free.get(sizeClass);
+      if (chunks.isEmpty() && slabs < maxSlabs) {
+        split(new Slab(), sizeClass);
+        slabs++;
+      }
+      if (!chunks.isEmpty())
+        return chunks.pop();
+
+      // Out of slabs, take a slab of the class unused for longer than the values of this one if there is any,
+      // or reuse the chunk of the least recently used value of the same size
+      Entry eldest = eldestOf(sizeClass);
+      int victim = victimOf(sizeClass);
+      if (victim >= 0 && (eldest == null || lastUsedOf(victim) < eldest.lastUsed)) {
+        moveSlab(victim, sizeClass);
+        return chunks.pop();
+      }
+      if (eldest == null)
+        return null;
+
+      lru.get(sizeClass).remove(eldest.key);
+      entries.remove(eldest.key);
+      eldest.chunk.entry = null;
+      return eldest.chunk;
+    }
+
+    private void split(Slab slab, int sizeClass) {
+      slab.chunks.clear();
+      ArrayDeque<Chunk> chunks = free.get(sizeClass);
+      int chunkSize = chunkSizeOf(sizeClass);
+      for (int offset = 0; offset < SLAB_SIZE; offset += chunkSize) {
+        slab.memory.clear().position(offset).limit(offset + chunkSize);
+        Chunk chunk = new Chunk(slab, slab.memory.slice());
+        slab.chunks.add(chunk);
+        chunks.push(chunk);
+      }
+      slabsOf[sizeClass]++;
+    }
+
+    /**
+     * Empties the slab holding the least recently used value of the victim class and splits it for the target one
+     */
+    private void moveSlab(int victim, int target) {
+      Entry eldest = eldestOf(victim);
+      // A class without values has all its chunks free
+      Slab slab = eldest != null ? eldest.chunk.slab : free.get(victim).peek().slab;
+      for (Chunk chunk : slab.chunks) {
+        if (chunk.entry != null) {
+          entries.remove(chunk.entry.key);
+          lru.get(victim).remove(chunk.entry.key);
+          chunk.entry = null;
+        }
+      }
+      free.get(victim).removeIf(chunk -> chunk.slab == slab);
+      slabsOf[victim]--;
+      split(slab, target);
+    }
+
+    /**
+     * @return the class other than the target one whose least recently used value is the oldest,
+     *         a class with no values at all first, or -1 if no other class has slabs
+     */
+    private int victimOf(int target) {
+      int victim = -1;
+      long oldest = Long.MAX_VALUE;
+      for (int sizeClass = 0; sizeClass < slabsOf.length; sizeClass++) {
+        if (sizeClass == target || slabsOf[sizeClass] == 0)
+          continue;
+
+        long lastUsed = lastUsedOf(sizeClass);
+        if (lastUsed < oldest) {
+          oldest = lastUsed;
+          victim = sizeClass;
+        }
+      }
+      return victim;
+    }
+
+    private long lastUsedOf(int sizeClass) {
+      Entry eldest = eldestOf(sizeClass);
+      return eldest == null ? Long.MIN_VALUE : eldest.lastUsed;
+    }
+
+    @Nullable
+    private Entry eldestOf(int sizeClass) {
+      Iterator<Entry> eldest = lru.get(sizeClass).values().iterator();
+      return eldest.hasNext() ? eldest.next() : null;
+    }
+  }
+}
@@ -0,0 +1,158 @@
+package ru.mail.polis.storage.interaction;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import ru.mail.polis.utils.HashRing;
+import ru.mail.polis.utils.Replicas;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+import static java.lang.String.format;
+
+/**
+ * Interaction with the cluster for a batch of keys.
+ * <p>
+ * Keys are grouped by the nodes of their preference lists, and every node gets a single request for all its keys.
+ * The requests are sent concurrently and the batch is done as soon as every key is acknowledged by {@code ack}
+ * of its replicas, the rest of the requests are not waited for, as with a single key.
+ *
+ * @param <T> answer of a node parsed from its response
+ */
+abstract class AbstractBatchInteraction<T> {
+
+  static final String BATCH_PATH = "/v0/internal/entities";
+
+  final Replicas replicas;
+  final ClusterClient client;
+  final Set<String> keys;
+  final Map<String, List<String>> nodesByKey = new HashMap<>();
+  final Map<String, List<String>> keysByNode = new LinkedHashMap<>();
+
+  AbstractBatchInteraction(Replicas replicas, Collection<String> keys, HashRing ring, ClusterClient client) {
+    this.replicas = replicas;
+    this.client = client;
+    this.keys = new LinkedHashSet<>(keys);
+    for (String key : this.keys) {
+      List<String> nodes = ring.nodesFor(key, replicas.from);
+      nodesByKey.put(key, nodes);
+      for (String node : nodes) {
+        keysByNode.computeIfAbsent(node, n -> new ArrayList<>()).add(key);
+      }
+    }
+  }
+
+  /**
+   * Sends the requests and passes the answers to {@link #accept} until every key is acknowledged
+   */
+  void send() throws NotEnoughReplicasSentAcknowledge {
+    CompletionService<T> requests = new ExecutorCompletionService<>(client.requests());
+    Map<Future<T>, String> sent = new HashMap<>();
+    for (Map.Entry<String, List<String>> node : keysByNode.entrySet()) {
+      try {
+        sent.put(requests.submit(() -> request(node.getKey(), node.getValue())), node.getKey());
+      }
+      catch (RejectedExecutionException e) {
+        missed(node.getKey(), node.getValue());
+      }
+    }
+
+    Map<String, Integer> acks = new HashMap<>();
+    int acknowledged = 0;
+    for (int i = 0; i < sent.size() && acknowledged < keys.size(); i++) {
+      try {
+        Future<T> request = requests.take();
+        String node = sent.get(request);
+        accept(node, await(request));
+        for (String key : keysByNode.get(node)) {
+          if (acks.merge(key, 1, Integer::sum) == replicas.ack) {
+            acknowledged++;
+          }
+        }
+      }
+      catch (IOException e) {
+        // Counted by the client as a failure of the node
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+    }
+
+    if (acknowledged < keys.size()) {
+      throw new NotEnoughReplicasSentAcknowledge(
+        format("Only %d of %d keys of the batch are acknowledged by %d/%d replicas",
+          acknowledged, keys.size(), replicas.ack, replicas.from));
+    }
+  }
+
+  private T request(String node, List<String> keys) throws IOException {
+    try {
+      return makeRequest(node, keys);
+    }
+    catch (IOException | RuntimeException e) {
+      missed(node, keys);
+      throw e;
+    }
+  }
+
+  private static <T> T await(Future<T> request) throws IOException, InterruptedException {
+    try {
+      return request.get();
+    }
+    catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException)
+        throw (IOException) e.getCause();
+
+      throw new IOException(e.getCause());
+    }
+  }
+
+  /**
+   * Executes the request to a node of the batch
+   *
+   * @throws IOException if the node failed or answered with another status, counted by the client either way
+   */
+  HttpResponse execute(HttpUriRequest request, int status) throws IOException {
+    HttpResponse response = client.execute(request);
+    if (response.getStatusLine().getStatusCode() != status) {
+      client.failed(request);
+      throw new IOException(
+        "Batch " + request.getMethod() + " failed on " + request.getURI() + ": " + response.getStatusLine());
+    }
+    return response;
+  }
+
+  /**
+   * Sends the keys to the node
+   *
+   * @throws IOException if the node failed to handle them
+   */
+  protected abstract T makeRequest(String node, List<String> keys) throws IOException;
+
+  /**
+   * Called with the answer of a node on the thread running the batch
+   */
+  protected void accept(String node, T answer) {
+    // Nothing to do by default
+  }
+
+  /**
+   * Called when the node failed to handle the keys, even after the batch is done
+   */
+  protected void missed(String node, List<String> keys) {
+    // Nothing to do by default
+  }
+}
@@ -1,75 +1,442 @@
 package ru.mail.polis.storage.interaction;
 
 import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
 import ru.mail.polis.utils.Replicas;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 import static java.lang.String.format;
 
 /**
  * This class contains implementation of universal interaction logic with cluster.
  * Some specific steps of this algorithm should be overridden by inheritor-classes
+ * <p>
+ * Requests to replicas are sent concurrently and the result is ready as soon as {@code ack} of them succeed,
+ * so the latency is the one of the {@code ack}-th fastest replica. The rest are not cancelled, e.g. writes
+ * still reach all the replicas, but nobody waits for them: a request completed after the result is handled
+ * by the thread which sent it.
+ * <p>
+ * With {@link #hedging} only {@code ack} replicas are asked first. The next replica of the preference list
+ * is asked instead of a failed one right away, and in addition to a late one as the budget allows.
+ * <p>
+ * A response may hold a connection to the replica until its body is read, see {@link ClusterClient#open}.
+ * Every response except the result is released here, and the caller releases the result.
+ * <p>
+ * A request rejected by {@link ClusterClient#requests} because all its threads are busy counts as a failure
+ * of the replica.
  */
 public abstract class AbstractClusterInteraction implements ClusterInteraction {
 
+  /**
+   * {@link ru.mail.polis.utils.HybridClock} timestamp of a version sent to a replica or returned by it
+   */
+  public static final String TIMESTAMP_HEADER = "X-Timestamp";
+
+  /**
+   * Marks the 404 of a replica storing a tombstone, unlike the one of a replica which never saw the key
+   */
+  public static final String TOMBSTONE_HEADER = "X-Tombstone";
+
   private Replicas replicas;
-  private Set<String> topology;
+  private List<String> nodes;
+  private ClusterClient client;
 
-  public AbstractClusterInteraction(Replicas replicas, Set<String> topology) {
+  /**
+   * @param nodes preference list of the key, the first {@code from} of them are asked
+   */
+  public AbstractClusterInteraction(Replicas replicas, List<String> nodes, ClusterClient client) {
     this.replicas = replicas;
-    this.topology = topology;
+    this.nodes = nodes;
+    this.client = client;
   }
 
   @Override
   public HttpResponse run() throws NotEnoughReplicasSentAcknowledge {
     if (replicas.from <= 0) return null;
 
-    List<HttpResponse> succeedResponses = new ArrayList<>();
-    int totalInternalRequests = 0;
-    for (String nodeUrl : topology) {
+    Requests requests = new Requests(hedging());
+    Map<Future<HttpResponse>, String> sent = requests.sent;
 
+    Map<String, HttpResponse> succeedResponses = new LinkedHashMap<>();
+    int failedInternalRequests = 0;
+    while (succeedResponses.size() < replicas.ack
+      && sent.size() + requests.unsent() - failedInternalRequests >= replicas.ack) {
       try {
-        HttpResponse response = makeRequest(nodeUrl);
+        Future<HttpResponse> internalRequest = requests.next();
+        if (internalRequest == null)
+          continue;
+
+        HttpResponse response = await(internalRequest);
         int statusCode = response.getStatusLine().getStatusCode();
         if (wellDone(statusCode)) {
-          succeedResponses.add(response);
+          succeedResponses.put(sent.get(internalRequest), response);
+        }
+        else {
+          release(response);
+          failedInternalRequests++;
         }
       }
       catch (IOException e) {
         e.printStackTrace();
+        failedInternalRequests++;
       }
-      finally {
-        totalInternalRequests++;
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
       }
+      // Replace the failed replicas with the next ones, if not all of them were asked at once
+      int inflight = sent.size() - succeedResponses.size() - failedInternalRequests;
+      requests.send(replicas.ack - succeedResponses.size() - inflight);
+    }
 
-      if (succeedResponses.size() == replicas.from) {
-        return selectResponseFromCluster(succeedResponses);
+    int pending = sent.size() - succeedResponses.size() - failedInternalRequests;
+    boolean awaitRest = awaitRest() && pending > 0;
+    HttpResponse result = null;
+    try {
+      if (succeedResponses.size() < replicas.ack) {
+        throw new NotEnoughReplicasSentAcknowledge(
+          format("For %s command  should response %d/%d but was %d/%d",
+            httpMethod(), replicas.ack, replicas.from, succeedResponses.size(), replicas.from)
+        );
       }
-      if (totalInternalRequests == replicas.from) break;
+      result = selectResponseFromCluster(succeedResponses);
     }
+    finally {
+      for (HttpResponse response : succeedResponses.values()) {
+        if (response != result) {
+          release(response);
+        }
+      }
+      if (awaitRest || pending > 0 && streams()) {
+        requests.abandon(pending, awaitRest ? succeedResponses : null, result);
+      }
+    }
+
+    if (!awaitRest) {
+      resolved(succeedResponses, result);
+    }
+    return result;
+  }
 
-    if (succeedResponses.size() < replicas.ack) {
-      throw new NotEnoughReplicasSentAcknowledge(
-        format("For %s command  should response %d/%d but was %d/%d",
-          httpMethod(), replicas.ack, replicas.from, succeedResponses.size(), replicas.from)
-      );
+  /**
+   * @return true to pass the responses of the replicas answered after {@code ack} to {@link #resolved} as well,
+   *         which is done in background not to delay the result
+   */
+  protected boolean awaitRest() {
+    return false;
+  }
+
+  /**
+   * @return true if {@link #makeRequest} opens responses with the body not read, so the responses
+   *         arrived after the result are released by the threads receiving them
+   */
+  protected boolean streams() {
+    return false;
+  }
+
+  /**
+   * @return hedging to ask {@code ack} replicas first and the rest only as the ones asked fail or are late,
+   *         or null to ask all the {@code from} replicas at once
+   */
+  protected Hedging hedging() {
+    return null;
+  }
+
+  /**
+   * Called with the successful responses by node and the selected one.
+   * The bodies of the responses other than the result are not available.
+   */
+  protected void resolved(Map<String, HttpResponse> responses, HttpResponse result) {
+    // Nothing to do by default
+  }
+
+  private HttpResponse request(String nodeUrl, Hedging hedging) throws IOException {
+    try {
+      long start = System.nanoTime();
+      HttpResponse response = makeRequest(nodeUrl);
+      if (hedging != null) {
+        hedging.record(nodeUrl, System.nanoTime() - start);
+      }
+      if (!wellDone(response.getStatusLine().getStatusCode())) {
+        missed(nodeUrl);
+      }
+      return response;
+    }
+    catch (IOException e) {
+      missed(nodeUrl);
+      throw e;
     }
-    return selectResponseFromCluster(succeedResponses);
   }
 
-  protected abstract HttpResponse selectResponseFromCluster(List<HttpResponse> responses);
+  /**
+   * Called before the {@code hedge} node is asked because the {@code late} one hasn't answered in time,
+   * so the hedge can be made to stand in for the late request, see {@link #makeRequest}
+   */
+  protected void hedged(String late, String hedge) {
+    // Nothing to do by default
+  }
+
+  /**
+   * Called when the node didn't acknowledge the request, even after the result is ready
+   */
+  protected void missed(String nodeUrl) {
+    // Nothing to do by default
+  }
+
+  private static HttpResponse await(Future<HttpResponse> internalRequest) throws IOException, InterruptedException {
+    try {
+      return internalRequest.get();
+    }
+    catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException)
+        throw (IOException) e.getCause();
+
+      throw new IOException(e.getCause());
+    }
+  }
+
+  /**
+   * @param responses successful responses by node in the order they arrived
+   */
+  protected abstract HttpResponse selectResponseFromCluster(Map<String, HttpResponse> responses);
 
 
   protected abstract HttpResponse makeRequest(String nodeUrl) throws IOException;
 
-  String internalUrl(String nodeUrl, String id) {
+  HttpResponse execute(HttpUriRequest request) throws IOException {
+    return client.execute(request);
+  }
+
+  HttpResponse open(HttpUriRequest request) throws IOException {
+    return client.open(request);
+  }
+
+  /**
+   * Releases the connection held by the response, if any
+   */
+  public static void release(HttpResponse response) {
+    if (response instanceof Closeable) {
+      try {
+        ((Closeable) response).close();
+      }
+      catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  static String internalUrl(String nodeUrl, String id) {
     return nodeUrl + "/v0/internal?id=" + id;
   }
 
+  /**
+   * Requests to the replicas of the preference list in its order
+   */
+  private final class Requests {
+    final Map<Future<HttpResponse>, String> sent = new HashMap<>();
+
+    private final Hedging hedging;
+    private final Iterator<String> candidates;
+    private int unsent;
+
+    private final BlockingQueue<Future<HttpResponse>> completed = new LinkedBlockingQueue<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    // Guarded by the lock: set once the caller stops taking the completed requests
+    private boolean abandoned;
+    private int outstanding;
+    private Map<String, HttpResponse> late;
+    private HttpResponse result;
+
+    /**
+     * Time the requests not answered yet become late, a late one is hedged at most once
+     */
+    private final Map<Future<HttpResponse>, Long> deadlines = new HashMap<>();
+
+    Requests(Hedging hedging) {
+      this.hedging = hedging;
+      List<String> replicaNodes = nodes.subList(0, Math.min(replicas.from, nodes.size()));
+      this.candidates = replicaNodes.iterator();
+      this.unsent = replicaNodes.size();
+      if (hedging == null) {
+        send(replicas.from);
+      }
+      else {
+        hedging.started();
+        send(replicas.ack);
+      }
+    }
+
+    int unsent() {
+      return unsent;
+    }
+
+    /**
+     * Sends up to {@code count} more requests, while there are replicas not asked yet
+     */
+    void send(int count) {
+      for (int i = 0; i < count && candidates.hasNext(); i++) {
+        sendNext(null);
+      }
+    }
+
+    /**
+     * @param late node the request is sent in addition to, or null
+     */
+    private void sendNext(String late) {
+      String nodeUrl = candidates.next();
+      unsent--;
+      if (late != null) {
+        hedged(late, nodeUrl);
+      }
+      Request internalRequest = new Request(nodeUrl);
+      try {
+        client.requests().execute(internalRequest);
+      }
+      catch (RejectedExecutionException e) {
+        // Never sent, so neither counted as sent nor left to send: the same as a failed one
+        missed(nodeUrl);
+        return;
+      }
+      sent.put(internalRequest, nodeUrl);
+      if (hedging != null) {
+        long delay = hedging.delayNanos(nodeUrl);
+        if (delay != Long.MAX_VALUE) {
+          deadlines.put(internalRequest, System.nanoTime() + delay);
+        }
+      }
+    }
+
+    /**
+     * @return the next completed request, or null if some requests became late first,
+     *         then one more replica is asked for each of them as the budget allows
+     */
+    Future<HttpResponse> next() throws InterruptedException {
+      if (deadlines.isEmpty() || unsent == 0) {
+        Future<HttpResponse> done = completed.take();
+        deadlines.remove(done);
+        return done;
+      }
 
+      long timeout = Collections.min(deadlines.values()) - System.nanoTime();
+      Future<HttpResponse> done = completed.poll(timeout, TimeUnit.NANOSECONDS);
+      if (done != null) {
+        deadlines.remove(done);
+        return done;
+      }
 
+      long now = System.nanoTime();
+      List<String> late = new ArrayList<>();
+      Iterator<Map.Entry<Future<HttpResponse>, Long>> deadline = deadlines.entrySet().iterator();
+      while (deadline.hasNext()) {
+        Map.Entry<Future<HttpResponse>, Long> request = deadline.next();
+        if (request.getValue() <= now) {
+          deadline.remove();
+          late.add(sent.get(request.getKey()));
+        }
+      }
+      for (int i = 0; i < late.size() && unsent > 0 && hedging.tryHedge(); i++) {
+        sendNext(late.get(i));
+      }
+      return null;
+    }
+
+    /**
+     * Leaves the {@code pending} requests not taken yet to the threads completing them, which release
+     * the responses, since they hold connections, instead of the caller waiting for them.
+     * If {@code responses} are given, the successful ones are added there and {@link #resolved} is called
+     * once all the requests completed.
+     */
+    void abandon(int pending, Map<String, HttpResponse> responses, HttpResponse result) {
+      List<Future<HttpResponse>> ready = new ArrayList<>();
+      lock.lock();
+      try {
+        abandoned = true;
+        outstanding = pending;
+        late = responses;
+        this.result = result;
+        completed.drainTo(ready);
+      }
+      finally {
+        lock.unlock();
+      }
+      for (Future<HttpResponse> request : ready) {
+        arrivedLate((Request) request);
+      }
+    }
+
+    private void arrivedLate(Request request) {
+      HttpResponse response = null;
+      try {
+        // Done already, so doesn't block
+        response = await(request);
+        release(response);
+      }
+      catch (IOException e) {
+        // The node is missed, nothing to compare with
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+
+      boolean last;
+      lock.lock();
+      try {
+        if (late != null && response != null && wellDone(response.getStatusLine().getStatusCode())) {
+          late.put(request.node, response);
+        }
+        last = --outstanding == 0;
+      }
+      finally {
+        lock.unlock();
+      }
+      if (last && late != null && result != null) {
+        resolved(late, result);
+      }
+    }
+
+    /**
+     * Request to a replica queued for the caller once completed, or handled by its own thread
+     * if the caller doesn't wait for it any more
+     */
+    private final class Request extends FutureTask<HttpResponse> {
+      final String node;
+
+      Request(String node) {
+        super(() -> request(node, hedging));
+        this.node = node;
+      }
+
+      @Override
+      protected void done() {
+        lock.lock();
+        try {
+          if (!abandoned) {
+            completed.add(this);
+            return;
+          }
+        }
+        finally {
+          lock.unlock();
+        }
+        arrivedLate(this);
+      }
+    }
+  }
 }
@@ -0,0 +1,207 @@
+package ru.mail.polis.storage.interaction;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.mail.polis.storage.Value;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Framing of the batch requests and responses. Numbers are big-endian, keys are in UTF-8.
+ * <ul>
+ * <li>{@code POST /v0/entities} takes keys {@code | key length (int) | key |} and returns an entry
+ * {@code | key length (int) | key | value length (int) | value |} for every one of them in the same order,
+ * the value length is -1 for an absent or deleted key</li>
+ * <li>{@code PUT /v0/entities} takes entries</li>
+ * <li>{@code POST /v0/internal/entities} takes {@code | key length (int) | key | flags (byte) |}, where {@link #DATA}
+ * asks for the value, and returns versions
+ * {@code | key length (int) | key | state (byte) | timestamp (long) | value length (int) | value |}</li>
+ * <li>{@code PUT /v0/internal/entities} takes entries written at the time in {@link AbstractClusterInteraction#TIMESTAMP_HEADER}</li>
+ * <li>{@code GET /v0/entities?start=&end=} returns entries of the present keys in the range,
+ * and {@code GET /v0/internal/entities?start=&end=} returns versions with values of all the keys in the range.
+ * Both end with {@link #END}, so a truncated range is told from a complete one.</li>
+ * </ul>
+ */
+public final class Batch {
+
+  /**
+   * Asks a replica for the value along with the version
+   */
+  public static final byte DATA = 1;
+
+  static final byte PRESENT = 0;
+  static final byte TOMBSTONE = 1;
+  static final byte ABSENT = 2;
+
+  /**
+   * Key length ending a range
+   */
+  public static final int END = -1;
+
+  private static final int MAX_KEY_LENGTH = 64 * 1024;
+
+  private Batch() {
+  }
+
+  /**
+   * @return next key or null at the end of the stream
+   * @throws IllegalArgumentException if the frame is malformed or truncated
+   */
+  @Nullable
+  public static String readKey(@NotNull DataInputStream in) throws IOException {
+    int first = in.read();
+    if (first < 0)
+      return null;
+
+    try {
+      return readKey(in, first << 24 | in.readUnsignedByte() << 16 | in.readUnsignedShort());
+    }
+    catch (EOFException e) {
+      throw new IllegalArgumentException("Truncated batch", e);
+    }
+  }
+
+  /**
+   * @return next key of a range or null at its {@link #END}
+   * @throws IllegalArgumentException if the frame is malformed or the range is truncated
+   */
+  @Nullable
+  public static String readRangeKey(@NotNull DataInputStream in) throws IOException {
+    try {
+      int length = in.readInt();
+      return length == END ? null : readKey(in, length);
+    }
+    catch (EOFException e) {
+      throw new IllegalArgumentException("Truncated range", e);
+    }
+  }
+
+  private static String readKey(DataInputStream in, int length) throws IOException {
+    if (length <= 0 || length > MAX_KEY_LENGTH)
+      throw new IllegalArgumentException("Illegal key length in batch: " + length);
+
+    byte[] key = new byte[length];
+    in.readFully(key);
+    return new String(key, StandardCharsets.UTF_8);
+  }
+
+  public static void writeEnd(@NotNull DataOutputStream out) throws IOException {
+    out.writeInt(END);
+  }
+
+  /**
+   * @return flags following a key
+   * @throws IllegalArgumentException if the frame is truncated
+   */
+  public static byte readFlags(@NotNull DataInputStream in) throws IOException {
+    try {
+      return in.readByte();
+    }
+    catch (EOFException e) {
+      throw new IllegalArgumentException("Truncated batch", e);
+    }
+  }
+
+  public static void writeKey(@NotNull DataOutputStream out, @NotNull String key) throws IOException {
+    byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  /**
+   * @return value following a key or null if there is none
+   * @throws IllegalArgumentException if the frame is malformed or truncated
+   */
+  @Nullable
+  public static byte[] readValue(@NotNull DataInputStream in) throws IOException {
+    try {
+      int length = in.readInt();
+      if (length < 0)
+        return null;
+
+      byte[] value = new byte[length];
+      in.readFully(value);
+      return value;
+    }
+    catch (EOFException e) {
+      throw new IllegalArgumentException("Truncated batch", e);
+    }
+  }
+
+  public static void writeValue(@NotNull DataOutputStream out, @Nullable ByteBuffer value) throws IOException {
+    if (value == null) {
+      out.writeInt(-1);
+      return;
+    }
+
+    out.writeInt(value.remaining());
+    WritableByteChannel channel = Channels.newChannel(out);
+    while (value.hasRemaining()) {
+      channel.write(value);
+    }
+  }
+
+  /**
+   * @param value stored version or null if the key was never written
+   * @param data  true to send the value of a present version
+   */
+  public static void writeVersion(@NotNull DataOutputStream out, @NotNull String key, @Nullable Value value, boolean data)
+    throws IOException {
+    writeKey(out, key);
+    if (value == null) {
+      out.writeByte(ABSENT);
+      out.writeLong(Long.MIN_VALUE);
+      writeValue(out, null);
+      return;
+    }
+
+    out.writeByte(value.isTombstone() ? TOMBSTONE : PRESENT);
+    out.writeLong(value.timestamp());
+    writeValue(out, data && !value.isTombstone() ? value.data() : null);
+  }
+
+  /**
+   * Version of a key as a replica answered, with or without the value
+   */
+  static final class Version {
+    final byte state;
+    final long timestamp;
+    final byte[] data;
+
+    Version(byte state, long timestamp, byte[] data) {
+      this.state = state;
+      this.timestamp = timestamp;
+      this.data = data;
+    }
+
+    static Version read(DataInputStream in) throws IOException {
+      try {
+        byte state = in.readByte();
+        long timestamp = in.readLong();
+        return new Version(state, timestamp, readValue(in));
+      }
+      catch (EOFException e) {
+        throw new IllegalArgumentException("Truncated batch", e);
+      }
+    }
+
+    boolean newer(Version other) {
+      if (state == ABSENT)
+        return false;
+
+      return other.state == ABSENT
+        || Value.newer(timestamp, state == TOMBSTONE, other.timestamp, other.state == TOMBSTONE);
+    }
+
+    boolean sameAs(Version other) {
+      return state == other.state && timestamp == other.timestamp;
+    }
+  }
+}
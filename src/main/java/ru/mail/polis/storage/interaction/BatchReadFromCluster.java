@@ -0,0 +1,147 @@
+package ru.mail.polis.storage.interaction;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.util.EntityUtils;
+import org.jetbrains.annotations.NotNull;
+import ru.mail.polis.utils.HashRing;
+import ru.mail.polis.utils.Replicas;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+import static org.apache.http.HttpStatus.*;
+
+/**
+ * Reads a batch of keys from the cluster.
+ * <p>
+ * As with a single key, only the first node of the preference list of a key sends the value, the rest send
+ * the version, see {@link Batch}. The newest version of every key wins, and the values of the keys which data nodes
+ * turn out to be stale are fetched from the winners afterwards, with a single batch request per winner.
+ */
+public class BatchReadFromCluster extends AbstractBatchInteraction<Map<String, Batch.Version>> {
+
+  private final Map<String, Batch.Version> latest = new HashMap<>();
+  private final Map<String, String> winners = new HashMap<>();
+
+  private BatchReadFromCluster(Replicas replicas, Collection<String> keys, HashRing ring, ClusterClient client) {
+    super(replicas, keys, ring, client);
+  }
+
+  /**
+   * @return values by key in the order of the keys, null for an absent or deleted key
+   */
+  @NotNull
+  public Map<String, byte[]> run() throws NotEnoughReplicasSentAcknowledge {
+    send();
+
+    Map<String, List<String>> stale = new LinkedHashMap<>();
+    for (String key : keys) {
+      Batch.Version version = latest.get(key);
+      if (version != null && version.state == Batch.PRESENT && version.data == null) {
+        stale.computeIfAbsent(winners.get(key), n -> new ArrayList<>()).add(key);
+      }
+    }
+    for (Map.Entry<String, List<String>> winner : stale.entrySet()) {
+      fetch(winner.getKey(), winner.getValue());
+    }
+
+    Map<String, byte[]> result = new LinkedHashMap<>();
+    for (String key : keys) {
+      Batch.Version version = latest.get(key);
+      result.put(key, version == null || version.state != Batch.PRESENT ? null : version.data);
+    }
+    return result;
+  }
+
+  /**
+   * Reads the values of the keys from the node having their latest versions
+   */
+  private void fetch(String node, List<String> keys) {
+    Map<String, Batch.Version> versions;
+    try {
+      versions = read(node, keys, key -> true);
+    }
+    catch (IOException e) {
+      // Counted by the client
+      throw new NotEnoughReplicasSentAcknowledge(
+        "Can't fetch the latest versions of " + keys.size() + " keys from " + node);
+    }
+
+    for (String key : keys) {
+      Batch.Version version = versions.get(key);
+      if (version == null || version.state == Batch.ABSENT || latest.get(key).newer(version)
+        || version.state == Batch.PRESENT && version.data == null)
+        throw new NotEnoughReplicasSentAcknowledge("Can't fetch the latest version of " + key + " from " + node);
+
+      latest.put(key, version);
+    }
+  }
+
+  @Override
+  protected Map<String, Batch.Version> makeRequest(String node, List<String> keys) throws IOException {
+    return read(node, keys, key -> node.equals(nodesByKey.get(key).get(0)));
+  }
+
+  /**
+   * @param data keys to send the values of along with the versions
+   */
+  private Map<String, Batch.Version> read(String node, List<String> keys, Predicate<String> data) throws IOException {
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(body)) {
+      for (String key : keys) {
+        Batch.writeKey(out, key);
+        out.writeByte(data.test(key) ? Batch.DATA : 0);
+      }
+    }
+
+    HttpPost request = new HttpPost(node + BATCH_PATH);
+    request.setEntity(new ByteArrayEntity(body.toByteArray()));
+    HttpResponse response = execute(request, SC_OK);
+
+    Map<String, Batch.Version> versions = new HashMap<>();
+    try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(EntityUtils.toByteArray(response.getEntity())))) {
+      String key;
+      while ((key = Batch.readKey(in)) != null) {
+        versions.put(key, Batch.Version.read(in));
+      }
+    }
+    catch (IllegalArgumentException e) {
+      client.failed(request);
+      throw new IOException("Malformed batch read from " + node, e);
+    }
+    return versions;
+  }
+
+  /**
+   * Keeps the newest version of every key, preferring the one having the value
+   */
+  @Override
+  protected void accept(String node, Map<String, Batch.Version> versions) {
+    for (Map.Entry<String, Batch.Version> version : versions.entrySet()) {
+      String key = version.getKey();
+      Batch.Version current = latest.get(key);
+      Batch.Version candidate = version.getValue();
+      if (current == null || candidate.newer(current)
+        || candidate.sameAs(current) && current.data == null && candidate.data != null) {
+        latest.put(key, candidate);
+        winners.put(key, node);
+      }
+    }
+  }
+
+  public static BatchReadFromCluster with(Collection<String> keys, Replicas replicas, HashRing ring, ClusterClient client) {
+    return new BatchReadFromCluster(replicas, keys, ring, client);
+  }
+}
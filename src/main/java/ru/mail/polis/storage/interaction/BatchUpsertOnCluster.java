@@ -0,0 +1,75 @@
+package ru.mail.polis.storage.interaction;
+
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.entity.ByteArrayEntity;
+import ru.mail.polis.utils.HashRing;
+import ru.mail.polis.utils.Replicas;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+
+import static org.apache.http.HttpStatus.*;
+
+/**
+ * Writes a batch of entries to the cluster at the same timestamp.
+ * Entries a replica failed to store are kept as hints for it.
+ */
+public class BatchUpsertOnCluster extends AbstractBatchInteraction<Void> {
+
+  private final Map<String, byte[]> entries;
+  private final long timestamp;
+  private final HintedHandoff hints;
+
+  private BatchUpsertOnCluster(Map<String, byte[]> entries, Replicas replicas, HashRing ring, long timestamp,
+                               ClusterClient client, HintedHandoff hints) {
+    super(replicas, entries.keySet(), ring, client);
+    this.entries = entries;
+    this.timestamp = timestamp;
+    this.hints = hints;
+  }
+
+  public void run() throws NotEnoughReplicasSentAcknowledge {
+    send();
+  }
+
+  @Override
+  protected Void makeRequest(String node, List<String> keys) throws IOException {
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(body)) {
+      for (String key : keys) {
+        Batch.writeKey(out, key);
+        Batch.writeValue(out, ByteBuffer.wrap(entries.get(key)));
+      }
+    }
+
+    HttpPut request = new HttpPut(node + BATCH_PATH);
+    request.setHeader(AbstractClusterInteraction.TIMESTAMP_HEADER, Long.toString(timestamp));
+    request.setEntity(new ByteArrayEntity(body.toByteArray()));
+    execute(request, SC_CREATED);
+    return null;
+  }
+
+  @Override
+  protected void missed(String node, List<String> keys) {
+    for (String key : keys) {
+      try {
+        hints.hintUpsert(node, key, entries.get(key), timestamp);
+      }
+      catch (IOException e) {
+        // Counted by the hints as lost
+      }
+    }
+  }
+
+  /**
+   * @param entries values by key, a key is written once
+   */
+  public static BatchUpsertOnCluster with(Map<String, byte[]> entries, Replicas replicas, HashRing ring, long timestamp,
+                                          ClusterClient client, HintedHandoff hints) {
+    return new BatchUpsertOnCluster(entries, replicas, ring, timestamp, client, hints);
+  }
+}
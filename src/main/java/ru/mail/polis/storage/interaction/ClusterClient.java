@@ -0,0 +1,188 @@
+package ru.mail.polis.storage.interaction;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.config.SocketConfig;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+import org.jetbrains.annotations.NotNull;
+import ru.mail.polis.metrics.LatencyHistogram;
+import ru.mail.polis.metrics.Metrics;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * HTTP client for requests between nodes of the cluster.
+ * <p>
+ * Keeps a pool of persistent connections to every node with {@code TCP_NODELAY} set, so a replica request
+ * usually doesn't pay for a TCP handshake. Connect and socket timeouts bound the time a coordinator
+ * waits for a slow or hung node. The time to the response head and the failures are recorded per node,
+ * a request failed with an unexpected answer is counted by the caller with {@link #failed}.
+ * <p>
+ * Requests to the replicas run on {@link #requests()}, as many threads as connections, since a thread would only
+ * wait for a connection otherwise. A request beyond them is rejected rather than queued, and the caller counts
+ * it as a failure of the replica, so an overloaded cluster fails fast instead of piling up threads.
+ */
+public class ClusterClient implements Closeable {
+
+  /**
+   * Pooled connections idle for longer are checked before reuse, the node may have been restarted
+   */
+  private static final int VALIDATE_AFTER_INACTIVITY_MILLIS = 1000;
+
+  private static final long IDLE_THREAD_SECONDS = 60;
+
+  private final PoolingHttpClientConnectionManager connections;
+  private final CloseableHttpClient client;
+  private final ThreadPoolExecutor requests;
+  private final Metrics metrics;
+  private final Map<String, NodeMetrics> nodes = new ConcurrentHashMap<>();
+
+  public ClusterClient(int nodes, int connectionsPerNode, int connectTimeoutMillis, int socketTimeoutMillis) {
+    this(nodes, connectionsPerNode, connectTimeoutMillis, socketTimeoutMillis, new Metrics());
+  }
+
+  /**
+   * @param nodes              number of nodes in the cluster
+   * @param connectionsPerNode maximum number of connections to a single node
+   */
+  public ClusterClient(
+    int nodes,
+    int connectionsPerNode,
+    int connectTimeoutMillis,
+    int socketTimeoutMillis,
+    @NotNull Metrics metrics) {
+    this.metrics = metrics;
+    this.connections = new PoolingHttpClientConnectionManager();
+    connections.setDefaultMaxPerRoute(connectionsPerNode);
+    connections.setMaxTotal(Math.max(1, nodes) * connectionsPerNode);
+    connections.setValidateAfterInactivity(VALIDATE_AFTER_INACTIVITY_MILLIS);
+    connections.setDefaultSocketConfig(SocketConfig.custom()
+      .setTcpNoDelay(true)
+      .setSoKeepAlive(true)
+      .setSoTimeout(socketTimeoutMillis)
+      .build());
+
+    this.client = HttpClients.custom()
+      .setConnectionManager(connections)
+      .setDefaultRequestConfig(RequestConfig.custom()
+        .setConnectTimeout(connectTimeoutMillis)
+        .setConnectionRequestTimeout(connectTimeoutMillis)
+        .setSocketTimeout(socketTimeoutMillis)
+        .build())
+      .build();
+
+    this.requests = new ThreadPoolExecutor(0, connections.getMaxTotal(), IDLE_THREAD_SECONDS, TimeUnit.SECONDS,
+      new SynchronousQueue<>(), r -> {
+      Thread thread = new Thread(r, "replica-request");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   * @return executor of the requests to the replicas, throwing
+   * {@link java.util.concurrent.RejectedExecutionException} if all of its threads are busy
+   */
+  @NotNull
+  public ExecutorService requests() {
+    return requests;
+  }
+
+  /**
+   * Executes the request and reads the whole response body, so the connection returns to the pool right away
+   */
+  @NotNull
+  public HttpResponse execute(@NotNull HttpUriRequest request) throws IOException {
+    try (CloseableHttpResponse response = open(request)) {
+      HttpEntity entity = response.getEntity();
+      if (entity != null) {
+        ByteArrayEntity buffered = new ByteArrayEntity(EntityUtils.toByteArray(entity));
+        buffered.setContentType(ContentType.getOrDefault(entity).toString());
+        response.setEntity(buffered);
+      }
+      return response;
+    }
+  }
+
+  /**
+   * Executes the request leaving the response body in the socket, so it can be streamed.
+   * The response should be closed to release the connection.
+   */
+  @NotNull
+  public CloseableHttpResponse open(@NotNull HttpUriRequest request) throws IOException {
+    NodeMetrics node = nodeMetricsOf(request);
+    long start = System.nanoTime();
+    try {
+      CloseableHttpResponse response = client.execute(request);
+      node.latencyOf(request.getMethod()).recordSince(start);
+      return response;
+    }
+    catch (IOException e) {
+      node.errors.increment();
+      throw e;
+    }
+  }
+
+  /**
+   * Counts a failure of the node which did answer, e.g. with an unexpected status,
+   * a request failed without a response is counted by {@link #open}
+   */
+  void failed(@NotNull HttpUriRequest request) {
+    nodeMetricsOf(request).errors.increment();
+  }
+
+  private NodeMetrics nodeMetricsOf(HttpUriRequest request) {
+    String authority = request.getURI().getRawAuthority();
+    NodeMetrics node = nodes.get(authority);
+    if (node != null)
+      return node;
+
+    return nodes.computeIfAbsent(authority, a -> new NodeMetrics(request.getURI().getScheme() + "://" + a));
+  }
+
+  @Override
+  public void close() throws IOException {
+    requests.shutdown();
+    client.close();
+  }
+
+  /**
+   * Metrics of the requests to a node, looked up once
+   */
+  private final class NodeMetrics {
+    private final String node;
+    private final LongAdder errors;
+    private final Map<String, LatencyHistogram> latencies = new ConcurrentHashMap<>();
+
+    NodeMetrics(String node) {
+      this.node = node;
+      this.errors = metrics.counter("kv_replica_errors_total", "Requests to another node failed",
+        "node", node);
+    }
+
+    LatencyHistogram latencyOf(String method) {
+      LatencyHistogram latency = latencies.get(method);
+      if (latency != null)
+        return latency;
+
+      return latencies.computeIfAbsent(method, m -> metrics.histogram("kv_replica_request_seconds",
+        "Time to the response head of a request to another node", "node", node, "method", m));
+    }
+  }
+}
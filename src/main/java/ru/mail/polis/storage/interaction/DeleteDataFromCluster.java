@@ -2,12 +2,12 @@ package ru.mail.polis.storage.interaction;
 
 import org.apache.http.HttpResponse;
 
-import org.apache.http.client.fluent.Request;
+import org.apache.http.client.methods.HttpDelete;
 import ru.mail.polis.utils.Replicas;
 
 import java.io.IOException;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
 
 import static org.apache.http.HttpStatus.*;
 
@@ -17,23 +17,39 @@ import static org.apache.http.HttpStatus.*;
 public class DeleteDataFromCluster extends AbstractClusterInteraction {
 
   private String id;
+  private long timestamp;
+  private HintedHandoff hints;
 
-  private DeleteDataFromCluster(String id, Replicas replicas, Set<String> topology) {
-    super(replicas, topology);
+  private DeleteDataFromCluster(String id, Replicas replicas, List<String> nodes, long timestamp, ClusterClient client, HintedHandoff hints) {
+    super(replicas, nodes, client);
+    this.timestamp = timestamp;
+    this.hints = hints;
     this.id = id;
   }
 
   @Override
-  protected HttpResponse selectResponseFromCluster(List<HttpResponse> responses) {
-    return responses.get(0);
+  protected HttpResponse selectResponseFromCluster(Map<String, HttpResponse> responses) {
+    return responses.values().iterator().next();
   }
 
   @Override
   protected HttpResponse makeRequest(String nodeUrl) throws IOException {
-    return Request.Delete(internalUrl(nodeUrl, id)).execute().returnResponse();
+    HttpDelete request = new HttpDelete(internalUrl(nodeUrl, id));
+    request.setHeader(TIMESTAMP_HEADER, Long.toString(timestamp));
+    return execute(request);
   }
 
 
+  @Override
+  protected void missed(String nodeUrl) {
+    try {
+      hints.hintDelete(nodeUrl, id, timestamp);
+    }
+    catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
   @Override
   public boolean wellDone(int statusCode) {
     return statusCode == SC_ACCEPTED;
@@ -44,8 +60,8 @@ public class DeleteDataFromCluster extends AbstractClusterInteraction {
     return "DELETE";
   }
 
-  public static ClusterInteraction with(String id, Replicas replicas, Set<String> topology) {
-    return new DeleteDataFromCluster(id, replicas, topology);
+  public static ClusterInteraction with(String id, Replicas replicas, List<String> nodes, long timestamp, ClusterClient client, HintedHandoff hints) {
+    return new DeleteDataFromCluster(id, replicas, nodes, timestamp, client, hints);
   }
 
 }
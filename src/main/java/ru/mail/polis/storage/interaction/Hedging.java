@@ -0,0 +1,121 @@
+package ru.mail.polis.storage.interaction;
+
+import org.jetbrains.annotations.NotNull;
+import ru.mail.polis.metrics.Metrics;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decides when a read asks one more replica because the ones asked are late.
+ * <p>
+ * A read asks {@code ack} replicas first. A replica is late once it hasn't answered for longer than
+ * the {@code percentile} of its recent latencies, and then the next replica of the preference list is asked
+ * too, so a single replica pausing for GC or stalled on disk doesn't delay the read (Dean and Barroso,
+ * "The Tail at Scale"). The extra requests are limited by a budget: every read earns {@code budget} of a
+ * request, e.g. 0.05 allows 5% more requests, and up to {@link #MAX_BURST} unspent ones are saved.
+ */
+public class Hedging {
+
+  /**
+   * Latencies of a node the percentile is taken from
+   */
+  static final int WINDOW = 256;
+
+  /**
+   * A node is never considered late before as many of its latencies are known
+   */
+  static final int MIN_SAMPLES = 16;
+
+  private static final int MAX_BURST = 10;
+  private static final long TOKEN = 1000;
+
+  private final double percentile;
+  private final long earned;
+  private final AtomicLong tokens = new AtomicLong();
+  private final Map<String, Latencies> latencies = new ConcurrentHashMap<>();
+  private final LongAdder hedged;
+
+  /**
+   * @param percentile latency percentile after which a replica is late, from 0 to 100
+   * @param budget     extra requests per read, 0 to ask all the {@code from} replicas at once instead
+   */
+  public Hedging(double percentile, double budget, @NotNull Metrics metrics) {
+    if (percentile <= 0 || percentile > 100)
+      throw new IllegalArgumentException("Hedging percentile should be from 0 to 100: " + percentile);
+
+    if (budget < 0 || budget > 1)
+      throw new IllegalArgumentException("Hedging budget should be from 0 to 1: " + budget);
+
+    this.percentile = percentile;
+    this.earned = Math.round(budget * TOKEN);
+    this.hedged = metrics.counter("kv_hedged_requests_total", "Extra replica requests sent by late reads");
+  }
+
+  boolean enabled() {
+    return earned > 0;
+  }
+
+  /**
+   * Called once per read, earns the budget
+   */
+  void started() {
+    tokens.updateAndGet(current -> Math.min(MAX_BURST * TOKEN, current + earned));
+  }
+
+  /**
+   * @return true if the budget allows one more request, which is spent then
+   */
+  boolean tryHedge() {
+    while (true) {
+      long current = tokens.get();
+      if (current < TOKEN)
+        return false;
+
+      if (tokens.compareAndSet(current, current - TOKEN)) {
+        hedged.increment();
+        return true;
+      }
+    }
+  }
+
+  /**
+   * @param nanos time the node took to answer a read
+   */
+  void record(@NotNull String node, long nanos) {
+    latencies.computeIfAbsent(node, n -> new Latencies()).record(nanos);
+  }
+
+  /**
+   * @return time after which the node is late, {@link Long#MAX_VALUE} if it isn't known yet
+   */
+  long delayNanos(@NotNull String node) {
+    Latencies recent = latencies.get(node);
+    return recent == null ? Long.MAX_VALUE : recent.threshold;
+  }
+
+  /**
+   * Last {@link #WINDOW} latencies of a node with the percentile taken once in a while,
+   * so a read only reads a field
+   */
+  private final class Latencies {
+    private final long[] samples = new long[WINDOW];
+    private int next;
+    private int size;
+    private volatile long threshold = Long.MAX_VALUE;
+
+    synchronized void record(long nanos) {
+      samples[next] = nanos;
+      next = (next + 1) % WINDOW;
+      size = Math.min(WINDOW, size + 1);
+      if (size >= MIN_SAMPLES && next % MIN_SAMPLES == 0) {
+        long[] sorted = Arrays.copyOf(samples, size);
+        Arrays.sort(sorted);
+        threshold = sorted[(int) Math.ceil(percentile / 100 * size) - 1];
+      }
+    }
+  }
+}
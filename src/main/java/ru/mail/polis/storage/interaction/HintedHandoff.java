@@ -0,0 +1,522 @@
+package ru.mail.polis.storage.interaction;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.util.EntityUtils;
+import org.jetbrains.annotations.NotNull;
+import ru.mail.polis.metrics.Metrics;
+
+import java.io.*;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import static org.apache.http.HttpStatus.*;
+
+/**
+ * Keeps writes missed by unavailable replicas and delivers them once the replicas are back.
+ * <p>
+ * A coordinator appends every upsert or delete a replica failed to acknowledge to the hint log of that replica
+ * in {@code hints} directory next to the data. Every {@link #DELIVERY_PERIOD_MILLIS} a background sender
+ * forces the logs and asks every replica having hints for {@code /v0/status}. The log of a replica reporting
+ * {@code ONLINE} is set aside, so new hints go to a fresh one, and replayed in batches of {@link #BATCH_SIZE}
+ * at most at the configured rate. A log is removed once fully delivered. The offset of the first hint not
+ * delivered yet is saved after every batch, so a failed delivery is retried from there rather than from the
+ * beginning. Hints keep the timestamps of the original writes, so a hint never overwrites a newer value.
+ * <p>
+ * A hint doesn't count towards {@code ack}, so the write is acknowledged regardless of it, and the logs are
+ * forced by the sender only: the hints appended within the last {@link #DELIVERY_PERIOD_MILLIS} may be lost
+ * on a crash of the coordinator, then the replica gets the value by read repair only. So do the hints which failed
+ * to be appended, counted by {@code kv_hints_lost_total}.
+ * <p>
+ * A node answering 5xx, e.g. 503 when overloaded, or not answering at all is retried with exponential backoff.
+ * A hint rejected with 4xx will never be accepted, so it is moved to the {@code .rejected} log of the node
+ * and the delivery goes on. A log corrupted in the middle is kept as {@code .corrupted} with the count
+ * of the bytes which couldn't be delivered reported; a partially written last hint is reported as lost.
+ * <p>
+ * Every record has the following layout:
+ * <pre>
+ * | crc (int) | flags (byte) | timestamp (long) | key length (int) | value length (int) | key | value |
+ * </pre>
+ */
+public class HintedHandoff implements Closeable {
+
+  static final long DELIVERY_PERIOD_MILLIS = 1000;
+  static final int BATCH_SIZE = 100;
+
+  private static final String DIR = "hints";
+  private static final String SUFFIX = ".log";
+  private static final String DELIVERY_SUFFIX = ".delivery";
+  private static final String OFFSET_SUFFIX = ".offset";
+  private static final String REJECTED_SUFFIX = ".rejected";
+  private static final String CORRUPTED_SUFFIX = ".corrupted";
+  private static final int MAX_BACKOFF_SHIFT = 6;
+  private static final int HEADER_SIZE = 4 + 1 + 8 + 4 + 4;
+  private static final byte DELETE_FLAG = 1;
+
+  private final File dir;
+  private final ClusterClient client;
+  private final int maxHintsPerSecond;
+  private final LongAdder lost;
+  private final Map<String, HintLog> logs = new ConcurrentHashMap<>();
+  private final Map<String, HintLog> rejected = new ConcurrentHashMap<>();
+  // Accessed by the sender only
+  private final Map<String, Backoff> backoffs = new HashMap<>();
+  private final ScheduledExecutorService sender = Executors.newSingleThreadScheduledExecutor(r -> {
+    Thread thread = new Thread(r, "hinted-handoff");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  /**
+   * @param data              node data directory
+   * @param maxHintsPerSecond delivery rate limit, so replay doesn't starve live requests
+   */
+  public HintedHandoff(@NotNull File data, @NotNull ClusterClient client, int maxHintsPerSecond) throws IOException {
+    this(data, client, maxHintsPerSecond, new Metrics());
+  }
+
+  public HintedHandoff(@NotNull File data, @NotNull ClusterClient client, int maxHintsPerSecond,
+                       @NotNull Metrics metrics) throws IOException {
+    if (maxHintsPerSecond <= 0)
+      throw new IllegalArgumentException("Hint delivery rate should be positive: " + maxHintsPerSecond);
+
+    this.dir = new File(data, DIR);
+    this.client = client;
+    this.maxHintsPerSecond = maxHintsPerSecond;
+    this.lost = metrics.counter("kv_hints_lost_total", "Hints failed to be appended to the log");
+    if (!dir.isDirectory() && !dir.mkdirs())
+      throw new IOException("Can't create " + dir);
+
+    sender.scheduleWithFixedDelay(() -> {
+      // An exception escaping the task would cancel the delivery for good
+      try {
+        deliver();
+      }
+      catch (RuntimeException e) {
+        e.printStackTrace();
+      }
+    }, DELIVERY_PERIOD_MILLIS, DELIVERY_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Stores the upsert the node missed
+   */
+  public void hintUpsert(@NotNull String node, @NotNull String id, @NotNull byte[] data, long timestamp) throws IOException {
+    append(node, (byte) 0, timestamp, id, data);
+  }
+
+  /**
+   * Stores the delete the node missed
+   */
+  public void hintDelete(@NotNull String node, @NotNull String id, long timestamp) throws IOException {
+    append(node, DELETE_FLAG, timestamp, id, new byte[]{});
+  }
+
+  private void append(String node, byte flags, long timestamp, String id, byte[] value) throws IOException {
+    try {
+      logOf(node).append(flags, timestamp, id, value);
+    }
+    catch (IOException e) {
+      lost.increment();
+      throw e;
+    }
+  }
+
+  private HintLog logOf(String node) {
+    return logs.computeIfAbsent(node, n -> new HintLog(new File(dir, encode(n) + SUFFIX)));
+  }
+
+  private void deliver() {
+    File[] files = dir.listFiles();
+    if (files == null)
+      return;
+
+    Set<String> nodes = new HashSet<>();
+    for (File file : files) {
+      String name = file.getName();
+      if (name.endsWith(SUFFIX)) {
+        nodes.add(decode(name.substring(0, name.length() - SUFFIX.length())));
+      }
+      else if (name.endsWith(DELIVERY_SUFFIX)) {
+        nodes.add(decode(name.substring(0, name.length() - DELIVERY_SUFFIX.length())));
+      }
+    }
+
+    for (String node : nodes) {
+      Backoff backoff = backoffs.get(node);
+      if (backoff != null && System.nanoTime() < backoff.retryAt)
+        continue;
+
+      try {
+        HintLog log = logOf(node);
+        log.force();
+        if (!isOnline(node))
+          continue;
+
+        File delivery = new File(dir, encode(node) + DELIVERY_SUFFIX);
+        if (!delivery.exists()) {
+          log.moveTo(delivery);
+        }
+        if (!delivery.exists())
+          continue;
+
+        if (replay(node, delivery)) {
+          // Always the offset first, since left alone by a crash it would be applied to the next log
+          java.nio.file.Files.deleteIfExists(offsetFile(node).toPath());
+          java.nio.file.Files.deleteIfExists(delivery.toPath());
+          backoffs.remove(node);
+        }
+        else {
+          backoffs.computeIfAbsent(node, n -> new Backoff()).failed();
+        }
+      }
+      catch (IOException e) {
+        e.printStackTrace();
+      }
+      catch (RuntimeException e) {
+        e.printStackTrace();
+        backoffs.computeIfAbsent(node, n -> new Backoff()).failed();
+      }
+    }
+  }
+
+  private boolean isOnline(String node) {
+    try {
+      HttpResponse response = client.execute(new HttpGet(node + "/v0/status"));
+      return response.getStatusLine().getStatusCode() == SC_OK
+        && "ONLINE".equals(EntityUtils.toString(response.getEntity()));
+    }
+    catch (IOException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Delivers the hints starting from the saved offset
+   *
+   * @return true if the log is done with, i.e. every hint is delivered, rejected or reported as lost
+   */
+  private boolean replay(String node, File file) throws IOException {
+    File checkpoint = offsetFile(node);
+    long length = file.length();
+    long offset = readOffset(checkpoint, length);
+    long corruptedAt = -1;
+    long batchStart = System.nanoTime();
+    int batch = 0;
+    try (FileInputStream stream = new FileInputStream(file)) {
+      stream.getChannel().position(offset);
+      DataInputStream in = new DataInputStream(new BufferedInputStream(stream, 64 * 1024));
+      CRC32 crc = new CRC32();
+      byte[] header = new byte[HEADER_SIZE];
+      while (offset < length) {
+        if (length - offset < HEADER_SIZE || !readFully(in, header)) {
+          lost(file, offset);
+          break;
+        }
+
+        ByteBuffer fields = ByteBuffer.wrap(header);
+        int expectedCrc = fields.getInt();
+        byte flags = fields.get();
+        long timestamp = fields.getLong();
+        int keyLength = fields.getInt();
+        int valueLength = fields.getInt();
+        if (keyLength < 0 || valueLength < 0) {
+          corruptedAt = offset;
+          break;
+        }
+        long end = offset + HEADER_SIZE + keyLength + valueLength;
+        if (end > length) {
+          lost(file, offset);
+          break;
+        }
+
+        byte[] key = new byte[keyLength];
+        byte[] value = new byte[valueLength];
+        if (!readFully(in, key) || !readFully(in, value)) {
+          lost(file, offset);
+          break;
+        }
+
+        crc.reset();
+        crc.update(header, 4, HEADER_SIZE - 4);
+        crc.update(key);
+        crc.update(value);
+        if ((int) crc.getValue() != expectedCrc) {
+          corruptedAt = offset;
+          break;
+        }
+
+        String id = new String(key, StandardCharsets.UTF_8);
+        int status = send(node, flags, timestamp, id, value);
+        if (status >= SC_BAD_REQUEST && status < SC_INTERNAL_SERVER_ERROR) {
+          reject(node, status, flags, timestamp, id, value);
+        }
+        else if (status < SC_OK || status >= SC_MULTIPLE_CHOICES) {
+          writeOffset(checkpoint, offset);
+          return false;
+        }
+
+        offset = end;
+        if (++batch == BATCH_SIZE) {
+          writeOffset(checkpoint, offset);
+          throttle(batchStart, batch);
+          batchStart = System.nanoTime();
+          batch = 0;
+        }
+      }
+    }
+
+    if (corruptedAt >= 0) {
+      File kept = new File(dir, encode(node) + "." + System.currentTimeMillis() + CORRUPTED_SUFFIX);
+      java.nio.file.Files.deleteIfExists(checkpoint.toPath());
+      java.nio.file.Files.move(file.toPath(), kept.toPath(), StandardCopyOption.ATOMIC_MOVE);
+      new IOException(String.format("Hint log %s is corrupted at %d, %d bytes of hints not delivered are kept in %s",
+        file, corruptedAt, length - corruptedAt, kept)).printStackTrace();
+    }
+    return true;
+  }
+
+  /**
+   * Reports the last hint written partially, e.g. by a crash, which is all the log has after the offset
+   */
+  private static void lost(File file, long offset) {
+    new IOException(String.format("Hint log %s ends with a partially written hint at %d, 1 hint is lost",
+      file, offset)).printStackTrace();
+  }
+
+  private void reject(String node, int status, byte flags, long timestamp, String id, byte[] value) throws IOException {
+    File file = new File(dir, encode(node) + REJECTED_SUFFIX);
+    rejected.computeIfAbsent(node, n -> new HintLog(file)).append(flags, timestamp, id, value);
+    new IOException(String.format("Node %s rejected the hint of %s with %d, it is kept in %s",
+      node, id, status, file)).printStackTrace();
+  }
+
+  private File offsetFile(String node) {
+    return new File(dir, encode(node) + OFFSET_SUFFIX);
+  }
+
+  private static long readOffset(File checkpoint, long length) throws IOException {
+    if (!checkpoint.exists())
+      return 0;
+
+    try (DataInputStream in = new DataInputStream(new FileInputStream(checkpoint))) {
+      long offset = in.readLong();
+      return offset >= 0 && offset <= length ? offset : 0;
+    }
+    catch (EOFException e) {
+      return 0;
+    }
+  }
+
+  /**
+   * Replaces the checkpoint atomically, so it is either the old or the new offset after a crash
+   */
+  private static void writeOffset(File checkpoint, long offset) throws IOException {
+    File temp = new File(checkpoint.getPath() + ".tmp");
+    try (DataOutputStream out = new DataOutputStream(new FileOutputStream(temp))) {
+      out.writeLong(offset);
+    }
+    java.nio.file.Files.move(temp.toPath(), checkpoint.toPath(),
+      StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  /**
+   * @return status of the response, 0 if the node didn't answer
+   */
+  private int send(String node, byte flags, long timestamp, String id, byte[] value) {
+    String url = AbstractClusterInteraction.internalUrl(node, id);
+    HttpUriRequest request;
+    if (flags == DELETE_FLAG) {
+      request = new HttpDelete(url);
+    }
+    else {
+      HttpPut put = new HttpPut(url);
+      put.setEntity(new ByteArrayEntity(value));
+      request = put;
+    }
+    request.setHeader(AbstractClusterInteraction.TIMESTAMP_HEADER, Long.toString(timestamp));
+
+    try {
+      return client.execute(request).getStatusLine().getStatusCode();
+    }
+    catch (IOException e) {
+      return 0;
+    }
+  }
+
+  private void throttle(long batchStart, int batch) {
+    long budget = TimeUnit.SECONDS.toNanos(batch) / maxHintsPerSecond;
+    long spent = System.nanoTime() - batchStart;
+    if (spent < budget) {
+      try {
+        TimeUnit.NANOSECONDS.sleep(budget - spent);
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private static boolean readFully(DataInputStream in, byte[] buffer) throws IOException {
+    try {
+      in.readFully(buffer);
+      return true;
+    }
+    catch (EOFException e) {
+      return false;
+    }
+  }
+
+  private static String encode(String node) {
+    try {
+      return URLEncoder.encode(node, "UTF-8");
+    }
+    catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static String decode(String name) {
+    try {
+      return URLDecoder.decode(name, "UTF-8");
+    }
+    catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Stops delivery and forces the logs
+   */
+  @Override
+  public void close() throws IOException {
+    sender.shutdownNow();
+    try {
+      sender.awaitTermination(1, TimeUnit.MINUTES);
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    for (HintLog log : logs.values()) {
+      log.close();
+    }
+    for (HintLog log : rejected.values()) {
+      log.close();
+    }
+  }
+
+  /**
+   * Delay of the next delivery to a node which failed to take hints, doubled by every failure
+   */
+  private static final class Backoff {
+    private int failures;
+    private long retryAt;
+
+    void failed() {
+      long delay = DELIVERY_PERIOD_MILLIS << Math.min(failures++, MAX_BACKOFF_SHIFT);
+      retryAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+    }
+  }
+
+  /**
+   * Hints for a single node. The file is opened on the first append after being set aside for delivery.
+   * Request handlers append holding a lock rather than a monitor, so a virtual thread doesn't pin its carrier.
+   */
+  private static final class HintLog implements Closeable {
+    private final File file;
+    private final ReentrantLock lock = new ReentrantLock();
+    private FileChannel channel;
+
+    HintLog(File file) {
+      this.file = file;
+    }
+
+    void append(byte flags, long timestamp, String id, byte[] value) throws IOException {
+      byte[] key = id.getBytes(StandardCharsets.UTF_8);
+      ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + key.length + value.length);
+      record.position(4);
+      record.put(flags).putLong(timestamp).putInt(key.length).putInt(value.length).put(key).put(value);
+      CRC32 crc = new CRC32();
+      crc.update(record.array(), 4, record.capacity() - 4);
+      record.putInt(0, (int) crc.getValue());
+      record.flip();
+
+      lock.lock();
+      try {
+        if (channel == null) {
+          channel = FileChannel.open(file.toPath(),
+            StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        }
+        while (record.hasRemaining()) {
+          channel.write(record);
+        }
+      }
+      finally {
+        lock.unlock();
+      }
+    }
+
+    void force() throws IOException {
+      lock.lock();
+      try {
+        if (channel != null) {
+          channel.force(false);
+        }
+      }
+      finally {
+        lock.unlock();
+      }
+    }
+
+    /**
+     * Renames the log, so the following hints go to a new file
+     */
+    void moveTo(File target) throws IOException {
+      lock.lock();
+      try {
+        close();
+        if (file.exists()) {
+          java.nio.file.Files.move(file.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        }
+      }
+      finally {
+        lock.unlock();
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      lock.lock();
+      try {
+        if (channel != null) {
+          channel.force(false);
+          channel.close();
+          channel = null;
+        }
+      }
+      finally {
+        lock.unlock();
+      }
+    }
+  }
+}
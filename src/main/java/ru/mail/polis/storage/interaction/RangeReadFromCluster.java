@@ -0,0 +1,234 @@
+package ru.mail.polis.storage.interaction;
+
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.mail.polis.storage.Entry;
+import ru.mail.polis.storage.Value;
+import ru.mail.polis.utils.Replicas;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+import static java.lang.String.format;
+import static org.apache.http.HttpStatus.*;
+
+/**
+ * Reads a range of keys from every node of the cluster.
+ * <p>
+ * Every node streams its versions of the range in key order, tombstones included, see {@link Batch}.
+ * The streams are merged lazily as the result is read, keeping the newest version of every key,
+ * so a range of any size takes memory for a single version per node. A node can't tell which keys of the range
+ * it replicates, so the range is refused once more than {@code from - ack} nodes failed to send it:
+ * then some key may have less than {@code ack} replicas answered. A node which can't read ranges at all fails
+ * the whole range with {@link UnsupportedOperationException}, as the local read would.
+ */
+public class RangeReadFromCluster implements Closeable {
+
+  private final String start;
+  private final String end;
+  private final Collection<String> nodes;
+  private final ClusterClient client;
+  private final int tolerated;
+  private final List<CloseableHttpResponse> responses = new ArrayList<>();
+  private final PriorityQueue<Head> heads = new PriorityQueue<>();
+  private int failed;
+
+  private RangeReadFromCluster(String start, String end, Replicas replicas, Collection<String> nodes,
+                               ClusterClient client) {
+    this.start = start;
+    this.end = end;
+    this.nodes = nodes;
+    this.client = client;
+    this.tolerated = Math.min(replicas.from, nodes.size()) - replicas.ack;
+  }
+
+  /**
+   * Opens the streams of all the nodes
+   *
+   * @return entries of the range in key order, tombstones included. The iterator throws
+   * {@link UncheckedIOException} if too many nodes fail while it is read.
+   */
+  @NotNull
+  public Iterator<Entry> run() throws NotEnoughReplicasSentAcknowledge {
+    List<Future<CloseableHttpResponse>> requests = new ArrayList<>(nodes.size());
+    for (String node : nodes) {
+      try {
+        requests.add(client.requests().submit(() -> request(node)));
+      }
+      catch (RejectedExecutionException e) {
+        failed++;
+      }
+    }
+
+    UnsupportedOperationException unsupported = null;
+    for (Future<CloseableHttpResponse> request : requests) {
+      try {
+        CloseableHttpResponse response = request.get();
+        responses.add(response);
+        advance(new DataInputStream(new BufferedInputStream(response.getEntity().getContent())), response);
+      }
+      catch (ExecutionException e) {
+        if (e.getCause() instanceof UnsupportedOperationException) {
+          unsupported = (UnsupportedOperationException) e.getCause();
+        }
+        else {
+          e.printStackTrace();
+          failed++;
+        }
+      }
+      catch (IOException | IllegalArgumentException e) {
+        e.printStackTrace();
+        failed++;
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        failed = Integer.MAX_VALUE;
+        break;
+      }
+    }
+
+    if (unsupported != null) {
+      close();
+      throw unsupported;
+    }
+    if (failed > tolerated) {
+      close();
+      throw new NotEnoughReplicasSentAcknowledge(
+        format("Only %d of %d nodes sent the range", nodes.size() - failed, nodes.size()));
+    }
+    return new MergedRange();
+  }
+
+  private CloseableHttpResponse request(String node) throws IOException {
+    String url = node + AbstractBatchInteraction.BATCH_PATH + "?start=" + encode(start)
+      + (end == null ? "" : "&end=" + encode(end));
+    CloseableHttpResponse response = client.open(new HttpGet(url));
+    int status = response.getStatusLine().getStatusCode();
+    if (status != SC_OK) {
+      response.close();
+      if (status == SC_NOT_IMPLEMENTED)
+        throw new UnsupportedOperationException("Range read isn't supported on " + node);
+
+      throw new IOException("Range read failed on " + node + ": " + response.getStatusLine());
+    }
+    return response;
+  }
+
+  /**
+   * The node decodes the query with {@link java.net.URI#getQuery()}, which takes {@code +} literally
+   */
+  private static String encode(String key) {
+    try {
+      return URLEncoder.encode(key, "UTF-8").replace("+", "%20");
+    }
+    catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Queues the next version of the stream unless it is over
+   */
+  private void advance(DataInputStream in, CloseableHttpResponse response) throws IOException {
+    String key = Batch.readRangeKey(in);
+    if (key != null) {
+      heads.add(new Head(key, Batch.Version.read(in), in, response));
+    }
+  }
+
+  /**
+   * Drops a stream which broke off, the range goes on while the rest of the nodes are enough
+   */
+  private void advanceOrDrop(Head head) {
+    try {
+      advance(head.in, head.response);
+    }
+    catch (IOException | IllegalArgumentException e) {
+      e.printStackTrace();
+      AbstractClusterInteraction.release(head.response);
+      if (++failed > tolerated)
+        throw new UncheckedIOException(new IOException("Too many nodes failed to send the range", e));
+    }
+  }
+
+  /**
+   * Releases the streams left unread
+   */
+  @Override
+  public void close() {
+    for (CloseableHttpResponse response : responses) {
+      AbstractClusterInteraction.release(response);
+    }
+  }
+
+  public static RangeReadFromCluster with(@NotNull String start, @Nullable String end, Replicas replicas,
+                                          Collection<String> nodes, ClusterClient client) {
+    return new RangeReadFromCluster(start, end, replicas, nodes, client);
+  }
+
+  private final class MergedRange implements Iterator<Entry> {
+
+    @Override
+    public boolean hasNext() {
+      return !heads.isEmpty();
+    }
+
+    @Override
+    public Entry next() {
+      Head newest = heads.poll();
+      if (newest == null)
+        throw new NoSuchElementException();
+
+      advanceOrDrop(newest);
+      while (!heads.isEmpty() && heads.peek().key.equals(newest.key)) {
+        Head other = heads.poll();
+        advanceOrDrop(other);
+        if (other.version.newer(newest.version)) {
+          newest = other;
+        }
+      }
+
+      Batch.Version version = newest.version;
+      Value value = version.state == Batch.TOMBSTONE
+        ? Value.tombstone(version.timestamp)
+        : Value.present(ByteBuffer.wrap(version.data), version.timestamp);
+      return new Entry(newest.key, value);
+    }
+  }
+
+  private static final class Head implements Comparable<Head> {
+    final String key;
+    final Batch.Version version;
+    final DataInputStream in;
+    final CloseableHttpResponse response;
+
+    Head(String key, Batch.Version version, DataInputStream in, CloseableHttpResponse response) {
+      this.key = key;
+      this.version = version;
+      this.in = in;
+      this.response = response;
+    }
+
+    @Override
+    public int compareTo(@NotNull Head other) {
+      return key.compareTo(other.key);
+    }
+  }
+}
@@ -1,74 +1,187 @@
 package ru.mail.polis.storage.interaction;
 
+import org.apache.http.Header;
 import org.apache.http.HttpResponse;
-import org.apache.http.client.fluent.Request;
-import ru.mail.polis.storage.Tombstone;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
 import ru.mail.polis.utils.Replicas;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static org.apache.http.HttpStatus.*;
 
 /**
- * Represents read data from cluster operation
+ * Represents read data from cluster operation.
+ * <p>
+ * Only the first node of the preference list is asked for the data, the rest answer {@code HEAD} requests
+ * with the version timestamp in {@link #TIMESTAMP_HEADER}. A replica storing a tombstone answers 404
+ * with {@link #TOMBSTONE_HEADER}, so deletes are told from the data without looking at bodies.
+ * The newest version wins, see {@link ru.mail.polis.storage.Value}, so the body is transferred once
+ * unless the data node turns out to be stale, then the data is fetched from the winner.
+ * <p>
+ * The winner is chosen by the headers only and its body is left in the socket, so the caller streams it
+ * to the client and then {@link #release releases} the response.
+ * <p>
+ * Replicas answered with an older version are repaired in background from a replica having the winning one.
+ * <p>
+ * The replicas are asked as {@link Hedging} allows, except for the reads sampled by {@link ReadRepair}
+ * to compare all of them. A replica asked because a data node is late is asked for the data as well,
+ * so its answer serves the read without one more request.
  */
 public class ReadDataFromCluster extends AbstractClusterInteraction {
 
+  private static final long ABSENT = Long.MIN_VALUE;
+
   private String id;
+  private List<String> nodes;
+  /**
+   * Nodes asked for the data rather than the version only
+   */
+  private Set<String> dataNodes = ConcurrentHashMap.newKeySet();
   private List<Integer> availableStatusCodes = Arrays.asList(SC_OK, SC_NOT_FOUND);
 
-  private Tombstone tombstone = new Tombstone();
-
-  private ReadDataFromCluster(String id, Replicas replicas, Set<String> topology) {
-    super(replicas, topology);
+  private ReadRepair repair;
+  private Hedging hedging;
+  private boolean awaitRest;
+
+  private ReadDataFromCluster(
+    String id,
+    Replicas replicas,
+    List<String> nodes,
+    ClusterClient client,
+    ReadRepair repair,
+    Hedging hedging) {
+    super(replicas, nodes, client);
     this.id = id;
+    this.nodes = nodes;
+    if (!nodes.isEmpty()) {
+      dataNodes.add(nodes.get(0));
+    }
+    this.repair = repair;
+    this.hedging = hedging;
+    this.awaitRest = repair.sample();
   }
 
   @Override
-  protected HttpResponse selectResponseFromCluster(List<HttpResponse> responses) {
-    boolean noAckReplicasHasContent = responses.stream().allMatch(this::hasEmptyContent);
-    boolean dataDeletedOnSomeReplicas = responses.stream().anyMatch(this::hasDeletedData);
+  protected HttpResponse selectResponseFromCluster(Map<String, HttpResponse> responses) {
+    String winner = null;
+    for (Map.Entry<String, HttpResponse> response : responses.entrySet()) {
+      if (winner == null || newer(response.getValue(), responses.get(winner))
+        || sameVersion(response.getValue(), responses.get(winner)) && isDataNode(response.getKey())) {
+        winner = response.getKey();
+      }
+    }
 
-    Optional<HttpResponse> optResponse = responses.stream().filter(this::notFound).findFirst();
-    if (noAckReplicasHasContent || dataDeletedOnSomeReplicas) {
-      return optResponse.get();
+    HttpResponse result = responses.get(winner);
+    if (!ok(result) || isDataNode(winner))
+      return result;
+
+    // The data node is stale or hasn't answered yet, fetch the body from the winner or its equals
+    for (Map.Entry<String, HttpResponse> response : responses.entrySet()) {
+      if (sameVersion(response.getValue(), result)) {
+        try {
+          HttpResponse data = open(new HttpGet(internalUrl(response.getKey(), id)));
+          if (wellDone(data.getStatusLine().getStatusCode()))
+            return data;
+
+          release(data);
+        }
+        catch (IOException e) {
+          e.printStackTrace();
+        }
+      }
     }
-    return responses.stream().filter(this::ok).findFirst().orElse(responses.get(0));
+    throw new NotEnoughReplicasSentAcknowledge("Can't fetch the latest version of " + id);
   }
 
-
-  private boolean hasEmptyContent(HttpResponse response) {
-    return response.getEntity().getContentLength() == 0;
+  @Override
+  protected boolean awaitRest() {
+    return awaitRest;
   }
 
-  private boolean hasDeletedData(HttpResponse response) {
-    return tombstone.isSetIn(getResponseContent(response));
+  @Override
+  protected Hedging hedging() {
+    return awaitRest || !hedging.enabled() ? null : hedging;
   }
 
-  private boolean notFound(HttpResponse response) {
-    return response.getStatusLine().getStatusCode() == SC_NOT_FOUND;
+  @Override
+  protected boolean streams() {
+    return true;
   }
 
-  private boolean ok(HttpResponse response) {
-    return response.getStatusLine().getStatusCode() == SC_OK;
+  @Override
+  protected void resolved(Map<String, HttpResponse> responses, HttpResponse result) {
+    long timestamp = timestampOf(result);
+    if (timestamp == ABSENT)
+      return;
+
+    if (ok(result)) {
+      String source = null;
+      for (Map.Entry<String, HttpResponse> response : responses.entrySet()) {
+        if (sameVersion(response.getValue(), result)) {
+          source = response.getKey();
+        }
+      }
+      for (Map.Entry<String, HttpResponse> response : responses.entrySet()) {
+        if (source != null && newer(result, response.getValue())) {
+          repair.upsert(response.getKey(), id, source);
+        }
+      }
+    }
+    else if (isTombstone(result)) {
+      responses.forEach((node, response) -> {
+        if (newer(result, response)) {
+          repair.delete(node, id, timestamp);
+        }
+      });
+    }
   }
 
-  private byte[] getResponseContent(HttpResponse response) {
-    final ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-    try {
-      response.getEntity().writeTo(byteArrayOutputStream);
-    }
-    catch (IOException e) {
-      return new byte[]{};
+  @Override
+  protected void hedged(String late, String hedge) {
+    if (dataNodes.contains(late)) {
+      dataNodes.add(hedge);
     }
-    return byteArrayOutputStream.toByteArray();
+  }
+
+  private boolean isDataNode(String node) {
+    return dataNodes.contains(node);
+  }
+
+  private boolean newer(HttpResponse response, HttpResponse other) {
+    long timestamp = timestampOf(response);
+    long otherTimestamp = timestampOf(other);
+    return timestamp > otherTimestamp
+      || timestamp == otherTimestamp && isTombstone(response) && !isTombstone(other);
+  }
+
+  private boolean sameVersion(HttpResponse response, HttpResponse other) {
+    return timestampOf(response) == timestampOf(other)
+      && isTombstone(response) == isTombstone(other)
+      && response.getStatusLine().getStatusCode() == other.getStatusLine().getStatusCode();
+  }
+
+  private static long timestampOf(HttpResponse response) {
+    Header header = response.getFirstHeader(TIMESTAMP_HEADER);
+    return header == null ? ABSENT : Long.parseLong(header.getValue());
+  }
+
+  private static boolean isTombstone(HttpResponse response) {
+    return response.containsHeader(TOMBSTONE_HEADER);
+  }
+
+  private boolean ok(HttpResponse response) {
+    return response.getStatusLine().getStatusCode() == SC_OK;
   }
 
   @Override
   protected HttpResponse makeRequest(String nodeUrl) throws IOException {
-    return Request.Get(internalUrl(nodeUrl, id)).execute().returnResponse();
+    if (isDataNode(nodeUrl))
+      return open(new HttpGet(internalUrl(nodeUrl, id)));
+
+    return execute(new HttpHead(internalUrl(nodeUrl, id)));
   }
 
   @Override
@@ -81,8 +194,14 @@ public class ReadDataFromCluster extends AbstractClusterInteraction {
     return "GET";
   }
 
-  public static ClusterInteraction with(String id, Replicas replicas, Set<String> topology) {
-    return new ReadDataFromCluster(id, replicas, topology);
+  public static ClusterInteraction with(
+    String id,
+    Replicas replicas,
+    List<String> nodes,
+    ClusterClient client,
+    ReadRepair repair,
+    Hedging hedging) {
+    return new ReadDataFromCluster(id, replicas, nodes, client, repair, hedging);
   }
 
 }
@@ -0,0 +1,135 @@
+package ru.mail.polis.storage.interaction;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.util.EntityUtils;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.apache.http.HttpStatus.*;
+
+/**
+ * Pushes the version selected by a read to the replicas which answered with a stale one.
+ * <p>
+ * Repairs are sent in background, so the client doesn't wait for them. The data is streamed to the stale
+ * replica from a replica having the selected version, so the coordinator never buffers it.
+ * A repair the replica failed to acknowledge is kept as a hint. Normally only the replicas answered before {@code ack} are compared,
+ * but a {@code chance} fraction of reads also waits for the rest of the replicas to repair them as well.
+ * <p>
+ * Repairs run on a few threads of their own with a bounded queue, so they never take the threads of the replica
+ * requests. A repair beyond the queue is dropped, the next read of the key finds the replica stale again.
+ */
+public class ReadRepair {
+
+  private static final int THREADS = 4;
+  private static final int QUEUE_SIZE = 1024;
+
+  private final ThreadPoolExecutor repairs = new ThreadPoolExecutor(THREADS, THREADS, 60, TimeUnit.SECONDS,
+    new ArrayBlockingQueue<>(QUEUE_SIZE), r -> {
+    Thread thread = new Thread(r, "read-repair");
+    thread.setDaemon(true);
+    return thread;
+  }, new ThreadPoolExecutor.DiscardPolicy());
+
+  private final ClusterClient client;
+  private final HintedHandoff hints;
+  private final double chance;
+
+  /**
+   * @param chance fraction of reads comparing the answers of all the {@code from} replicas, from 0 to 1
+   */
+  public ReadRepair(@NotNull ClusterClient client, @NotNull HintedHandoff hints, double chance) {
+    if (chance < 0 || chance > 1)
+      throw new IllegalArgumentException("Read repair chance should be from 0 to 1: " + chance);
+
+    this.client = client;
+    this.hints = hints;
+    this.chance = chance;
+    repairs.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * @return true if the current read should compare the answers of all the replicas
+   */
+  boolean sample() {
+    return chance > 0 && ThreadLocalRandom.current().nextDouble() < chance;
+  }
+
+  /**
+   * Copies the version stored by the {@code source} replica to the {@code node}. If the source has replaced
+   * the version since, the newer one is copied, and a tombstone reaches the node on its own.
+   */
+  void upsert(String node, String id, String source) {
+    repairs.execute(() -> {
+      try (CloseableHttpResponse data = client.open(new HttpGet(AbstractClusterInteraction.internalUrl(source, id)))) {
+        Header timestamp = data.getFirstHeader(AbstractClusterInteraction.TIMESTAMP_HEADER);
+        if (data.getStatusLine().getStatusCode() != SC_OK || timestamp == null)
+          return;
+
+        HttpEntity entity = data.getEntity();
+        HttpPut request = new HttpPut(AbstractClusterInteraction.internalUrl(node, id));
+        request.setHeader(timestamp);
+        request.setEntity(new InputStreamEntity(entity.getContent(), entity.getContentLength()));
+        try {
+          if (client.execute(request).getStatusLine().getStatusCode() == SC_CREATED)
+            return;
+        }
+        catch (IOException e) {
+          // Hint it
+        }
+      }
+      catch (IOException e) {
+        e.printStackTrace();
+        return;
+      }
+      hintUpsert(node, id, source);
+    });
+  }
+
+  /**
+   * Fetches the version again, the stream of the failed repair is consumed
+   */
+  private void hintUpsert(String node, String id, String source) {
+    try {
+      HttpResponse data = client.execute(new HttpGet(AbstractClusterInteraction.internalUrl(source, id)));
+      Header timestamp = data.getFirstHeader(AbstractClusterInteraction.TIMESTAMP_HEADER);
+      if (data.getStatusLine().getStatusCode() == SC_OK && timestamp != null) {
+        hints.hintUpsert(node, id, EntityUtils.toByteArray(data.getEntity()), Long.parseLong(timestamp.getValue()));
+      }
+    }
+    catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  void delete(String node, String id, long timestamp) {
+    repairs.execute(() -> {
+      HttpDelete request = new HttpDelete(AbstractClusterInteraction.internalUrl(node, id));
+      request.setHeader(AbstractClusterInteraction.TIMESTAMP_HEADER, Long.toString(timestamp));
+      try {
+        if (client.execute(request).getStatusLine().getStatusCode() == SC_ACCEPTED)
+          return;
+      }
+      catch (IOException e) {
+        // Hint it
+      }
+      try {
+        hints.hintDelete(node, id, timestamp);
+      }
+      catch (IOException e) {
+        e.printStackTrace();
+      }
+    });
+  }
+}
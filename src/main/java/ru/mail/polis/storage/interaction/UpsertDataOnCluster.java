@@ -1,12 +1,13 @@
 package ru.mail.polis.storage.interaction;
 
 import org.apache.http.HttpResponse;
-import org.apache.http.client.fluent.Request;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.entity.ByteArrayEntity;
 import ru.mail.polis.utils.Replicas;
 
 import java.io.IOException;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
 
 import static org.apache.http.HttpStatus.*;
 
@@ -17,21 +18,38 @@ public class UpsertDataOnCluster extends AbstractClusterInteraction {
 
   private String id;
   private byte[] data;
+  private long timestamp;
+  private HintedHandoff hints;
 
-  private UpsertDataOnCluster(String id, byte[] data, Replicas replicas, Set<String> topology) {
-    super(replicas, topology);
+  private UpsertDataOnCluster(String id, byte[] data, Replicas replicas, List<String> nodes, long timestamp, ClusterClient client, HintedHandoff hints) {
+    super(replicas, nodes, client);
     this.data = data;
     this.id = id;
+    this.timestamp = timestamp;
+    this.hints = hints;
   }
 
   @Override
-  protected HttpResponse selectResponseFromCluster(List<HttpResponse> responses) {
-    return responses.get(0);
+  protected HttpResponse selectResponseFromCluster(Map<String, HttpResponse> responses) {
+    return responses.values().iterator().next();
   }
 
   @Override
   protected HttpResponse makeRequest(String nodeUrl) throws IOException {
-    return Request.Put(internalUrl(nodeUrl, id)).bodyByteArray(data).execute().returnResponse();
+    HttpPut request = new HttpPut(internalUrl(nodeUrl, id));
+    request.setHeader(TIMESTAMP_HEADER, Long.toString(timestamp));
+    request.setEntity(new ByteArrayEntity(data));
+    return execute(request);
+  }
+
+  @Override
+  protected void missed(String nodeUrl) {
+    try {
+      hints.hintUpsert(nodeUrl, id, data, timestamp);
+    }
+    catch (IOException e) {
+      e.printStackTrace();
+    }
   }
 
   @Override
@@ -44,7 +62,7 @@ public class UpsertDataOnCluster extends AbstractClusterInteraction {
     return "PUT";
   }
 
-  public static ClusterInteraction with(String id, byte[] data, Replicas replicas, Set<String> topology) {
-    return new UpsertDataOnCluster(id, data, replicas, topology);
+  public static ClusterInteraction with(String id, byte[] data, Replicas replicas, List<String> nodes, long timestamp, ClusterClient client, HintedHandoff hints) {
+    return new UpsertDataOnCluster(id, data, replicas, nodes, timestamp, client, hints);
   }
 }
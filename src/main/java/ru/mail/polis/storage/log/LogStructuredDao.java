@@ -0,0 +1,214 @@
+package ru.mail.polis.storage.log;
+
+import org.jetbrains.annotations.NotNull;
+import ru.mail.polis.storage.DAO;
+import ru.mail.polis.storage.GroupCommit;
+import ru.mail.polis.storage.IdNotFoundException;
+import ru.mail.polis.storage.Value;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Log-structured storage: every mutation is appended to the active segment file
+ * and the in-memory index keeps the position and the timestamp of the latest record for every key,
+ * so a write older than the stored version is dropped without touching the disk.
+ * <p>
+ * Segments are rolled over when the active one exceeds {@link #SEGMENT_SIZE}. Sealed segments are memory-mapped.
+ * The index is rebuilt by replaying all the segments on startup, cutting off a torn or corrupted tail,
+ * see {@link #truncatedOnRecovery()}.
+ * <p>
+ * Record sequence numbers serve as LSNs for {@link GroupCommit}, so concurrent writers share {@code fsync} calls.
+ */
+public class LogStructuredDao implements DAO {
+
+  static final long SEGMENT_SIZE = 64L * 1024 * 1024;
+
+  private final File dir;
+  private final long segmentSize;
+  private final GroupCommit commit;
+
+  private final Map<String, Location> index = new ConcurrentHashMap<>();
+  private final Map<Integer, Segment> segments = new ConcurrentHashMap<>();
+
+  // Guards the active segment and the sequence, a lock rather than a monitor since writers do I/O holding it
+  private final ReentrantLock lock = new ReentrantLock();
+  private Segment active;
+  private long seq;
+  private long truncatedOnRecovery;
+  private boolean closed;
+
+  public LogStructuredDao(@NotNull File dir, @NotNull GroupCommit.Mode syncMode, long syncPeriodMillis) throws IOException {
+    this(dir, SEGMENT_SIZE, syncMode, syncPeriodMillis);
+  }
+
+  LogStructuredDao(@NotNull File dir, long segmentSize, @NotNull GroupCommit.Mode syncMode, long syncPeriodMillis) throws IOException {
+    this.dir = dir;
+    this.segmentSize = segmentSize;
+    recover();
+    this.commit = new GroupCommit(syncMode, syncPeriodMillis, this::force);
+  }
+
+  private void recover() throws IOException {
+    List<Integer> ids = new ArrayList<>();
+    File[] files = dir.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        int id = Segment.idOf(file.getName());
+        if (id >= 0) {
+          ids.add(id);
+        }
+      }
+    }
+    ids.sort(Integer::compare);
+
+    for (int id : ids) {
+      Segment segment = Segment.open(dir, id);
+      segments.put(id, segment);
+      truncatedOnRecovery += segment.replay((key, recordSeq, timestamp, flags, valueOffset, valueLength) -> {
+        index.put(key, new Location(segment.id, valueOffset, valueLength, timestamp, flags == Segment.TOMBSTONE_FLAG));
+        seq = Math.max(seq, recordSeq);
+      });
+      if (active != null) {
+        active.seal();
+      }
+      active = segment;
+    }
+
+    if (active == null) {
+      active = Segment.open(dir, 0);
+      segments.put(active.id, active);
+    }
+  }
+
+  /**
+   * @return number of bytes of torn or corrupted records cut off the segments on startup
+   */
+  public long truncatedOnRecovery() {
+    return truncatedOnRecovery;
+  }
+
+  @NotNull
+  @Override
+  public Value getValue(@NotNull String id) throws IdNotFoundException, IllegalArgumentException, IOException {
+    Location location = index.get(id);
+    if (location == null)
+      throw new IdNotFoundException("Can't get data by id = " + id);
+
+    if (location.tombstone)
+      return Value.tombstone(location.timestamp);
+
+    return Value.present(segments.get(location.segment).slice(location.offset, location.length), location.timestamp);
+  }
+
+  @Override
+  public void upsert(@NotNull String id, @NotNull byte[] data, long timestamp) throws IllegalArgumentException, IOException {
+    long recordSeq = append(id, data, timestamp, (byte) 0);
+    if (recordSeq > 0) {
+      commit.await(recordSeq);
+    }
+  }
+
+  @Override
+  public void delete(@NotNull String id, long timestamp) throws IllegalArgumentException, IOException {
+    long recordSeq = append(id, new byte[]{}, timestamp, Segment.TOMBSTONE_FLAG);
+    if (recordSeq > 0) {
+      commit.await(recordSeq);
+    }
+  }
+
+  /**
+   * @return sequence number of the record or 0 if a newer version is stored already
+   */
+  private long append(String id, byte[] data, long timestamp, byte flags) throws IOException {
+    lock.lock();
+    try {
+      if (closed)
+        throw new IOException("Storage is closed");
+
+      boolean tombstone = flags == Segment.TOMBSTONE_FLAG;
+      Location stored = index.get(id);
+      if (stored != null && !Value.newer(timestamp, tombstone, stored.timestamp, stored.tombstone))
+        return 0;
+
+      if (active.size() >= segmentSize) {
+        // Records of the previous segments must be durable, as only the active one is forced
+        if (commit.mode() != GroupCommit.Mode.NONE) {
+          active.force();
+        }
+        active.seal();
+        active = Segment.open(dir, active.id + 1);
+        segments.put(active.id, active);
+      }
+
+      long offset = active.append(id.getBytes(StandardCharsets.UTF_8), data, ++seq, timestamp, flags);
+      index.put(id, new Location(active.id, offset, data.length, timestamp, tombstone));
+      return seq;
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  private long force() throws IOException {
+    Segment segment;
+    long written;
+    lock.lock();
+    try {
+      segment = active;
+      written = seq;
+    }
+    finally {
+      lock.unlock();
+    }
+    segment.force();
+    return written;
+  }
+
+  @Override
+  public void close() throws IOException {
+    lock.lock();
+    try {
+      if (closed)
+        return;
+
+      closed = true;
+      commit.close();
+      if (commit.mode() != GroupCommit.Mode.NONE) {
+        active.force();
+      }
+      for (Segment segment : segments.values()) {
+        segment.close();
+      }
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Position of the latest record value for a key
+   */
+  private static final class Location {
+    final int segment;
+    final long offset;
+    final int length;
+    final long timestamp;
+    final boolean tombstone;
+
+    Location(int segment, long offset, int length, long timestamp, boolean tombstone) {
+      this.segment = segment;
+      this.offset = offset;
+      this.length = length;
+      this.timestamp = timestamp;
+      this.tombstone = tombstone;
+    }
+  }
+}
@@ -0,0 +1,229 @@
+package ru.mail.polis.storage.log;
+
+import org.jetbrains.annotations.NotNull;
+import ru.mail.polis.storage.MappedFile;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Represents single append-only file of the log.
+ * <p>
+ * Every record has the following layout:
+ * <pre>
+ * | crc (int) | seq (long) | timestamp (long) | flags (byte) | key length (int) | value length (int) | key | value |
+ * </pre>
+ * where {@code crc} is computed over everything that follows it.
+ * <p>
+ * Once the segment is sealed it never changes, so it is memory-mapped and served without syscalls.
+ */
+class Segment implements Closeable {
+
+  static final int HEADER_SIZE = 4 + 8 + 8 + 1 + 4 + 4;
+  static final byte TOMBSTONE_FLAG = 1;
+
+  private static final String PREFIX = "segment-";
+  private static final String SUFFIX = ".log";
+
+  final int id;
+
+  private final File file;
+  private final FileChannel channel;
+  private long size;
+  private volatile MappedFile mapped;
+
+  private Segment(int id, File file, FileChannel channel, long size) {
+    this.id = id;
+    this.file = file;
+    this.channel = channel;
+    this.size = size;
+  }
+
+  static Segment open(@NotNull File dir, int id) throws IOException {
+    File file = new File(dir, PREFIX + id + SUFFIX);
+    FileChannel channel = FileChannel.open(file.toPath(),
+      StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    return new Segment(id, file, channel, channel.size());
+  }
+
+  /**
+   * @return segment id if the file name matches the segment naming scheme, -1 otherwise
+   */
+  static int idOf(@NotNull String fileName) {
+    if (!fileName.startsWith(PREFIX) || !fileName.endsWith(SUFFIX))
+      return -1;
+
+    try {
+      return Integer.parseInt(fileName.substring(PREFIX.length(), fileName.length() - SUFFIX.length()));
+    }
+    catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  long size() {
+    return size;
+  }
+
+  /**
+   * Appends a record to the end of the segment
+   *
+   * @return offset of the record value inside the segment
+   */
+  long append(@NotNull byte[] key, @NotNull byte[] value, long seq, long timestamp, byte flags) throws IOException {
+    ByteBuffer record = encode(key, value, seq, timestamp, flags);
+    long offset = size;
+    while (record.hasRemaining()) {
+      offset += channel.write(record, offset);
+    }
+    long valueOffset = size + HEADER_SIZE + key.length;
+    size = offset;
+    return valueOffset;
+  }
+
+  /**
+   * Forces appended records to disk
+   */
+  void force() throws IOException {
+    try {
+      channel.force(false);
+    }
+    catch (ClosedChannelException e) {
+      // The storage is closed and forced the active segment itself
+    }
+  }
+
+  /**
+   * Makes the segment read-only and maps it to memory
+   */
+  void seal() throws IOException {
+    mapped = MappedFile.map(channel);
+  }
+
+  /**
+   * @return read-only view of {@code length} bytes starting from {@code offset}
+   */
+  @NotNull
+  ByteBuffer slice(long offset, int length) throws IOException {
+    MappedFile file = mapped;
+    if (file != null)
+      return file.slice(offset, length);
+
+    return ByteBuffer.wrap(read(offset, length)).asReadOnlyBuffer();
+  }
+
+  /**
+   * Reads exactly {@code length} bytes starting from {@code offset}
+   */
+  @NotNull
+  byte[] read(long offset, int length) throws IOException {
+    byte[] data = new byte[length];
+    ByteBuffer buffer = ByteBuffer.wrap(data);
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, offset + buffer.position()) < 0)
+        throw new IOException("Unexpected end of segment " + file);
+    }
+    return data;
+  }
+
+  /**
+   * Reads all valid records from the beginning of the segment.
+   * A torn or corrupted tail (e.g. after a crash in the middle of write) is cut off.
+   *
+   * @return number of bytes cut off
+   */
+  long replay(@NotNull RecordVisitor visitor) throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+    CRC32 crc = new CRC32();
+    long offset = 0;
+    while (offset + HEADER_SIZE <= size) {
+      header.clear();
+      readFully(header, offset);
+      header.flip();
+      int expectedCrc = header.getInt();
+      long seq = header.getLong();
+      long timestamp = header.getLong();
+      byte flags = header.get();
+      int keyLength = header.getInt();
+      int valueLength = header.getInt();
+      if (keyLength < 0 || valueLength < 0 || offset + HEADER_SIZE + keyLength + valueLength > size)
+        break;
+
+      byte[] key = read(offset + HEADER_SIZE, keyLength);
+      crc.reset();
+      crc.update(header.array(), 4, HEADER_SIZE - 4);
+      crc.update(key);
+      updateCrc(crc, offset + HEADER_SIZE + keyLength, valueLength);
+      if ((int) crc.getValue() != expectedCrc)
+        break;
+
+      long valueOffset = offset + HEADER_SIZE + keyLength;
+      visitor.visit(new String(key, StandardCharsets.UTF_8), seq, timestamp, flags, valueOffset, valueLength);
+      offset = valueOffset + valueLength;
+    }
+
+    long truncated = size - offset;
+    if (truncated > 0) {
+      channel.truncate(offset);
+      size = offset;
+    }
+    return truncated;
+  }
+
+  private void updateCrc(CRC32 crc, long offset, int length) throws IOException {
+    ByteBuffer chunk = ByteBuffer.allocate(Math.min(length, 64 * 1024));
+    long position = offset;
+    long end = offset + length;
+    while (position < end) {
+      chunk.clear();
+      chunk.limit((int) Math.min(chunk.capacity(), end - position));
+      readFully(chunk, position);
+      crc.update(chunk.array(), 0, chunk.limit());
+      position += chunk.limit();
+    }
+  }
+
+  private void readFully(ByteBuffer buffer, long offset) throws IOException {
+    int start = buffer.position();
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, offset + buffer.position() - start) < 0)
+        throw new IOException("Unexpected end of segment " + file);
+    }
+  }
+
+  private static ByteBuffer encode(byte[] key, byte[] value, long seq, long timestamp, byte flags) {
+    ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + key.length + value.length);
+    record.position(4);
+    record.putLong(seq).putLong(timestamp).put(flags).putInt(key.length).putInt(value.length).put(key).put(value);
+
+    CRC32 crc = new CRC32();
+    crc.update(record.array(), 4, record.capacity() - 4);
+    record.putInt(0, (int) crc.getValue());
+    record.flip();
+    return record;
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+
+  @Override
+  public String toString() {
+    return file.toString();
+  }
+
+  /**
+   * Callback for records found during segment replay
+   */
+  interface RecordVisitor {
+    void visit(String key, long seq, long timestamp, byte flags, long valueOffset, int valueLength);
+  }
+}
@@ -0,0 +1,98 @@
+package ru.mail.polis.storage.lsm;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.*;
+
+/**
+ * Bloom filter over keys of a single table.
+ * <p>
+ * Uses {@link #BITS_PER_KEY} bits per key and {@link #HASHES} hash functions derived from one 64-bit hash
+ * by double hashing, which gives about 1% false positive rate.
+ */
+final class BloomFilter {
+
+  static final int BITS_PER_KEY = 10;
+  static final int HASHES = 7;
+
+  private final long[] bits;
+  private final long size;
+  private final int hashes;
+
+  private BloomFilter(long[] bits, int hashes) {
+    this.bits = bits;
+    this.size = 64L * bits.length;
+    this.hashes = hashes;
+  }
+
+  static BloomFilter create(long expectedKeys) {
+    long bitCount = Math.max(64, expectedKeys * BITS_PER_KEY);
+    return new BloomFilter(new long[(int) ((bitCount + 63) / 64)], HASHES);
+  }
+
+  void add(@NotNull String key) {
+    long hash1 = hash(key);
+    long hash2 = mix(hash1 + 0x9E3779B97F4A7C15L);
+    for (int i = 0; i < hashes; i++) {
+      long bit = Long.remainderUnsigned(hash1 + i * hash2, size);
+      bits[(int) (bit >>> 6)] |= 1L << bit;
+    }
+  }
+
+  /**
+   * @return false if the key is definitely absent
+   */
+  boolean mightContain(@NotNull String key) {
+    long hash1 = hash(key);
+    long hash2 = mix(hash1 + 0x9E3779B97F4A7C15L);
+    for (int i = 0; i < hashes; i++) {
+      long bit = Long.remainderUnsigned(hash1 + i * hash2, size);
+      if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0)
+        return false;
+    }
+    return true;
+  }
+
+  /**
+   * FNV-1a over UTF-16 chars with the final mixing step of MurmurHash3
+   */
+  private static long hash(String key) {
+    long hash = 0xCBF29CE484222325L;
+    for (int i = 0; i < key.length(); i++) {
+      hash ^= key.charAt(i);
+      hash *= 0x100000001B3L;
+    }
+    return mix(hash);
+  }
+
+  private static long mix(long hash) {
+    hash ^= hash >>> 33;
+    hash *= 0xFF51AFD7ED558CCDL;
+    hash ^= hash >>> 33;
+    hash *= 0xC4CEB9FE1A85EC53L;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+
+  void writeTo(@NotNull DataOutputStream out) throws IOException {
+    out.writeInt(hashes);
+    out.writeInt(bits.length);
+    for (long word : bits) {
+      out.writeLong(word);
+    }
+  }
+
+  @NotNull
+  static BloomFilter readFrom(@NotNull DataInputStream in) throws IOException {
+    int hashes = in.readInt();
+    int length = in.readInt();
+    if (hashes <= 0 || length <= 0)
+      throw new IOException("Malformed bloom filter");
+
+    long[] bits = new long[length];
+    for (int i = 0; i < length; i++) {
+      bits[i] = in.readLong();
+    }
+    return new BloomFilter(bits, hashes);
+  }
+}
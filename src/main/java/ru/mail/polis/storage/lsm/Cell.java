@@ -0,0 +1,55 @@
+package ru.mail.polis.storage.lsm;
+
+import org.jetbrains.annotations.NotNull;
+import ru.mail.polis.storage.Value;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Represents a single version of a key: either a value or a tombstone.
+ * <p>
+ * The value is either a wrapped array from a memtable or a slice of a memory-mapped table.
+ * It is shared between readers, so it should be duplicated before reading.
+ */
+final class Cell {
+
+  private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+  final String key;
+  final ByteBuffer value;
+  final long timestamp;
+  final boolean tombstone;
+
+  private Cell(String key, ByteBuffer value, long timestamp, boolean tombstone) {
+    this.key = key;
+    this.value = value;
+    this.timestamp = timestamp;
+    this.tombstone = tombstone;
+  }
+
+  static Cell value(@NotNull String key, @NotNull ByteBuffer value, long timestamp) {
+    return new Cell(key, value, timestamp, false);
+  }
+
+  static Cell tombstone(@NotNull String key, long timestamp) {
+    return new Cell(key, EMPTY, timestamp, true);
+  }
+
+  /**
+   * @return true if the cell wins over the other version of the key, see {@link ru.mail.polis.storage.Value}
+   */
+  static boolean newer(@NotNull Cell cell, @NotNull Cell other) {
+    return Value.newer(cell.timestamp, cell.tombstone, other.timestamp, other.tombstone);
+  }
+
+  static Cell newest(@NotNull Cell cell, @NotNull Cell other) {
+    return newer(cell, other) ? cell : other;
+  }
+
+  /**
+   * Approximate number of heap bytes occupied by the cell
+   */
+  long size() {
+    return 2L * key.length() + value.remaining() + 64;
+  }
+}
@@ -0,0 +1,559 @@
+package ru.mail.polis.storage.lsm;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.mail.polis.storage.DAO;
+import ru.mail.polis.storage.Entry;
+import ru.mail.polis.storage.GroupCommit;
+import ru.mail.polis.storage.IdNotFoundException;
+import ru.mail.polis.storage.Value;
+import ru.mail.polis.utils.HybridClock;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * LSM-tree storage.
+ * <p>
+ * Writes are appended to the {@link WriteAheadLog} without looking up the stored version and acknowledged
+ * according to {@link GroupCommit.Mode}, then they go to the sorted {@link MemTable}. Since a replayed or
+ * repaired write may be older than the stored one, the versions of a key are resolved by timestamp
+ * on every read and merge rather than by the source they come from. When it grows over {@link #MEMTABLE_SIZE} it is frozen
+ * and flushed to an immutable {@link SSTable} by a background thread, so writers never wait for disk
+ * unless {@link #MAX_FLUSHING} memtables are already queued for flush.
+ * <p>
+ * Reads look up the active memtable, the memtables being flushed and the tables newest first, skipping the ones whose
+ * Bloom filter rules the key out, so a miss usually doesn't touch table data at all, and the ones with no version
+ * newer than the one found, so a hit in a recent source doesn't touch the older tables.
+ * Tables are memory-mapped, so {@link #getBuffer(String)} returns values without copying them to heap.
+ * Readers never block: the table list is replaced as a whole and a removed table stays mapped while in use.
+ * A {@link #range} merges the same sources lazily, seeking every one of them to the start of the range.
+ * When there are at least {@link #COMPACTION_THRESHOLD} tables, another background thread merges them all
+ * into one dropping shadowed versions and tombstones older than the grace period, {@link #TOMBSTONE_TTL} by default.
+ */
+public class LsmDao implements DAO {
+
+  static final long MEMTABLE_SIZE = 16L * 1024 * 1024;
+  static final int MAX_FLUSHING = 2;
+  static final int COMPACTION_THRESHOLD = 4;
+  static final long TOMBSTONE_TTL = TimeUnit.DAYS.toMillis(1);
+
+  private final File dir;
+  private final long memTableSize;
+  private final long tombstoneGraceMillis;
+  private final GroupCommit commit;
+
+  private final ReadWriteLock memTableLock = new ReentrantReadWriteLock();
+  private volatile MemTable memTable;
+  private volatile WriteAheadLog wal;
+  private final Deque<MemTable> flushing = new ConcurrentLinkedDeque<>();
+  // A lock rather than a monitor, so a virtual thread waiting for a flush doesn't pin its carrier
+  private final ReentrantLock flushLock = new ReentrantLock();
+  private final Condition flushed = flushLock.newCondition();
+
+  private final Object tablesLock = new Object();
+  private volatile List<SSTable> tables = new ArrayList<>();
+  private long nextGeneration;
+
+  private final ExecutorService flusher = Executors.newSingleThreadExecutor(r -> daemon(r, "lsm-flusher"));
+  private final ExecutorService compactor = Executors.newSingleThreadExecutor(r -> daemon(r, "lsm-compactor"));
+  private final AtomicBoolean compactionScheduled = new AtomicBoolean();
+
+  private final LongAdder filterNegatives = new LongAdder();
+  private final LongAdder filterFalsePositives = new LongAdder();
+
+  private volatile IOException flushFailure;
+  private volatile boolean closed;
+
+  public LsmDao(@NotNull File dir, @NotNull GroupCommit.Mode syncMode, long syncPeriodMillis) throws IOException {
+    this(dir, syncMode, syncPeriodMillis, TOMBSTONE_TTL);
+  }
+
+  /**
+   * @param tombstoneGraceMillis age of a tombstone compaction drops it after
+   */
+  public LsmDao(
+    @NotNull File dir,
+    @NotNull GroupCommit.Mode syncMode,
+    long syncPeriodMillis,
+    long tombstoneGraceMillis) throws IOException {
+    this(dir, MEMTABLE_SIZE, syncMode, syncPeriodMillis, tombstoneGraceMillis);
+  }
+
+  LsmDao(@NotNull File dir, long memTableSize, @NotNull GroupCommit.Mode syncMode, long syncPeriodMillis) throws IOException {
+    this(dir, memTableSize, syncMode, syncPeriodMillis, TOMBSTONE_TTL);
+  }
+
+  LsmDao(
+    @NotNull File dir,
+    long memTableSize,
+    @NotNull GroupCommit.Mode syncMode,
+    long syncPeriodMillis,
+    long tombstoneGraceMillis) throws IOException {
+    this.dir = dir;
+    this.memTableSize = memTableSize;
+    this.tombstoneGraceMillis = tombstoneGraceMillis;
+    recover();
+    this.memTable = new MemTable(nextGeneration);
+    this.wal = WriteAheadLog.create(dir, nextGeneration, 0);
+    nextGeneration++;
+    this.commit = new GroupCommit(syncMode, syncPeriodMillis, () -> wal.force());
+  }
+
+  private static Thread daemon(Runnable runnable, String name) {
+    Thread thread = new Thread(runnable, name);
+    thread.setDaemon(true);
+    return thread;
+  }
+
+  private void recover() throws IOException {
+    List<SSTable> found = new ArrayList<>();
+    List<Long> logs = new ArrayList<>();
+    File[] files = dir.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        if (SSTable.isTemporary(file.getName())) {
+          java.nio.file.Files.delete(file.toPath());
+          continue;
+        }
+
+        long generation = SSTable.generationOf(file.getName());
+        if (generation >= 0) {
+          found.add(SSTable.open(dir, generation));
+        }
+
+        long log = WriteAheadLog.generationOf(file.getName());
+        if (log >= 0) {
+          logs.add(log);
+        }
+      }
+    }
+
+    // Flush memtables lost on crash, unless they were flushed but the logs were not removed yet
+    logs.sort(Long::compare);
+    for (long generation : logs) {
+      if (found.stream().noneMatch(t -> t.minGeneration <= generation && generation <= t.generation)) {
+        Map<String, Cell> cells = new TreeMap<>();
+        WriteAheadLog.replay(dir, generation, cell -> cells.merge(cell.key, cell, Cell::newest));
+        SSTable.write(dir, generation, generation, cells.values().iterator(), cells.size());
+        found.add(SSTable.open(dir, generation));
+      }
+      WriteAheadLog.delete(dir, generation);
+    }
+    found.sort((a, b) -> Long.compare(b.generation, a.generation));
+
+    // Drop tables already merged into a compacted one, which may be left after a crash
+    List<SSTable> live = new ArrayList<>();
+    for (SSTable table : found) {
+      if (!live.isEmpty() && live.get(live.size() - 1).minGeneration <= table.generation) {
+        table.delete();
+      }
+      else {
+        live.add(table);
+      }
+    }
+
+    tables = live;
+    nextGeneration = live.isEmpty() ? 0 : live.get(0).generation + 1;
+    if (!logs.isEmpty()) {
+      nextGeneration = Math.max(nextGeneration, logs.get(logs.size() - 1) + 1);
+    }
+  }
+
+  @NotNull
+  @Override
+  public Value getValue(@NotNull String id) throws IdNotFoundException, IllegalArgumentException, IOException {
+    Cell cell = find(id);
+    if (cell == null)
+      throw new IdNotFoundException("Can't get data by id = " + id);
+
+    if (cell.tombstone)
+      return Value.tombstone(cell.timestamp);
+
+    return Value.present(cell.value, cell.timestamp);
+  }
+
+  /**
+   * @return the newest version of the key among all the sources.
+   *         A table holding nothing newer than the version found already isn't looked up.
+   */
+  @Nullable
+  private Cell find(String id) {
+    Cell newest = memTable.get(id);
+    for (MemTable frozen : flushing) {
+      newest = newest(newest, frozen.get(id));
+    }
+
+    for (SSTable table : tables) {
+      if (newest != null && !Value.newer(table.maxTimestamp, true, newest.timestamp, newest.tombstone))
+        continue;
+
+      if (!table.mightContain(id)) {
+        filterNegatives.increment();
+        continue;
+      }
+      Cell cell = table.get(id);
+      if (cell == null) {
+        filterFalsePositives.increment();
+        continue;
+      }
+      newest = newest(newest, cell);
+    }
+    return newest;
+  }
+
+  /**
+   * @return the newer of the versions, the one from the newer source on a tie
+   */
+  private static Cell newest(@Nullable Cell newer, @Nullable Cell older) {
+    if (newer == null)
+      return older;
+
+    return older != null && Cell.newer(older, newer) ? older : newer;
+  }
+
+  @NotNull
+  @Override
+  public Iterator<Entry> range(@NotNull String start, @Nullable String end) throws IOException {
+    if (closed)
+      throw new IOException("Storage is closed");
+
+    // Same order as the lookups: a memtable moves to the flushing ones before it is replaced,
+    // and its table is added before it is removed, so every cell is seen at least once
+    List<Iterator<Cell>> sources = new ArrayList<>();
+    sources.add(memTable.iterator(start));
+    for (MemTable frozen : flushing) {
+      sources.add(frozen.iterator(start));
+    }
+    for (SSTable table : tables) {
+      sources.add(table.iterator(start));
+    }
+    return new RangeIterator(new MergeIterator(sources), end);
+  }
+
+  /**
+   * @return share of table lookups the Bloom filters let through although the table didn't contain the key
+   */
+  public double filterFalsePositiveRate() {
+    long falsePositives = filterFalsePositives.sum();
+    long total = falsePositives + filterNegatives.sum();
+    return total == 0 ? 0 : (double) falsePositives / total;
+  }
+
+  @Override
+  public void upsert(@NotNull String id, @NotNull byte[] data, long timestamp) throws IllegalArgumentException, IOException {
+    put(Cell.value(id, ByteBuffer.wrap(data), timestamp));
+  }
+
+  @Override
+  public void delete(@NotNull String id, long timestamp) throws IllegalArgumentException, IOException {
+    put(Cell.tombstone(id, timestamp));
+  }
+
+  private void put(Cell cell) throws IOException {
+    if (closed)
+      throw new IOException("Storage is closed");
+
+    if (flushFailure != null)
+      throw new IOException("Can't flush memtable", flushFailure);
+
+    // The lock keeps the log and the memtable of the same generation until the write is committed
+    memTableLock.readLock().lock();
+    try {
+      long lsn = wal.append(cell);
+      commit.await(lsn);
+      memTable.put(cell);
+    }
+    finally {
+      memTableLock.readLock().unlock();
+    }
+
+    if (memTable.size() >= memTableSize) {
+      scheduleFlush();
+    }
+  }
+
+  private void scheduleFlush() throws IOException {
+    flushLock.lock();
+    try {
+      while (flushing.size() >= MAX_FLUSHING && flushFailure == null && !closed) {
+        flushed.await();
+      }
+      if (memTable.size() < memTableSize || closed)
+        return;
+
+      MemTable frozen = freeze();
+      flusher.execute(() -> flush(frozen));
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for flush", e);
+    }
+    finally {
+      flushLock.unlock();
+    }
+  }
+
+  private MemTable freeze() throws IOException {
+    memTableLock.writeLock().lock();
+    try {
+      WriteAheadLog next = WriteAheadLog.create(dir, nextGeneration, wal.endLsn());
+      wal.close();
+      wal = next;
+
+      MemTable frozen = memTable;
+      flushing.addFirst(frozen);
+      memTable = new MemTable(nextGeneration++);
+      return frozen;
+    }
+    finally {
+      memTableLock.writeLock().unlock();
+    }
+  }
+
+  private void flush(MemTable frozen) {
+    try {
+      SSTable.write(dir, frozen.generation, frozen.generation, frozen.iterator(), frozen.count());
+      SSTable table = SSTable.open(dir, frozen.generation);
+
+      synchronized (tablesLock) {
+        List<SSTable> updated = new ArrayList<>(tables.size() + 1);
+        updated.add(table);
+        updated.addAll(tables);
+        tables = updated;
+      }
+      flushing.remove(frozen);
+      WriteAheadLog.delete(dir, frozen.generation);
+      scheduleCompaction();
+    }
+    catch (IOException e) {
+      e.printStackTrace();
+      flushFailure = e;
+    }
+    finally {
+      flushLock.lock();
+      try {
+        flushed.signalAll();
+      }
+      finally {
+        flushLock.unlock();
+      }
+    }
+  }
+
+  private void compact() {
+    try {
+      List<SSTable> merged = tables;
+      if (merged.size() < 2 || closed)
+        return;
+
+      List<Iterator<Cell>> sources = new ArrayList<>(merged.size());
+      long count = 0;
+      for (SSTable table : merged) {
+        sources.add(table.iterator());
+        count += table.count();
+      }
+      SSTable newest = merged.get(0);
+      SSTable oldest = merged.get(merged.size() - 1);
+      long expired = HybridClock.fromMillis(System.currentTimeMillis() - tombstoneGraceMillis);
+      Iterator<Cell> cells = new CompactionIterator(new MergeIterator(sources), expired);
+      SSTable.write(dir, newest.generation, oldest.minGeneration, cells, count);
+      SSTable compacted = SSTable.open(dir, newest.generation);
+
+      synchronized (tablesLock) {
+        List<SSTable> updated = new ArrayList<>(tables);
+        updated.removeAll(merged);
+        updated.add(compacted);
+        tables = updated;
+      }
+      for (SSTable table : merged) {
+        if (table != newest) {
+          table.delete();
+        }
+      }
+    }
+    catch (IOException | UncheckedIOException e) {
+      if (!closed) {
+        e.printStackTrace();
+      }
+    }
+    finally {
+      compactionScheduled.set(false);
+    }
+    // Tables flushed during the merge may already need another one
+    scheduleCompaction();
+  }
+
+  private void scheduleCompaction() {
+    // Under the lock close() sets the flag with, so the compactor isn't shut down yet
+    flushLock.lock();
+    try {
+      if (!closed && tables.size() >= COMPACTION_THRESHOLD && compactionScheduled.compareAndSet(false, true)) {
+        compactor.execute(this::compact);
+      }
+    }
+    finally {
+      flushLock.unlock();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    flushLock.lock();
+    try {
+      if (closed)
+        return;
+
+      closed = true;
+      flushed.signalAll();
+    }
+    finally {
+      flushLock.unlock();
+    }
+
+    try {
+      awaitTermination(compactor);
+      awaitTermination(flusher);
+      commit.close();
+    }
+    finally {
+      closeFiles();
+    }
+  }
+
+  /**
+   * Flushes the memtable and closes the log and the tables. If a flush failed, the memtable isn't flushed
+   * and the logs are left to recover from, but the files are closed all the same.
+   */
+  private void closeFiles() throws IOException {
+    // Wait for writers still holding the memtable
+    memTableLock.writeLock().lock();
+    try {
+      wal.close();
+      if (flushFailure != null)
+        throw new IOException("Can't flush memtable", flushFailure);
+
+      if (!memTable.isEmpty()) {
+        SSTable.write(dir, memTable.generation, memTable.generation, memTable.iterator(), memTable.count());
+      }
+      WriteAheadLog.delete(dir, memTable.generation);
+    }
+    finally {
+      memTableLock.writeLock().unlock();
+      for (SSTable table : tables) {
+        table.close();
+      }
+    }
+  }
+
+  private static void awaitTermination(ExecutorService executor) throws IOException {
+    executor.shutdown();
+    try {
+      executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while closing storage", e);
+    }
+  }
+
+  /**
+   * Stops at the end of the range and turns cells into entries
+   */
+  private static final class RangeIterator implements Iterator<Entry> {
+    private final Iterator<Cell> cells;
+    private final String end;
+    private Cell next;
+
+    RangeIterator(Iterator<Cell> cells, String end) {
+      this.cells = cells;
+      this.end = end;
+      this.next = advance();
+    }
+
+    private Cell advance() {
+      if (!cells.hasNext())
+        return null;
+
+      Cell cell = cells.next();
+      return end == null || cell.key.compareTo(end) < 0 ? cell : null;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return next != null;
+    }
+
+    @Override
+    public Entry next() {
+      if (next == null)
+        throw new NoSuchElementException();
+
+      Cell cell = next;
+      next = advance();
+      Value value = cell.tombstone ? Value.tombstone(cell.timestamp) : Value.present(cell.value, cell.timestamp);
+      return new Entry(cell.key, value);
+    }
+  }
+
+  /**
+   * Skips tombstones older than the given moment and aborts the merge if the storage is being closed
+   */
+  private final class CompactionIterator implements Iterator<Cell> {
+    private final Iterator<Cell> cells;
+    private final long expired;
+    private Cell next;
+
+    CompactionIterator(Iterator<Cell> cells, long expired) {
+      this.cells = cells;
+      this.expired = expired;
+      this.next = advance();
+    }
+
+    private Cell advance() {
+      if (closed)
+        throw new UncheckedIOException(new IOException("Compaction aborted"));
+
+      while (cells.hasNext()) {
+        Cell cell = cells.next();
+        if (!cell.tombstone || cell.timestamp >= expired)
+          return cell;
+      }
+      return null;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return next != null;
+    }
+
+    @Override
+    public Cell next() {
+      if (next == null)
+        throw new NoSuchElementException();
+
+      Cell cell = next;
+      next = advance();
+      return cell;
+    }
+  }
+}
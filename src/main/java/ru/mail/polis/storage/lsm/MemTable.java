@@ -0,0 +1,77 @@
+package ru.mail.polis.storage.lsm;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Iterator;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sorted in-memory table accepting all the writes until it is flushed to the table of the same generation
+ */
+final class MemTable {
+
+  final long generation;
+
+  private final NavigableMap<String, Cell> cells = new ConcurrentSkipListMap<>();
+  private final AtomicLong size = new AtomicLong();
+  private final AtomicInteger count = new AtomicInteger();
+
+  MemTable(long generation) {
+    this.generation = generation;
+  }
+
+  /**
+   * Keeps the cell unless a newer version of the key is here already
+   */
+  void put(@NotNull Cell cell) {
+    while (true) {
+      Cell previous = cells.putIfAbsent(cell.key, cell);
+      if (previous == null) {
+        count.incrementAndGet();
+        size.addAndGet(cell.size());
+        return;
+      }
+      if (!Cell.newer(cell, previous))
+        return;
+
+      if (cells.replace(cell.key, previous, cell)) {
+        size.addAndGet(cell.size() - previous.size());
+        return;
+      }
+    }
+  }
+
+  @Nullable
+  Cell get(@NotNull String key) {
+    return cells.get(key);
+  }
+
+  long size() {
+    return size.get();
+  }
+
+  int count() {
+    return count.get();
+  }
+
+  boolean isEmpty() {
+    return cells.isEmpty();
+  }
+
+  @NotNull
+  Iterator<Cell> iterator() {
+    return cells.values().iterator();
+  }
+
+  /**
+   * @return weakly consistent iterator over the cells starting from the key
+   */
+  @NotNull
+  Iterator<Cell> iterator(@NotNull String from) {
+    return cells.tailMap(from).values().iterator();
+  }
+}
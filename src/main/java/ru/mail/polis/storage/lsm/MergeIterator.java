@@ -0,0 +1,74 @@
+package ru.mail.polis.storage.lsm;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * Merges sorted iterators into a single sorted one, keeping only the newest version of every key by timestamp.
+ * <p>
+ * Sources are expected to be ordered from the newest to the oldest, which only breaks timestamp ties.
+ */
+final class MergeIterator implements Iterator<Cell> {
+
+  private final PriorityQueue<Head> heads = new PriorityQueue<>();
+
+  MergeIterator(@NotNull List<Iterator<Cell>> sources) {
+    for (int i = 0; i < sources.size(); i++) {
+      Iterator<Cell> source = sources.get(i);
+      if (source.hasNext()) {
+        heads.add(new Head(source.next(), i, source));
+      }
+    }
+  }
+
+  @Override
+  public boolean hasNext() {
+    return !heads.isEmpty();
+  }
+
+  @Override
+  public Cell next() {
+    Head newest = heads.poll();
+    if (newest == null)
+      throw new NoSuchElementException();
+
+    advance(newest);
+    Cell cell = newest.cell;
+    while (!heads.isEmpty() && heads.peek().cell.key.equals(cell.key)) {
+      Head other = heads.poll();
+      if (Cell.newer(other.cell, cell)) {
+        cell = other.cell;
+      }
+      advance(other);
+    }
+    return cell;
+  }
+
+  private void advance(Head head) {
+    if (head.source.hasNext()) {
+      heads.add(new Head(head.source.next(), head.priority, head.source));
+    }
+  }
+
+  private static final class Head implements Comparable<Head> {
+    final Cell cell;
+    final int priority;
+    final Iterator<Cell> source;
+
+    Head(Cell cell, int priority, Iterator<Cell> source) {
+      this.cell = cell;
+      this.priority = priority;
+      this.source = source;
+    }
+
+    @Override
+    public int compareTo(@NotNull Head other) {
+      int cmp = cell.key.compareTo(other.cell.key);
+      return cmp != 0 ? cmp : Integer.compare(priority, other.priority);
+    }
+  }
+}
@@ -0,0 +1,375 @@
+package ru.mail.polis.storage.lsm;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.mail.polis.storage.MappedFile;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Immutable sorted table on disk.
+ * <p>
+ * File layout:
+ * <pre>
+ * | cell 0 | ... | cell N-1 | offset of cell 0 (long) | ... | offset of cell N-1 (long) | footer |
+ * </pre>
+ * where every cell is
+ * <pre>
+ * | key length (int) | key | flags (byte) | timestamp (long) | value length (int) | value |
+ * </pre>
+ * and footer is {@code | index offset (long) | cells count (int) | min generation (long) | max timestamp (long) |}.
+ * <p>
+ * A table produced by compaction covers all the generations from min generation up to its own one.
+ * The max timestamp lets a lookup skip the table once it found a newer version elsewhere.
+ * <p>
+ * The whole file is memory-mapped, so lookups and scans don't issue syscalls and values are returned
+ * as slices of the mapping without copying them to heap.
+ * <p>
+ * Every table has a {@link BloomFilter} of its keys stored next to it as
+ * {@code | table size (long) | min generation (long) | filter |}. The header ties the filter to the table
+ * it was built for, so a missing or stale filter is rebuilt from the keys on open.
+ */
+final class SSTable implements Closeable {
+
+  private static final String PREFIX = "table-";
+  private static final String SUFFIX = ".sst";
+  private static final String FILTER_SUFFIX = ".bloom";
+  private static final String TEMP_SUFFIX = ".tmp";
+
+  private static final int FOOTER_SIZE = 8 + 4 + 8 + 8;
+  private static final byte TOMBSTONE_FLAG = 1;
+
+  final long generation;
+  final long minGeneration;
+
+  /**
+   * The newest timestamp of the cells, {@link Long#MIN_VALUE} if there are none
+   */
+  final long maxTimestamp;
+
+  private final File file;
+  private final File filterFile;
+  private final MappedFile data;
+  private final long indexOffset;
+  private final int count;
+  private final BloomFilter filter;
+
+  private SSTable(long generation, File file, File filterFile) throws IOException {
+    this.generation = generation;
+    this.file = file;
+    this.filterFile = filterFile;
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      this.data = MappedFile.map(channel);
+    }
+
+    long footer = data.size() - FOOTER_SIZE;
+    this.indexOffset = data.getLong(footer);
+    this.count = data.getInt(footer + 8);
+    this.minGeneration = data.getLong(footer + 8 + 4);
+    this.maxTimestamp = data.getLong(footer + 8 + 4 + 8);
+    this.filter = loadFilter();
+  }
+
+  static SSTable open(@NotNull File dir, long generation) throws IOException {
+    return new SSTable(generation, fileOf(dir, generation), filterOf(dir, generation));
+  }
+
+  private BloomFilter loadFilter() {
+    if (filterFile.exists()) {
+      try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(filterFile), 64 * 1024))) {
+        if (in.readLong() == data.size() && in.readLong() == minGeneration)
+          return BloomFilter.readFrom(in);
+      }
+      catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+
+    BloomFilter rebuilt = BloomFilter.create(count);
+    for (int i = 0; i < count; i++) {
+      rebuilt.add(keyAt(offsetOf(i)));
+    }
+    try {
+      writeFilter(filterFile, rebuilt, data.size(), minGeneration);
+    }
+    catch (IOException e) {
+      // The table is still usable, the filter is rebuilt on the next open
+      e.printStackTrace();
+    }
+    return rebuilt;
+  }
+
+  /**
+   * @return table generation if the file name matches the table naming scheme, -1 otherwise
+   */
+  static long generationOf(@NotNull String fileName) {
+    if (!fileName.startsWith(PREFIX) || !fileName.endsWith(SUFFIX))
+      return -1;
+
+    try {
+      return Long.parseLong(fileName.substring(PREFIX.length(), fileName.length() - SUFFIX.length()));
+    }
+    catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  static boolean isTemporary(@NotNull String fileName) {
+    return fileName.startsWith(PREFIX) && fileName.endsWith(TEMP_SUFFIX);
+  }
+
+  /**
+   * Writes sorted cells to a new table file along with its filter. The file appears atomically under its final name.
+   *
+   * @param expectedCount estimated number of cells used to size the filter
+   */
+  static void write(
+    @NotNull File dir,
+    long generation,
+    long minGeneration,
+    @NotNull Iterator<Cell> cells,
+    long expectedCount) throws IOException {
+
+    File temp = new File(dir, PREFIX + generation + TEMP_SUFFIX);
+    File offsets = new File(dir, PREFIX + generation + ".idx" + TEMP_SUFFIX);
+    BloomFilter filter = BloomFilter.create(expectedCount);
+    long offset = 0;
+    int count = 0;
+    long maxTimestamp = Long.MIN_VALUE;
+    try (DataOutputStream data = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 64 * 1024));
+         DataOutputStream index = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(offsets)))) {
+      while (cells.hasNext()) {
+        Cell cell = cells.next();
+        filter.add(cell.key);
+        byte[] key = cell.key.getBytes(StandardCharsets.UTF_8);
+        index.writeLong(offset);
+        data.writeInt(key.length);
+        data.write(key);
+        data.writeByte(cell.tombstone ? TOMBSTONE_FLAG : 0);
+        data.writeLong(cell.timestamp);
+        data.writeInt(cell.value.remaining());
+        writeValue(data, cell.value.duplicate());
+        offset += 4 + key.length + 1 + 8 + 4 + cell.value.remaining();
+        count++;
+        maxTimestamp = Math.max(maxTimestamp, cell.timestamp);
+      }
+      index.flush();
+
+      try (InputStream in = new BufferedInputStream(new FileInputStream(offsets))) {
+        byte[] buffer = new byte[64 * 1024];
+        int read;
+        while ((read = in.read(buffer)) > 0) {
+          data.write(buffer, 0, read);
+        }
+      }
+      data.writeLong(offset);
+      data.writeInt(count);
+      data.writeLong(minGeneration);
+      data.writeLong(maxTimestamp);
+    }
+    catch (IOException | RuntimeException e) {
+      java.nio.file.Files.deleteIfExists(temp.toPath());
+      throw e;
+    }
+    finally {
+      java.nio.file.Files.deleteIfExists(offsets.toPath());
+    }
+
+    try (FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.WRITE)) {
+      channel.force(true);
+    }
+    // The filter goes first, if the table doesn't follow the header won't match and the filter is rebuilt
+    writeFilter(filterOf(dir, generation), filter, temp.length(), minGeneration);
+    java.nio.file.Files.move(
+      temp.toPath(),
+      fileOf(dir, generation).toPath(),
+      StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  private static void writeFilter(File target, BloomFilter filter, long tableSize, long minGeneration) throws IOException {
+    File temp = new File(target.getPath() + TEMP_SUFFIX);
+    try (FileOutputStream file = new FileOutputStream(temp);
+         DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 64 * 1024))) {
+      out.writeLong(tableSize);
+      out.writeLong(minGeneration);
+      filter.writeTo(out);
+      out.flush();
+      file.getFD().sync();
+    }
+    catch (IOException | RuntimeException e) {
+      java.nio.file.Files.deleteIfExists(temp.toPath());
+      throw e;
+    }
+    java.nio.file.Files.move(
+      temp.toPath(),
+      target.toPath(),
+      StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  private static void writeValue(OutputStream out, ByteBuffer value) throws IOException {
+    if (value.hasArray()) {
+      out.write(value.array(), value.arrayOffset() + value.position(), value.remaining());
+      return;
+    }
+
+    byte[] chunk = new byte[Math.min(value.remaining(), 64 * 1024)];
+    while (value.hasRemaining()) {
+      int length = Math.min(chunk.length, value.remaining());
+      value.get(chunk, 0, length);
+      out.write(chunk, 0, length);
+    }
+  }
+
+  private static File fileOf(File dir, long generation) {
+    return new File(dir, PREFIX + generation + SUFFIX);
+  }
+
+  private static File filterOf(File dir, long generation) {
+    return new File(dir, PREFIX + generation + FILTER_SUFFIX);
+  }
+
+  int count() {
+    return count;
+  }
+
+  /**
+   * @return false if the table definitely doesn't contain the key, so {@link #get(String)} can be skipped
+   */
+  boolean mightContain(@NotNull String key) {
+    return filter.mightContain(key);
+  }
+
+  /**
+   * Binary search of the key
+   *
+   * @return the cell or null if the table doesn't contain the key
+   */
+  @Nullable
+  Cell get(@NotNull String key) {
+    int position = positionOf(key);
+    if (position == count)
+      return null;
+
+    long offset = offsetOf(position);
+    return keyAt(offset).equals(key) ? cellAt(offset) : null;
+  }
+
+  /**
+   * @return position of the first key not less than the given one, {@code count} if there is none
+   */
+  private int positionOf(String key) {
+    int low = 0;
+    int high = count - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int cmp = keyAt(offsetOf(mid)).compareTo(key);
+      if (cmp < 0) {
+        low = mid + 1;
+      }
+      else if (cmp > 0) {
+        high = mid - 1;
+      }
+      else {
+        return mid;
+      }
+    }
+    return low;
+  }
+
+  private long offsetOf(int i) {
+    return data.getLong(indexOffset + 8L * i);
+  }
+
+  private String keyAt(long offset) {
+    int keyLength = data.getInt(offset);
+    return decode(data.slice(offset + 4, keyLength));
+  }
+
+  private Cell cellAt(long offset) {
+    int keyLength = data.getInt(offset);
+    String key = decode(data.slice(offset + 4, keyLength));
+    long flagsOffset = offset + 4 + keyLength;
+    byte flags = data.get(flagsOffset);
+    long timestamp = data.getLong(flagsOffset + 1);
+    if (flags == TOMBSTONE_FLAG)
+      return Cell.tombstone(key, timestamp);
+
+    int valueLength = data.getInt(flagsOffset + 1 + 8);
+    return Cell.value(key, data.slice(flagsOffset + 1 + 8 + 4, valueLength), timestamp);
+  }
+
+  private static long sizeOf(Cell cell, int keyLength) {
+    return 4 + keyLength + 1 + 8 + 4 + cell.value.remaining();
+  }
+
+  private static String decode(ByteBuffer buffer) {
+    if (buffer.hasArray())
+      return new String(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining(), StandardCharsets.UTF_8);
+
+    return StandardCharsets.UTF_8.decode(buffer).toString();
+  }
+
+  /**
+   * Sequential scan over all the cells of the table in key order
+   */
+  @NotNull
+  Iterator<Cell> iterator() {
+    return iterator(0);
+  }
+
+  /**
+   * Sequential scan over the cells starting from the key
+   */
+  @NotNull
+  Iterator<Cell> iterator(@NotNull String from) {
+    return iterator(positionOf(from));
+  }
+
+  private Iterator<Cell> iterator(int start) {
+    return new Iterator<Cell>() {
+      private int position = start;
+      private long offset = start < count ? offsetOf(start) : 0;
+
+      @Override
+      public boolean hasNext() {
+        return position < count;
+      }
+
+      @Override
+      public Cell next() {
+        if (!hasNext())
+          throw new NoSuchElementException();
+
+        Cell cell = cellAt(offset);
+        offset += sizeOf(cell, data.getInt(offset));
+        position++;
+        return cell;
+      }
+    };
+  }
+
+  /**
+   * Removes the file. Slices already handed out stay readable until they are garbage collected.
+   */
+  void delete() throws IOException {
+    java.nio.file.Files.deleteIfExists(filterFile.toPath());
+    java.nio.file.Files.deleteIfExists(file.toPath());
+  }
+
+  @Override
+  public void close() {
+    // The mapping is released by GC, the channel is closed right after mapping
+  }
+
+  @Override
+  public String toString() {
+    return file.toString();
+  }
+}
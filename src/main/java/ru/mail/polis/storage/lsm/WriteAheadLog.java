@@ -0,0 +1,236 @@
+package ru.mail.polis.storage.lsm;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead log of a single memtable. It lives until the memtable is flushed to the table of the same generation.
+ * <p>
+ * Every record has the following layout:
+ * <pre>
+ * | crc (int) | flags (byte) | timestamp (long) | key length (int) | value length (int) | key | value |
+ * </pre>
+ * where {@code crc} is computed over everything that follows it.
+ */
+final class WriteAheadLog implements Closeable {
+
+  private static final String PREFIX = "wal-";
+  private static final String SUFFIX = ".log";
+
+  private static final int HEADER_SIZE = 4 + 1 + 8 + 4 + 4;
+  private static final byte TOMBSTONE_FLAG = 1;
+
+  final long generation;
+
+  private final File file;
+  private final FileChannel channel;
+  private final long startLsn;
+  // Writers do I/O holding it, so it is a lock rather than a monitor pinning the carrier of a virtual thread
+  private final ReentrantLock lock = new ReentrantLock();
+  private long size;
+  private boolean closed;
+
+  private WriteAheadLog(long generation, File file, long startLsn) throws IOException {
+    this.generation = generation;
+    this.file = file;
+    this.startLsn = startLsn;
+    this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+  }
+
+  /**
+   * Creates an empty log. LSNs of its records continue the ones of the previous log.
+   */
+  static WriteAheadLog create(@NotNull File dir, long generation, long startLsn) throws IOException {
+    return new WriteAheadLog(generation, fileOf(dir, generation), startLsn);
+  }
+
+  /**
+   * @return log generation if the file name matches the log naming scheme, -1 otherwise
+   */
+  static long generationOf(@NotNull String fileName) {
+    if (!fileName.startsWith(PREFIX) || !fileName.endsWith(SUFFIX))
+      return -1;
+
+    try {
+      return Long.parseLong(fileName.substring(PREFIX.length(), fileName.length() - SUFFIX.length()));
+    }
+    catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  private static File fileOf(File dir, long generation) {
+    return new File(dir, PREFIX + generation + SUFFIX);
+  }
+
+  /**
+   * Appends the cell to the page cache
+   *
+   * @return LSN of the record
+   */
+  long append(@NotNull Cell cell) throws IOException {
+    ByteBuffer record = encode(cell);
+    lock.lock();
+    try {
+      if (closed)
+        throw new IOException("Log is closed " + file);
+
+      while (record.hasRemaining()) {
+        size += channel.write(record, size);
+      }
+      return startLsn + size;
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return LSN the next log should start from
+   */
+  long endLsn() {
+    lock.lock();
+    try {
+      return startLsn + size;
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Forces the log to disk
+   *
+   * @return the highest LSN durable after the call
+   */
+  long force() throws IOException {
+    long written;
+    lock.lock();
+    try {
+      written = startLsn + size;
+      if (closed)
+        return written;
+    }
+    finally {
+      lock.unlock();
+    }
+    try {
+      channel.force(false);
+    }
+    catch (ClosedChannelException e) {
+      // Closed concurrently, which forces the log as well
+    }
+    return written;
+  }
+
+  private static ByteBuffer encode(Cell cell) {
+    byte[] key = cell.key.getBytes(StandardCharsets.UTF_8);
+    ByteBuffer value = cell.value.duplicate();
+    ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + key.length + value.remaining());
+    record.position(4);
+    record.put(cell.tombstone ? TOMBSTONE_FLAG : 0)
+      .putLong(cell.timestamp)
+      .putInt(key.length)
+      .putInt(value.remaining())
+      .put(key)
+      .put(value);
+
+    CRC32 crc = new CRC32();
+    crc.update(record.array(), 4, record.capacity() - 4);
+    record.putInt(0, (int) crc.getValue());
+    record.flip();
+    return record;
+  }
+
+  /**
+   * Reads all the valid records of the log. Replay stops at a torn or corrupted record left by a crash.
+   */
+  static void replay(@NotNull File dir, long generation, @NotNull Consumer<Cell> consumer) throws IOException {
+    File file = fileOf(dir, generation);
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024))) {
+      CRC32 crc = new CRC32();
+      byte[] header = new byte[HEADER_SIZE];
+      while (true) {
+        if (!readFully(in, header))
+          return;
+
+        ByteBuffer fields = ByteBuffer.wrap(header);
+        int expectedCrc = fields.getInt();
+        byte flags = fields.get();
+        long timestamp = fields.getLong();
+        int keyLength = fields.getInt();
+        int valueLength = fields.getInt();
+        if (keyLength < 0 || valueLength < 0 || (long) keyLength + valueLength > file.length())
+          return;
+
+        byte[] key = new byte[keyLength];
+        byte[] value = new byte[valueLength];
+        if (!readFully(in, key) || !readFully(in, value))
+          return;
+
+        crc.reset();
+        crc.update(header, 4, HEADER_SIZE - 4);
+        crc.update(key);
+        crc.update(value);
+        if ((int) crc.getValue() != expectedCrc)
+          return;
+
+        String id = new String(key, StandardCharsets.UTF_8);
+        consumer.accept(flags == TOMBSTONE_FLAG
+          ? Cell.tombstone(id, timestamp)
+          : Cell.value(id, ByteBuffer.wrap(value), timestamp));
+      }
+    }
+  }
+
+  private static boolean readFully(DataInputStream in, byte[] buffer) throws IOException {
+    try {
+      in.readFully(buffer);
+      return true;
+    }
+    catch (EOFException e) {
+      return false;
+    }
+  }
+
+  static void delete(@NotNull File dir, long generation) throws IOException {
+    java.nio.file.Files.deleteIfExists(fileOf(dir, generation).toPath());
+  }
+
+  /**
+   * Forces and closes the log
+   */
+  @Override
+  public void close() throws IOException {
+    lock.lock();
+    try {
+      if (closed)
+        return;
+
+      closed = true;
+      try {
+        channel.force(false);
+      }
+      finally {
+        channel.close();
+      }
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return file.toString();
+  }
+}
@@ -0,0 +1,86 @@
+package ru.mail.polis.utils;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * Consistent hashing ring placing keys on the nodes of the cluster.
+ * <p>
+ * Every node owns {@link #VIRTUAL_NODES} points on the ring, so keys are spread evenly and adding a node
+ * moves only about 1/N of them. Replicas of a key are the distinct nodes met walking the ring clockwise
+ * from the key hash. The ring depends only on the node names, so all the nodes build the same one.
+ */
+public final class HashRing {
+
+  static final int VIRTUAL_NODES = 128;
+
+  private final NavigableMap<Long, String> ring = new TreeMap<>();
+  private final int nodes;
+
+  public HashRing(@NotNull Collection<String> nodes) {
+    for (String node : nodes) {
+      for (int i = 0; i < VIRTUAL_NODES; i++) {
+        ring.put(hash(node + "#" + i), node);
+      }
+    }
+    this.nodes = nodes.size();
+  }
+
+  /**
+   * @return preference list of up to {@code count} distinct nodes to keep replicas of the key on
+   */
+  @NotNull
+  public List<String> nodesFor(@NotNull String key, int count) {
+    int limit = Math.min(count, nodes);
+    List<String> result = new ArrayList<>(limit);
+    if (limit <= 0)
+      return result;
+
+    long hash = hash(key);
+    for (String node : ring.tailMap(hash, true).values()) {
+      if (!result.contains(node)) {
+        result.add(node);
+        if (result.size() == limit)
+          return result;
+      }
+    }
+    for (Map.Entry<Long, String> point : ring.entrySet()) {
+      if (point.getKey() >= hash)
+        break;
+
+      if (!result.contains(point.getValue())) {
+        result.add(point.getValue());
+        if (result.size() == limit)
+          return result;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * First 8 bytes of MD5, which gives uniform points for similar names unlike {@link String#hashCode()}
+   */
+  private static long hash(String value) {
+    byte[] digest;
+    try {
+      digest = MessageDigest.getInstance("MD5").digest(value.getBytes(StandardCharsets.UTF_8));
+    }
+    catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("MD5 is not supported", e);
+    }
+    long hash = 0;
+    for (int i = 0; i < 8; i++) {
+      hash = (hash << 8) | (digest[i] & 0xFF);
+    }
+    return hash;
+  }
+}
@@ -0,0 +1,63 @@
+package ru.mail.polis.utils;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hybrid logical clock versioning the writes.
+ * <p>
+ * A timestamp keeps wall clock milliseconds in the high bits and a logical counter in the low
+ * {@link #LOGICAL_BITS} bits. Timestamps issued by the clock strictly increase and stay close to the wall clock,
+ * and {@link #update(long)} with the timestamps received from the other nodes keeps causally related writes
+ * ordered even if the wall clocks of the nodes drift apart. There is a single clock per process.
+ */
+public final class HybridClock {
+
+  static final int LOGICAL_BITS = 16;
+
+  /**
+   * A received timestamp may be ahead of the wall clock by as much at most,
+   * so a single wrong one can't move the clock of the node far into the future
+   */
+  public static final long MAX_DRIFT_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+  private static final AtomicLong LAST = new AtomicLong();
+
+  private HybridClock() {
+  }
+
+  /**
+   * @return new timestamp greater than all the issued and received ones
+   */
+  public static long now() {
+    long physical = fromMillis(System.currentTimeMillis());
+    return LAST.updateAndGet(last -> Math.max(last + 1, physical));
+  }
+
+  /**
+   * Moves the clock past the timestamp received from another node
+   *
+   * @throws IllegalArgumentException if the timestamp is more than {@link #MAX_DRIFT_MILLIS} ahead of the wall clock
+   */
+  public static void update(long timestamp) {
+    // A negative timestamp is far ahead too, since the milliseconds are unsigned
+    if (toMillis(timestamp) - System.currentTimeMillis() > MAX_DRIFT_MILLIS)
+      throw new IllegalArgumentException("Timestamp is too far ahead of the clock: " + timestamp);
+
+    LAST.accumulateAndGet(timestamp, Math::max);
+  }
+
+  /**
+   * @return the earliest timestamp of the given wall clock moment
+   */
+  public static long fromMillis(long millis) {
+    return millis << LOGICAL_BITS;
+  }
+
+  /**
+   * @return wall clock milliseconds of the timestamp
+   */
+  public static long toMillis(long timestamp) {
+    return timestamp >>> LOGICAL_BITS;
+  }
+}
@@ -1,5 +1,6 @@
 package ru.mail.polis.utils;
 
+import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 /**
@@ -9,6 +10,8 @@ public class QueryParams {
 
   public static final String ID_PREFIX = "id=";
   public static final String REPLICAS_PREFIX = "replicas=";
+  public static final String START_PREFIX = "start=";
+  public static final String END_PREFIX = "end=";
 
   public final String id;
   public final Replicas replicas;
@@ -37,7 +40,35 @@ public class QueryParams {
     if (parameters.length < 2)
       return new QueryParams(id, null);
 
-    String replicas = parameters[1].substring(REPLICAS_PREFIX.length());
+    return new QueryParams(id, parseReplicas(parameters[1].substring(REPLICAS_PREFIX.length())));
+  }
+
+  /**
+   * @return replicas parameter of a query without an id or null if there is none
+   */
+  @Nullable
+  public static Replicas extractReplicas(@Nullable String query) {
+    String replicas = extractParameter(query, REPLICAS_PREFIX);
+    return replicas == null ? null : parseReplicas(replicas);
+  }
+
+  /**
+   * @param prefix name of the parameter followed by {@code =}
+   * @return value of the parameter or null if the query has none
+   */
+  @Nullable
+  public static String extractParameter(@Nullable String query, @NotNull String prefix) {
+    if (query == null)
+      return null;
+
+    for (String parameter : query.split("&")) {
+      if (parameter.startsWith(prefix))
+        return parameter.substring(prefix.length());
+    }
+    return null;
+  }
+
+  private static Replicas parseReplicas(String replicas) {
     String[] ackFrom = replicas.split("/");
     if (ackFrom.length < 2)
       throw new IllegalArgumentException("Replicas parameter should have format ack/from");
@@ -45,7 +76,7 @@ public class QueryParams {
     try {
       Integer ack = Integer.parseInt(ackFrom[0]);
       Integer from = Integer.parseInt(ackFrom[1]);
-      return new QueryParams(id, new Replicas(ack, from));
+      return new Replicas(ack, from);
     }
     catch (NumberFormatException e) {
       throw new IllegalArgumentException("Elements of pair ack/from should have integer type", e);
@@ -5,7 +5,16 @@ import org.apache.http.HttpResponse;
 import org.apache.http.client.fluent.Request;
 import org.jetbrains.annotations.NotNull;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -50,4 +59,105 @@ abstract class ClusterTestBase extends TestBase {
             final int from) throws IOException {
         return Request.Put(url(node, key, ack, from)).bodyByteArray(data).execute().returnResponse();
     }
+
+    @NotNull
+    private String batchUrl(
+            final int node,
+            final int ack,
+            final int from) {
+        final String endpoint = Iterators.get(endpoints.iterator(), node);
+        return endpoint + "/v0/entities?replicas=" + ack + "/" + from;
+    }
+
+    /**
+     * @return values by key, null for an absent key
+     */
+    Map<String, byte[]> batchGet(
+            final int node,
+            @NotNull final List<String> keys,
+            final int ack,
+            final int from) throws IOException {
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(body)) {
+            for (final String key : keys) {
+                final byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+        }
+        final HttpResponse response =
+                Request.Post(batchUrl(node, ack, from)).bodyByteArray(body.toByteArray()).execute().returnResponse();
+        if (response.getStatusLine().getStatusCode() != 200) {
+            throw new IOException("Batch get failed: " + response.getStatusLine());
+        }
+
+        final Map<String, byte[]> values = new LinkedHashMap<>();
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(payloadOf(response)))) {
+            for (int i = 0; i < keys.size(); i++) {
+                final byte[] key = new byte[in.readInt()];
+                in.readFully(key);
+                final int length = in.readInt();
+                byte[] value = null;
+                if (length >= 0) {
+                    value = new byte[length];
+                    in.readFully(value);
+                }
+                values.put(new String(key, StandardCharsets.UTF_8), value);
+            }
+        }
+        return values;
+    }
+
+    HttpResponse batchUpsert(
+            final int node,
+            @NotNull final Map<String, byte[]> entries,
+            final int ack,
+            final int from) throws IOException {
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(body)) {
+            for (final Map.Entry<String, byte[]> entry : entries.entrySet()) {
+                final byte[] key = entry.getKey().getBytes(StandardCharsets.UTF_8);
+                out.writeInt(key.length);
+                out.write(key);
+                out.writeInt(entry.getValue().length);
+                out.write(entry.getValue());
+            }
+        }
+        return Request.Put(batchUrl(node, ack, from)).bodyByteArray(body.toByteArray()).execute().returnResponse();
+    }
+
+    HttpResponse range(
+            final int node,
+            @NotNull final String start,
+            @NotNull final String end,
+            final int ack,
+            final int from) throws IOException {
+        final String endpoint = Iterators.get(endpoints.iterator(), node);
+        final String url = endpoint + "/v0/entities?start=" + encode(start) + "&end=" + encode(end)
+                + "&replicas=" + ack + "/" + from;
+        return Request.Get(url).execute().returnResponse();
+    }
+
+    @NotNull
+    private static String encode(@NotNull final String key) throws IOException {
+        return URLEncoder.encode(key, "UTF-8").replace("+", "%20");
+    }
+
+    /**
+     * @return entries of a range response in the order they were sent
+     */
+    static Map<String, byte[]> entriesOf(@NotNull final HttpResponse response) throws IOException {
+        final Map<String, byte[]> entries = new LinkedHashMap<>();
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(payloadOf(response)))) {
+            int length;
+            while ((length = in.readInt()) >= 0) {
+                final byte[] key = new byte[length];
+                in.readFully(key);
+                final byte[] value = new byte[in.readInt()];
+                in.readFully(value);
+                entries.put(new String(key, StandardCharsets.UTF_8), value);
+            }
+        }
+        return entries;
+    }
 }
@@ -11,10 +11,13 @@ import org.junit.rules.Timeout;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.Collections;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 /**
  * Unit tests for single node {@link KVService} API
@@ -69,6 +72,30 @@ public class SingleNodeTest extends TestBase {
         assertEquals(400, upsert("", new byte[]{0}).getStatusLine().getStatusCode());
     }
 
+    @Test
+    public void ignoreClientTimestamp() throws Exception {
+        final String key = randomKey();
+        final byte[] value = randomValue();
+        assertEquals(
+                201,
+                Request.Put(url(key)).addHeader("X-Timestamp", Long.toString(Long.MAX_VALUE)).bodyByteArray(randomValue())
+                        .execute().returnResponse().getStatusLine().getStatusCode());
+        assertEquals(201, upsert(key, value).getStatusLine().getStatusCode());
+
+        final HttpResponse response = get(key);
+        assertEquals(200, response.getStatusLine().getStatusCode());
+        assertArrayEquals(value, payloadOf(response));
+    }
+
+    @Test
+    public void rejectFarAheadTimestamp() throws Exception {
+        final long ahead = (System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1)) << 16;
+        assertEquals(
+                400,
+                Request.Put(endpoint + "/v0/internal?id=" + randomKey()).addHeader("X-Timestamp", Long.toString(ahead))
+                        .bodyByteArray(randomValue()).execute().returnResponse().getStatusLine().getStatusCode());
+    }
+
     @Test
     public void badRequest() throws Exception {
         assertEquals(
@@ -227,4 +254,18 @@ public class SingleNodeTest extends TestBase {
         // Check
         assertEquals(404, get(key).getStatusLine().getStatusCode());
     }
+
+    @Test
+    public void metrics() throws Exception {
+        assertEquals(201, upsert(randomKey(), randomValue()).getStatusLine().getStatusCode());
+
+        final HttpResponse response = Request.Get(endpoint + "/v0/metrics").execute().returnResponse();
+        assertEquals(200, response.getStatusLine().getStatusCode());
+        final String metrics = new String(payloadOf(response), StandardCharsets.UTF_8);
+        assertTrue(metrics, metrics.contains("# TYPE kv_request_seconds histogram"));
+        assertTrue(metrics, metrics.contains("kv_request_seconds_count{endpoint=\"entity\",method=\"PUT\"}"));
+        assertTrue(metrics, metrics.contains("kv_responses_total{endpoint=\"entity\",status=\"201\"}"));
+        assertTrue(metrics, metrics.contains("kv_dao_seconds_count{op=\"upsert\"}"));
+        assertTrue(metrics, metrics.contains("kv_executor_queue_size"));
+    }
 }
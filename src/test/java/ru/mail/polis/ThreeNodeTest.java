@@ -9,13 +9,18 @@ import org.junit.rules.Timeout;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 
 /**
  * Unit tests for a three node {@link KVService} cluster
@@ -228,6 +233,82 @@ public class ThreeNodeTest extends ClusterTestBase {
         assertEquals(404, response.getStatusLine().getStatusCode());
     }
 
+    @Test
+    public void batch() throws Exception {
+        final Map<String, byte[]> entries = new LinkedHashMap<>();
+        for (int i = 0; i < 100; i++) {
+            entries.put(randomKey(), randomValue());
+        }
+
+        // Insert into node 0
+        assertEquals(201, batchUpsert(0, entries, 2, 3).getStatusLine().getStatusCode());
+
+        // Delete one of them
+        final String deleted = entries.keySet().iterator().next();
+        assertEquals(202, delete(1, deleted, 3, 3).getStatusLine().getStatusCode());
+
+        // Stop node 1
+        storage1.stop();
+
+        // Check
+        final List<String> keys = new ArrayList<>(entries.keySet());
+        final String absent = randomKey();
+        keys.add(absent);
+        final Map<String, byte[]> values = batchGet(2, keys, 2, 3);
+        assertEquals(keys, new ArrayList<>(values.keySet()));
+        assertNull(values.get(deleted));
+        assertNull(values.get(absent));
+        for (final String key : entries.keySet()) {
+            if (!key.equals(deleted)) {
+                assertArrayEquals(entries.get(key), values.get(key));
+            }
+        }
+    }
+
+    @Test
+    public void range() throws Exception {
+        final String prefix = randomKey() + "-";
+        final Map<String, byte[]> entries = new LinkedHashMap<>();
+        for (int i = 0; i < 100; i++) {
+            entries.put(prefix + String.format("%03d", i), randomValue());
+        }
+
+        // Insert into node 0
+        assertEquals(201, batchUpsert(0, entries, 2, 3).getStatusLine().getStatusCode());
+
+        // Delete one of them
+        final String deleted = prefix + "050";
+        assertEquals(202, delete(1, deleted, 3, 3).getStatusLine().getStatusCode());
+        entries.remove(deleted);
+
+        // Stop node 1
+        storage1.stop();
+
+        // Check
+        final HttpResponse response = range(2, prefix, prefix + "z", 2, 3);
+        assertEquals(200, response.getStatusLine().getStatusCode());
+        final Map<String, byte[]> values = entriesOf(response);
+        assertEquals(new ArrayList<>(entries.keySet()), new ArrayList<>(values.keySet()));
+        for (final String key : entries.keySet()) {
+            assertArrayEquals(entries.get(key), values.get(key));
+        }
+        assertEquals(504, range(2, prefix, prefix + "z", 3, 3).getStatusLine().getStatusCode());
+    }
+
+    @Test
+    public void rangeOfKeysToEncode() throws Exception {
+        final String prefix = randomKey() + " \u043a\u043b\u044e\u0447/";
+        final Map<String, byte[]> entries = new LinkedHashMap<>();
+        for (int i = 0; i < 10; i++) {
+            entries.put(prefix + i + "%+", randomValue());
+        }
+        assertEquals(201, batchUpsert(0, entries, 3, 3).getStatusLine().getStatusCode());
+
+        final HttpResponse response = range(1, prefix, prefix + "z", 3, 3);
+        assertEquals(200, response.getStatusLine().getStatusCode());
+        assertEquals(new ArrayList<>(entries.keySet()), new ArrayList<>(entriesOf(response).keySet()));
+    }
+
     @Test
     public void respectRF1() throws Exception {
         final String key = randomKey();
@@ -0,0 +1,342 @@
+package ru.mail.polis.http;
+
+import com.sun.net.httpserver.HttpExchange;
+import org.jetbrains.annotations.NotNull;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class NioHttpServerTest {
+
+  private NioHttpServer server;
+
+  @Before
+  public void setUp() throws Exception {
+    server = new NioHttpServer(new InetSocketAddress("localhost", 0), 16, 2);
+    server.createContext("/echo", this::echo);
+    server.start();
+  }
+
+  @After
+  public void tearDown() {
+    server.stop(0);
+  }
+
+  private void echo(HttpExchange http) throws IOException {
+    byte[] body = new byte[Integer.parseInt(http.getRequestHeaders().getFirst("Content-Length"))];
+    int read = 0;
+    while (read < body.length) {
+      read += http.getRequestBody().read(body, read, body.length - read);
+    }
+    String response = http.getRequestMethod() + " " + http.getRequestURI().getQuery() + " " + new String(body);
+    http.sendResponseHeaders(200, response.length());
+    try (OutputStream out = http.getResponseBody()) {
+      out.write(response.getBytes());
+    }
+  }
+
+  @Test
+  public void pipelinedRequestsOverKeepAlive() throws Exception {
+    try (Socket socket = new Socket("localhost", server.getAddress().getPort())) {
+      socket.setSoTimeout(5000);
+      OutputStream out = socket.getOutputStream();
+      out.write((request("id=1", "first") + request("id=2", "second")).getBytes(StandardCharsets.ISO_8859_1));
+      out.flush();
+
+      InputStream in = socket.getInputStream();
+      assertEquals("PUT id=1 first", readBody(in));
+      assertEquals("PUT id=2 second", readBody(in));
+
+      out.write(request("id=3", "").getBytes(StandardCharsets.ISO_8859_1));
+      assertEquals("PUT id=3 ", readBody(in));
+    }
+  }
+
+  /**
+   * Sums the body, answers with as many bytes as asked for and serves one more request on the same connection
+   */
+  @Test
+  public void streamLargeBodies() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    server.setExecutor(executor);
+    server.createContext("/stream", http -> {
+      long sum = 0;
+      byte[] buffer = new byte[4096];
+      int read;
+      try (InputStream in = http.getRequestBody()) {
+        while ((read = in.read(buffer)) > 0) {
+          for (int i = 0; i < read; i++) {
+            sum += buffer[i] & 0xFF;
+          }
+        }
+      }
+      int length = Integer.parseInt(http.getRequestURI().getQuery());
+      http.getResponseHeaders().set("X-Sum", Long.toString(sum));
+      http.sendResponseHeaders(200, length);
+      try (OutputStream out = http.getResponseBody()) {
+        for (int i = 0; i < length; i++) {
+          out.write(i);
+        }
+      }
+    });
+
+    int length = 8 * 1024 * 1024;
+    try (Socket socket = new Socket("localhost", server.getAddress().getPort())) {
+      socket.setSoTimeout(10_000);
+      OutputStream out = socket.getOutputStream();
+      InputStream in = socket.getInputStream();
+      for (int request = 0; request < 2; request++) {
+        out.write(("PUT /stream?" + length + " HTTP/1.1\r\nContent-Length: " + length + "\r\n\r\n")
+          .getBytes(StandardCharsets.ISO_8859_1));
+        byte[] chunk = new byte[64 * 1024];
+        Arrays.fill(chunk, (byte) 1);
+        for (int sent = 0; sent < length; sent += chunk.length) {
+          out.write(chunk);
+        }
+        out.flush();
+
+        String head = readHead(in);
+        assertTrue(head, head.contains("X-sum: " + length));
+        assertTrue(head, head.contains("Content-Length: " + length));
+        for (int i = 0; i < length; i++) {
+          assertEquals((byte) i, (byte) in.read());
+        }
+      }
+    }
+    finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void chunkBodyOfUnknownLength() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    server.setExecutor(executor);
+    server.createContext("/chunked", http -> {
+      int length = Integer.parseInt(http.getRequestURI().getQuery());
+      http.sendResponseHeaders(200, 0);
+      try (OutputStream out = http.getResponseBody()) {
+        for (int i = 0; i < length; i++) {
+          out.write(i);
+        }
+      }
+    });
+
+    int length = 200 * 1000;
+    try (Socket socket = new Socket("localhost", server.getAddress().getPort())) {
+      socket.setSoTimeout(10_000);
+      OutputStream out = socket.getOutputStream();
+      InputStream in = socket.getInputStream();
+      out.write(("GET /chunked?10 HTTP/1.1\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+      assertEquals(10, readBody(in).length());
+
+      out.write(("GET /chunked?" + length + " HTTP/1.1\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+      String head = readHead(in);
+      assertTrue(head, head.contains("Transfer-Encoding: chunked"));
+      ByteArrayOutputStream body = new ByteArrayOutputStream();
+      DataInputStream chunks = new DataInputStream(in);
+      int size;
+      while ((size = Integer.parseInt(readLine(in), 16)) > 0) {
+        byte[] chunk = new byte[size];
+        chunks.readFully(chunk);
+        body.write(chunk);
+        assertEquals("", readLine(in));
+      }
+      assertEquals("", readLine(in));
+      byte[] received = body.toByteArray();
+      assertEquals(length, received.length);
+      for (int i = 0; i < length; i++) {
+        assertEquals((byte) i, received[i]);
+      }
+    }
+    finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private static String readLine(InputStream in) throws IOException {
+    StringBuilder line = new StringBuilder();
+    int c;
+    while ((c = in.read()) != '\n') {
+      if (c < 0)
+        throw new EOFException();
+
+      if (c != '\r') {
+        line.append((char) c);
+      }
+    }
+    return line.toString();
+  }
+
+  @Test
+  public void unknownPath() throws Exception {
+    try (Socket socket = new Socket("localhost", server.getAddress().getPort())) {
+      socket.setSoTimeout(5000);
+      socket.getOutputStream().write("GET /absent HTTP/1.1\r\nConnection: close\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+      String response = new String(readAll(socket.getInputStream()), StandardCharsets.ISO_8859_1);
+      assertTrue(response, response.startsWith("HTTP/1.1 404 "));
+    }
+  }
+
+  @Test
+  public void malformedRequest() throws Exception {
+    try (Socket socket = new Socket("localhost", server.getAddress().getPort())) {
+      socket.setSoTimeout(5000);
+      socket.getOutputStream().write("garbage\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+      String response = new String(readAll(socket.getInputStream()), StandardCharsets.ISO_8859_1);
+      assertTrue(response, response.startsWith("HTTP/1.1 400 "));
+    }
+  }
+
+  @Test
+  public void rejectTooLargeBodyBeforeReading() throws Exception {
+    server.setMaxBodyLength(1024);
+    for (long length : new long[]{2048, Integer.MAX_VALUE - 1, Long.MAX_VALUE}) {
+      try (Socket socket = new Socket("localhost", server.getAddress().getPort())) {
+        socket.setSoTimeout(5000);
+        socket.getOutputStream().write(("PUT /echo HTTP/1.1\r\nContent-Length: " + length + "\r\n\r\n")
+          .getBytes(StandardCharsets.ISO_8859_1));
+        String response = new String(readAll(socket.getInputStream()), StandardCharsets.ISO_8859_1);
+        assertTrue(response, response.startsWith("HTTP/1.1 413 "));
+      }
+    }
+  }
+
+  @Test
+  public void rejectUnbufferedBodyAboveBufferedLimit() throws Exception {
+    try (Socket socket = new Socket("localhost", server.getAddress().getPort())) {
+      socket.setSoTimeout(5000);
+      socket.getOutputStream().write(("PUT /echo HTTP/1.1\r\nContent-Length: " + (Integer.MAX_VALUE - 100) + "\r\n\r\n")
+        .getBytes(StandardCharsets.ISO_8859_1));
+      String response = new String(readAll(socket.getInputStream()), StandardCharsets.ISO_8859_1);
+      assertTrue(response, response.startsWith("HTTP/1.1 413 "));
+    }
+  }
+
+  @Test
+  public void closeIdleConnection() throws Exception {
+    server.setIdleTimeout(100);
+    try (Socket socket = new Socket("localhost", server.getAddress().getPort())) {
+      socket.setSoTimeout(5000);
+      socket.getOutputStream().write("GET /echo HTTP/1.1\r\n".getBytes(StandardCharsets.ISO_8859_1));
+      assertEquals(-1, socket.getInputStream().read());
+    }
+  }
+
+  @Test
+  public void survivesHandlerError() throws Exception {
+    server.createContext("/error", http -> {
+      throw new AssertionError("Handler failed");
+    });
+    for (int i = 0; i < 4; i++) {
+      try (Socket socket = new Socket("localhost", server.getAddress().getPort())) {
+        socket.setSoTimeout(5000);
+        socket.getOutputStream().write("GET /error HTTP/1.1\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+        readAll(socket.getInputStream());
+      }
+    }
+    try (Socket socket = new Socket("localhost", server.getAddress().getPort())) {
+      socket.setSoTimeout(5000);
+      socket.getOutputStream().write(request("id=1", "alive").getBytes(StandardCharsets.ISO_8859_1));
+      assertEquals("PUT id=1 alive", readBody(socket.getInputStream()));
+    }
+  }
+
+  @Test
+  public void admitOnArrival() throws Exception {
+    AtomicInteger released = new AtomicInteger();
+    server.setAdmission(new NioHttpServer.Admission() {
+      @Override
+      public boolean tryAcquire(@NotNull HttpExchange exchange) {
+        if (!exchange.getRequestURI().getQuery().contains("reject"))
+          return true;
+
+        exchange.getResponseHeaders().set("Retry-After", "1");
+        return false;
+      }
+
+      @Override
+      public void release(@NotNull HttpExchange exchange, long latencyNanos) {
+        assertTrue(latencyNanos > 0);
+        released.incrementAndGet();
+      }
+    });
+
+    try (Socket socket = new Socket("localhost", server.getAddress().getPort())) {
+      socket.setSoTimeout(5000);
+      OutputStream out = socket.getOutputStream();
+      out.write(request("reject", "").getBytes(StandardCharsets.ISO_8859_1));
+      InputStream in = socket.getInputStream();
+      assertEquals("HTTP/1.1 503 Service Unavailable", readLine(in));
+      assertTrue(readLine(in).equalsIgnoreCase("Retry-After: 1"));
+      assertEquals("Content-Length: 0", readLine(in));
+      assertEquals("", readLine(in));
+      assertEquals(0, released.get());
+
+      out.write(request("id=1", "admitted").getBytes(StandardCharsets.ISO_8859_1));
+      assertEquals("PUT id=1 admitted", readBody(in));
+      // Released after the response is handed to the event loop
+      for (int i = 0; i < 100 && released.get() == 0; i++) {
+        Thread.sleep(10);
+      }
+      assertEquals(1, released.get());
+    }
+  }
+
+  private static String request(String query, String body) {
+    return "PUT /echo?" + query + " HTTP/1.1\r\nHost: localhost\r\nContent-Length: " + body.length() + "\r\n\r\n" + body;
+  }
+
+  private static String readHead(InputStream in) throws IOException {
+    StringBuilder head = new StringBuilder();
+    while (!head.toString().endsWith("\r\n\r\n")) {
+      int b = in.read();
+      assertTrue(b >= 0);
+      head.append((char) b);
+    }
+    assertTrue(head.toString(), head.toString().startsWith("HTTP/1.1 200 "));
+    return head.toString();
+  }
+
+  private static String readBody(InputStream in) throws IOException {
+    String head = readHead(in);
+    int length = -1;
+    for (String line : head.split("\r\n")) {
+      if (line.startsWith("Content-Length: ")) {
+        length = Integer.parseInt(line.substring("Content-Length: ".length()));
+      }
+    }
+    byte[] body = new byte[length];
+    int read = 0;
+    while (read < length) {
+      read += in.read(body, read, length - read);
+    }
+    return new String(body);
+  }
+
+  private static byte[] readAll(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[1024];
+    int read;
+    while ((read = in.read(buffer)) > 0) {
+      out.write(buffer, 0, read);
+    }
+    return out.toByteArray();
+  }
+}
@@ -0,0 +1,49 @@
+package ru.mail.polis.metrics;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class MetricsTest {
+
+  @Test
+  public void histogramBuckets() {
+    Metrics metrics = new Metrics();
+    LatencyHistogram latency = metrics.histogram("latency_seconds", "Latency", "op", "get");
+    latency.record(TimeUnit.MICROSECONDS.toNanos(10));
+    latency.record(TimeUnit.MICROSECONDS.toNanos(16));
+    latency.record(TimeUnit.MICROSECONDS.toNanos(17));
+    latency.record(TimeUnit.MINUTES.toNanos(1));
+    assertSame(latency, metrics.histogram("latency_seconds", "Latency", "op", "get"));
+
+    String export = metrics.export();
+    assertTrue(export, export.startsWith("# HELP latency_seconds Latency\n# TYPE latency_seconds histogram\n"));
+    assertTrue(export, export.contains("latency_seconds_bucket{op=\"get\",le=\"1.6E-5\"} 2\n"));
+    assertTrue(export, export.contains("latency_seconds_bucket{op=\"get\",le=\"3.2E-5\"} 3\n"));
+    assertTrue(export, export.contains("latency_seconds_bucket{op=\"get\",le=\"16.777216\"} 3\n"));
+    assertTrue(export, export.contains("latency_seconds_bucket{op=\"get\",le=\"+Inf\"} 4\n"));
+    assertTrue(export, export.contains("latency_seconds_count{op=\"get\"} 4\n"));
+    assertTrue(export, export.contains("latency_seconds_sum{op=\"get\"} 60.000043\n"));
+  }
+
+  @Test
+  public void countersAndGauges() {
+    Metrics metrics = new Metrics();
+    metrics.counter("requests_total", "Requests", "path", "a\"b").add(3);
+    metrics.counter("requests_total", "Requests", "path", "a\"b").increment();
+    metrics.gauge("queue_size", "Queue", () -> 7);
+
+    String export = metrics.export();
+    assertTrue(export, export.contains("# TYPE requests_total counter\nrequests_total{path=\"a\\\"b\"} 4\n"));
+    assertTrue(export, export.contains("# TYPE queue_size gauge\nqueue_size 7.0\n"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void typeConflict() {
+    Metrics metrics = new Metrics();
+    metrics.counter("requests", "Requests");
+    metrics.histogram("requests", "Requests");
+  }
+}
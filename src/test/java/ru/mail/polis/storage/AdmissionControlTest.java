@@ -0,0 +1,78 @@
+package ru.mail.polis.storage;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static ru.mail.polis.storage.AdmissionControl.Priority.CLIENT;
+import static ru.mail.polis.storage.AdmissionControl.Priority.INTERNAL;
+
+public class AdmissionControlTest {
+
+  private static final int MAX_LIMIT = 64;
+
+  @Test
+  public void reservesCapacityForInternalRequests() {
+    AdmissionControl admission = new AdmissionControl(4, 8);
+    for (int i = 0; i < 6; i++) {
+      assertTrue(admission.tryAcquire(CLIENT));
+    }
+    assertFalse(admission.tryAcquire(CLIENT));
+    assertTrue(admission.tryAcquire(INTERNAL));
+    assertTrue(admission.tryAcquire(INTERNAL));
+    assertFalse(admission.tryAcquire(INTERNAL));
+
+    admission.release(0);
+    admission.release(0);
+    admission.release(0);
+    assertEquals(5, admission.inflight());
+    assertTrue(admission.tryAcquire(CLIENT));
+  }
+
+  @Test
+  public void limitFollowsLatency() throws InterruptedException {
+    AdmissionControl admission = new AdmissionControl(4, MAX_LIMIT);
+    window(admission, 1);
+    window(admission, 1);
+    assertEquals(MAX_LIMIT, admission.limit());
+
+    for (int i = 0; i < 3; i++) {
+      window(admission, 20);
+    }
+    int shrunk = admission.limit();
+    assertTrue(shrunk < MAX_LIMIT);
+
+    window(admission, 1);
+    window(admission, 1);
+    assertTrue(admission.limit() > shrunk);
+  }
+
+  @Test
+  public void idleNodeKeepsLimit() throws InterruptedException {
+    AdmissionControl admission = new AdmissionControl(4, MAX_LIMIT);
+    for (int i = 0; i < 3; i++) {
+      admission.tryAcquire(CLIENT);
+      Thread.sleep(TimeUnit.NANOSECONDS.toMillis(AdmissionControl.WINDOW_NANOS));
+      for (int j = 0; j < AdmissionControl.WINDOW_SAMPLES; j++) {
+        admission.release(TimeUnit.MILLISECONDS.toNanos(i == 0 ? 1 : 100));
+        admission.tryAcquire(CLIENT);
+      }
+      admission.release(0);
+    }
+    assertEquals(MAX_LIMIT, admission.limit());
+  }
+
+  /**
+   * Completes a window of concurrent requests, enough to tell the limit is reached
+   */
+  private static void window(AdmissionControl admission, long latencyMillis) throws InterruptedException {
+    for (int i = 0; i < AdmissionControl.WINDOW_SAMPLES; i++) {
+      assertTrue(admission.tryAcquire(INTERNAL));
+    }
+    Thread.sleep(TimeUnit.NANOSECONDS.toMillis(AdmissionControl.WINDOW_NANOS));
+    for (int i = 0; i < AdmissionControl.WINDOW_SAMPLES; i++) {
+      admission.release(TimeUnit.MILLISECONDS.toNanos(latencyMillis));
+    }
+  }
+}
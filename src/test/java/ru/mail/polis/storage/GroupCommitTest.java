@@ -0,0 +1,75 @@
+package ru.mail.polis.storage;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.*;
+
+public class GroupCommitTest {
+
+  private static final int WRITERS = 8;
+  private static final int WRITES = 100;
+
+  @Test
+  public void batchModeSharesForces() throws Exception {
+    AtomicLong written = new AtomicLong();
+    AtomicLong durable = new AtomicLong();
+    AtomicInteger forces = new AtomicInteger();
+    GroupCommit commit = new GroupCommit(GroupCommit.Mode.BATCH, 0, () -> {
+      long lsn = written.get();
+      forces.incrementAndGet();
+      LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+      durable.set(lsn);
+      return lsn;
+    });
+
+    AtomicInteger violations = new AtomicInteger();
+    CountDownLatch start = new CountDownLatch(1);
+    List<Thread> writers = new ArrayList<>();
+    for (int i = 0; i < WRITERS; i++) {
+      Thread writer = new Thread(() -> {
+        try {
+          start.await();
+          for (int j = 0; j < WRITES; j++) {
+            long lsn = written.incrementAndGet();
+            commit.await(lsn);
+            if (durable.get() < lsn) {
+              violations.incrementAndGet();
+            }
+          }
+        }
+        catch (Exception e) {
+          violations.incrementAndGet();
+        }
+      });
+      writer.start();
+      writers.add(writer);
+    }
+    start.countDown();
+    for (Thread writer : writers) {
+      writer.join();
+    }
+
+    assertEquals(0, violations.get());
+    assertTrue("Expected less forces than writes, but was " + forces.get(), forces.get() < WRITERS * WRITES);
+  }
+
+  @Test
+  public void noneModeNeverForces() throws Exception {
+    AtomicInteger forces = new AtomicInteger();
+    GroupCommit commit = new GroupCommit(GroupCommit.Mode.NONE, 0, () -> {
+      forces.incrementAndGet();
+      return 0;
+    });
+    commit.await(1);
+    commit.close();
+    assertEquals(0, forces.get());
+  }
+}
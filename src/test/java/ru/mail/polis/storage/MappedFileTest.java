@@ -0,0 +1,66 @@
+package ru.mail.polis.storage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.Assert.*;
+
+public class MappedFileTest {
+
+  private static final int REGION_SIZE = 16;
+
+  private File file;
+  private MappedFile mapped;
+
+  @Before
+  public void setUp() throws Exception {
+    file = File.createTempFile("mapped", ".bin");
+    ByteBuffer content = ByteBuffer.allocate(40);
+    for (int i = 0; i < 40; i++) {
+      content.put((byte) i);
+    }
+    Files.write(file.toPath(), content.array());
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      mapped = MappedFile.map(channel, REGION_SIZE);
+    }
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    assertTrue(file.delete());
+  }
+
+  @Test
+  public void sliceInsideRegion() throws Exception {
+    ByteBuffer slice = mapped.slice(17, 4);
+    assertTrue(slice.isReadOnly());
+    assertEquals(ByteBuffer.wrap(new byte[]{17, 18, 19, 20}), slice);
+  }
+
+  @Test
+  public void sliceAcrossRegions() throws Exception {
+    ByteBuffer slice = mapped.slice(14, 20);
+    for (int i = 14; i < 34; i++) {
+      assertEquals(i, slice.get());
+    }
+  }
+
+  @Test
+  public void numbersAcrossRegions() throws Exception {
+    assertEquals(ByteBuffer.wrap(new byte[]{14, 15, 16, 17}).getInt(), mapped.getInt(14));
+    assertEquals(ByteBuffer.wrap(new byte[]{28, 29, 30, 31, 32, 33, 34, 35}).getLong(), mapped.getLong(28));
+    assertEquals(39, mapped.get(39));
+  }
+
+  @Test(expected = IndexOutOfBoundsException.class)
+  public void sliceOutOfFile() throws Exception {
+    mapped.slice(38, 4);
+  }
+}
@@ -0,0 +1,154 @@
+package ru.mail.polis.storage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import ru.mail.polis.utils.HybridClock;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class StorageDaoTest {
+
+  private File dir;
+  private StorageDao dao;
+
+  @Before
+  public void setUp() throws Exception {
+    dir = Files.createTempDirectory("storage-dao").toFile();
+    dao = new StorageDao(dir);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    dao.close();
+    File[] files = dir.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        assertTrue(file.delete());
+      }
+    }
+    assertTrue(dir.delete());
+  }
+
+  @Test
+  public void valueLookingLikeTombstone() throws Exception {
+    dao.upsert("key", "__DELETED__".getBytes());
+    assertArrayEquals("__DELETED__".getBytes(), dao.get("key"));
+  }
+
+  @Test(expected = DataDeletedException.class)
+  public void getDeleted() throws Exception {
+    dao.upsert("key", "value".getBytes());
+    dao.delete("key");
+    dao.get("key");
+  }
+
+  @Test
+  public void tombstoneWinsTie() throws Exception {
+    dao.upsert("key", "value".getBytes(), 10);
+    dao.delete("key", 10);
+    dao.upsert("key", "again".getBytes(), 10);
+    assertTrue(dao.getValue("key").isTombstone());
+
+    dao.upsert("key", "newer".getBytes(), 11);
+    assertArrayEquals("newer".getBytes(), dao.get("key"));
+  }
+
+  @Test
+  public void readWhileOverwritten() throws Exception {
+    byte[] value = new byte[64 * 1024];
+    dao.upsert("key", value);
+    Thread writer = new Thread(() -> {
+      try {
+        for (int i = 0; i < 200; i++) {
+          dao.upsert("key", value);
+        }
+      }
+      catch (Exception e) {
+        throw new AssertionError(e);
+      }
+    });
+    writer.start();
+    while (writer.isAlive()) {
+      assertEquals(value.length, dao.get("key").length);
+    }
+    writer.join();
+  }
+
+  @Test
+  public void streamLargeValue() throws Exception {
+    byte[] data = new byte[3 * 1024 * 1024];
+    new Random(1).nextBytes(data);
+    dao.upsert("key", new ByteArrayInputStream(data), data.length, 10);
+    dao.upsert("key", new ByteArrayInputStream("older".getBytes()), 5, 9);
+
+    ByteBuffer stored = dao.getBuffer("key");
+    assertEquals(data.length, stored.remaining());
+    assertEquals(ByteBuffer.wrap(data), stored);
+    assertEquals(1, dir.listFiles(File::isFile).length);
+    assertEquals(0, new File(dir, ".uploads").list().length);
+  }
+
+  @Test
+  public void streamShorterThanLength() throws Exception {
+    dao.upsert("key", "value".getBytes(), 10);
+    try {
+      dao.upsert("key", new ByteArrayInputStream("new".getBytes()), 5, 11);
+      fail();
+    }
+    catch (EOFException e) {
+      // Expected
+    }
+    assertArrayEquals("value".getBytes(), dao.get("key"));
+    assertEquals(1, dir.listFiles(File::isFile).length);
+    assertEquals(0, new File(dir, ".uploads").list().length);
+  }
+
+  @Test
+  public void clearUploadsOnOpen() throws Exception {
+    dao.close();
+    assertTrue(new File(dir, ".uploads/upload1.tmp").createNewFile());
+    dao = new StorageDao(dir);
+    assertEquals(0, new File(dir, ".uploads").list().length);
+    try {
+      dao.getValue(".uploads");
+      fail();
+    }
+    catch (IllegalArgumentException e) {
+      // Expected
+    }
+  }
+
+  @Test
+  public void collectExpiredTombstones() throws Exception {
+    dao.close();
+    dao = new StorageDao(dir, 1000, 10_000, 50);
+    long expired = HybridClock.fromMillis(System.currentTimeMillis() - 10_000);
+    dao.delete("expired", expired);
+    dao.upsert("value", "value".getBytes(), expired);
+    dao.delete("fresh");
+
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (new File(dir, "expired").exists() && System.nanoTime() < deadline) {
+      Thread.sleep(20);
+    }
+    assertFalse(new File(dir, "expired").exists());
+    try {
+      dao.getValue("expired");
+      fail();
+    }
+    catch (IdNotFoundException e) {
+      // Expected
+    }
+    assertArrayEquals("value".getBytes(), dao.get("value"));
+    assertTrue(dao.getValue("fresh").isTombstone());
+  }
+}
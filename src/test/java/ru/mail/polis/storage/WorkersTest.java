@@ -0,0 +1,75 @@
+package ru.mail.polis.storage;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class WorkersTest {
+
+  private static final int LIMIT = 4;
+  private static final int TASKS = 20;
+
+  @Test
+  public void poolLimitsConcurrency() throws Exception {
+    limitsConcurrency(Workers.pool(LIMIT));
+  }
+
+  @Test
+  public void virtualLimitsConcurrency() throws Exception {
+    Workers workers;
+    try {
+      workers = Workers.virtual(LIMIT);
+    }
+    catch (UnsupportedOperationException e) {
+      // No virtual threads before Java 21
+      return;
+    }
+    limitsConcurrency(workers);
+  }
+
+  private static void limitsConcurrency(Workers workers) throws InterruptedException {
+    AtomicInteger running = new AtomicInteger();
+    AtomicInteger maxRunning = new AtomicInteger();
+    CountDownLatch started = new CountDownLatch(LIMIT);
+    CountDownLatch release = new CountDownLatch(1);
+    CountDownLatch done = new CountDownLatch(TASKS);
+    try {
+      for (int i = 0; i < TASKS; i++) {
+        workers.execute(() -> {
+          maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+          started.countDown();
+          try {
+            release.await();
+          }
+          catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          finally {
+            running.decrementAndGet();
+            done.countDown();
+          }
+        });
+      }
+
+      assertTrue(started.await(5, TimeUnit.SECONDS));
+      long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+      while (workers.queued() < TASKS - LIMIT && System.nanoTime() < deadline) {
+        Thread.sleep(10);
+      }
+      assertEquals(TASKS - LIMIT, workers.queued());
+      assertEquals(LIMIT, workers.active());
+
+      release.countDown();
+      assertTrue(done.await(5, TimeUnit.SECONDS));
+      assertEquals(LIMIT, maxRunning.get());
+    }
+    finally {
+      release.countDown();
+      workers.shutdown();
+    }
+  }
+}
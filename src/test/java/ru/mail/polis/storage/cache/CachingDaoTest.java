@@ -0,0 +1,139 @@
+package ru.mail.polis.storage.cache;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.Before;
+import org.junit.Test;
+import ru.mail.polis.storage.DAO;
+import ru.mail.polis.storage.DataDeletedException;
+import ru.mail.polis.storage.IdNotFoundException;
+import ru.mail.polis.storage.Value;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class CachingDaoTest {
+
+  private CountingDao storage;
+  private CachingDao dao;
+
+  @Before
+  public void setUp() {
+    storage = new CountingDao();
+    dao = new CachingDao(storage, OffHeapCache.SLAB_SIZE);
+  }
+
+  @Test
+  public void hotReadsSkipStorage() throws Exception {
+    dao.upsert("key", "value".getBytes());
+    for (int i = 0; i < 10; i++) {
+      assertArrayEquals("value".getBytes(), dao.get("key"));
+      assertEquals(ByteBuffer.wrap("value".getBytes()), dao.getBuffer("key"));
+    }
+    assertEquals(1, storage.reads);
+    assertTrue(dao.hitRate() > 0.9);
+  }
+
+  @Test
+  public void writeInvalidates() throws Exception {
+    dao.upsert("key", "first".getBytes());
+    assertArrayEquals("first".getBytes(), dao.get("key"));
+    dao.upsert("key", "second".getBytes());
+    assertArrayEquals("second".getBytes(), dao.get("key"));
+    assertEquals(2, storage.reads);
+  }
+
+  @Test
+  public void cacheTombstone() throws Exception {
+    dao.upsert("key", "value".getBytes());
+    assertArrayEquals("value".getBytes(), dao.get("key"));
+    dao.delete("key");
+    for (int i = 0; i < 10; i++) {
+      try {
+        dao.get("key");
+        fail();
+      }
+      catch (DataDeletedException e) {
+        // Expected
+      }
+    }
+    assertEquals(2, storage.reads);
+  }
+
+  @Test
+  public void evictLeastRecentlyUsed() throws Exception {
+    // One slab of 1 KB chunks holds 1024 values
+    byte[] value = new byte[1000];
+    for (int i = 0; i <= 1024; i++) {
+      dao.upsert("key" + i, value);
+      dao.get("key" + i);
+      dao.get("key0");
+    }
+    int reads = storage.reads;
+    dao.get("key0");
+    dao.get("key1024");
+    assertEquals(reads, storage.reads);
+    dao.get("key1");
+    assertEquals(reads + 1, storage.reads);
+  }
+
+  @Test
+  public void moveSlabToNewSize() throws Exception {
+    // The only slab is split into 1 KB chunks first
+    byte[] large = new byte[1000];
+    for (int i = 0; i < 10; i++) {
+      dao.upsert("large" + i, large);
+      dao.get("large" + i);
+    }
+
+    // Then the values are small, and the slab goes to their size
+    byte[] small = new byte[100];
+    for (int i = 0; i < 10; i++) {
+      dao.upsert("small" + i, small);
+      dao.get("small" + i);
+    }
+    int reads = storage.reads;
+    for (int i = 0; i < 10; i++) {
+      assertArrayEquals(small, dao.get("small" + i));
+    }
+    assertEquals(reads, storage.reads);
+    dao.get("large0");
+    assertEquals(reads + 1, storage.reads);
+  }
+
+  @Test
+  public void skipLargeValues() throws Exception {
+    dao.upsert("key", new byte[OffHeapCache.SLAB_SIZE + 1]);
+    dao.get("key");
+    dao.get("key");
+    assertEquals(2, storage.reads);
+  }
+
+  private static class CountingDao implements DAO {
+    private final Map<String, Value> values = new HashMap<>();
+    private int reads;
+
+    @NotNull
+    @Override
+    public Value getValue(@NotNull String id) {
+      reads++;
+      Value value = values.get(id);
+      if (value == null)
+        throw new IdNotFoundException("Can't get data by id = " + id);
+
+      return value;
+    }
+
+    @Override
+    public void upsert(@NotNull String id, @NotNull byte[] data, long timestamp) {
+      values.put(id, Value.present(ByteBuffer.wrap(data), timestamp));
+    }
+
+    @Override
+    public void delete(@NotNull String id, long timestamp) {
+      values.put(id, Value.tombstone(timestamp));
+    }
+  }
+}
@@ -0,0 +1,312 @@
+package ru.mail.polis.storage.interaction;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.AfterClass;
+import org.junit.Test;
+import ru.mail.polis.metrics.Metrics;
+import ru.mail.polis.utils.Replicas;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static org.apache.http.HttpStatus.*;
+import static org.junit.Assert.*;
+
+public class AbstractClusterInteractionTest {
+
+  private static final ClusterClient CLIENT = new ClusterClient(3, 4, 100, 100);
+
+  @AfterClass
+  public static void closeClient() throws IOException {
+    CLIENT.close();
+  }
+
+  @Test
+  public void returnAfterAckFastestReplicas() {
+    Map<String, Long> delays = new LinkedHashMap<>();
+    delays.put("slow", TimeUnit.SECONDS.toMillis(5));
+    delays.put("fast1", 10L);
+    delays.put("fast2", 20L);
+
+    long start = System.nanoTime();
+    HttpResponse response = new DelayedInteraction(new Replicas(2, 3), delays).run();
+    assertEquals(SC_OK, response.getStatusLine().getStatusCode());
+    assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2));
+  }
+
+  @Test(expected = NotEnoughReplicasSentAcknowledge.class)
+  public void failAsSoonAsAckIsUnreachable() {
+    Map<String, Long> delays = new LinkedHashMap<>();
+    delays.put("slow", TimeUnit.SECONDS.toMillis(5));
+    delays.put("down1", -1L);
+    delays.put("down2", -1L);
+    new DelayedInteraction(new Replicas(2, 3), delays).run();
+  }
+
+  @Test
+  public void resolveWithReplicasAnsweredInTime() {
+    Map<String, Long> delays = new LinkedHashMap<>();
+    delays.put("slow", 500L);
+    delays.put("fast1", 10L);
+    delays.put("fast2", 20L);
+
+    DelayedInteraction interaction = new DelayedInteraction(new Replicas(2, 3), delays);
+    interaction.run();
+    assertEquals(new HashSet<>(Arrays.asList("fast1", "fast2")), interaction.resolved.keySet());
+  }
+
+  @Test
+  public void resolveWithAllReplicasInBackground() throws Exception {
+    Map<String, Long> delays = new LinkedHashMap<>();
+    delays.put("slow", 500L);
+    delays.put("fast1", 10L);
+    delays.put("down", -1L);
+
+    DelayedInteraction interaction = new DelayedInteraction(new Replicas(1, 3), delays);
+    interaction.awaitRest = true;
+    long start = System.nanoTime();
+    interaction.run();
+    assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(400));
+    assertTrue(interaction.resolved.isEmpty());
+
+    Map<String, HttpResponse> resolved = interaction.resolved.get("slow", 2, TimeUnit.SECONDS);
+    assertEquals(new HashSet<>(Arrays.asList("slow", "fast1")), resolved.keySet());
+  }
+
+  @Test
+  public void releaseAllButResult() throws Exception {
+    Map<String, Long> delays = new LinkedHashMap<>();
+    delays.put("slow", 300L);
+    delays.put("fast1", 10L);
+    delays.put("fast2", 20L);
+
+    DelayedInteraction interaction = new DelayedInteraction(new Replicas(2, 3), delays);
+    interaction.streams = true;
+    HttpResponse result = interaction.run();
+    assertFalse(((StreamedResponse) result).released);
+    assertTrue(interaction.opened.get("fast2").released);
+
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+    while (!interaction.opened.containsKey("slow") || !interaction.opened.get("slow").released) {
+      assertTrue(System.nanoTime() < deadline);
+      Thread.sleep(10);
+    }
+  }
+
+  @Test
+  public void hedgeAskingAckReplicasFirst() throws Exception {
+    Map<String, Long> delays = new LinkedHashMap<>();
+    delays.put("fast1", 10L);
+    delays.put("fast2", 20L);
+    delays.put("fast3", 10L);
+
+    DelayedInteraction interaction = new DelayedInteraction(new Replicas(2, 3), delays);
+    interaction.hedging = new Hedging(95, 0.5, new Metrics());
+    assertEquals(SC_OK, interaction.run().getStatusLine().getStatusCode());
+    Thread.sleep(100);
+    assertEquals(new HashSet<>(Arrays.asList("fast1", "fast2")), interaction.opened.keySet());
+  }
+
+  @Test
+  public void hedgeReplacingFailedReplica() {
+    Map<String, Long> delays = new LinkedHashMap<>();
+    delays.put("down", -1L);
+    delays.put("fast1", 10L);
+    delays.put("fast2", 20L);
+
+    DelayedInteraction interaction = new DelayedInteraction(new Replicas(2, 3), delays);
+    interaction.hedging = new Hedging(95, 0.5, new Metrics());
+    assertEquals(SC_OK, interaction.run().getStatusLine().getStatusCode());
+    assertEquals(new HashSet<>(Arrays.asList("fast1", "fast2")), interaction.resolved.keySet());
+  }
+
+  @Test
+  public void hedgeLateReplica() {
+    Map<String, Long> delays = new LinkedHashMap<>();
+    delays.put("slow", TimeUnit.SECONDS.toMillis(5));
+    delays.put("fast", 10L);
+
+    Hedging hedging = new Hedging(95, 1, new Metrics());
+    for (int i = 0; i < Hedging.MIN_SAMPLES; i++) {
+      hedging.record("slow", TimeUnit.MILLISECONDS.toNanos(10));
+    }
+    DelayedInteraction interaction = new DelayedInteraction(new Replicas(1, 2), delays);
+    interaction.hedging = hedging;
+    long start = System.nanoTime();
+    assertEquals(SC_OK, interaction.run().getStatusLine().getStatusCode());
+    assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2));
+    assertEquals(Collections.singleton("fast"), interaction.resolved.keySet());
+    assertEquals(Collections.singletonMap("slow", "fast"), interaction.hedges);
+  }
+
+  @Test
+  public void rejectedRequestIsFailedReplica() throws IOException {
+    Map<String, Long> delays = new LinkedHashMap<>();
+    delays.put("slow", 200L);
+    delays.put("rejected", 10L);
+
+    try (ClusterClient single = new ClusterClient(1, 1, 100, 100)) {
+      DelayedInteraction interaction = new DelayedInteraction(new Replicas(1, 2), delays, single);
+      assertEquals(SC_OK, interaction.run().getStatusLine().getStatusCode());
+      assertEquals(Collections.singleton("rejected"), interaction.missed);
+    }
+  }
+
+  @Test
+  public void lateResponsesTakeNoThread() throws Exception {
+    Map<String, Long> delays = new LinkedHashMap<>();
+    delays.put("slow", 500L);
+    delays.put("fast", 10L);
+
+    try (ClusterClient pair = new ClusterClient(1, 2, 100, 100)) {
+      DelayedInteraction interaction = new DelayedInteraction(new Replicas(1, 2), delays, pair);
+      interaction.streams = true;
+      long start = System.nanoTime();
+      assertEquals(SC_OK, interaction.run().getStatusLine().getStatusCode());
+      assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(300));
+
+      // Only the slow request holds a thread, the other one is free for the next request
+      Thread.sleep(50);
+      DelayedInteraction next = new DelayedInteraction(new Replicas(1, 1), Collections.singletonMap("fast", 10L), pair);
+      assertEquals(SC_OK, next.run().getStatusLine().getStatusCode());
+
+      long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+      while (!interaction.opened.containsKey("slow") || !interaction.opened.get("slow").released) {
+        assertTrue(System.nanoTime() < deadline);
+        Thread.sleep(10);
+      }
+    }
+  }
+
+  private static class DelayedInteraction extends AbstractClusterInteraction {
+    private final Map<String, Long> delays;
+    private final ResolvedResponses resolved = new ResolvedResponses();
+    private final Map<String, StreamedResponse> opened = new ConcurrentHashMap<>();
+    private final Set<String> missed = ConcurrentHashMap.newKeySet();
+    private final Map<String, String> hedges = new ConcurrentHashMap<>();
+    private boolean awaitRest;
+    private boolean streams;
+    private Hedging hedging;
+
+    DelayedInteraction(Replicas replicas, Map<String, Long> delays) {
+      this(replicas, delays, CLIENT);
+    }
+
+    DelayedInteraction(Replicas replicas, Map<String, Long> delays, ClusterClient client) {
+      super(replicas, new ArrayList<>(delays.keySet()), client);
+      this.delays = delays;
+    }
+
+    @Override
+    protected boolean awaitRest() {
+      return awaitRest;
+    }
+
+    @Override
+    protected boolean streams() {
+      return streams;
+    }
+
+    @Override
+    protected Hedging hedging() {
+      return hedging;
+    }
+
+    @Override
+    protected void resolved(Map<String, HttpResponse> responses, HttpResponse result) {
+      resolved.set(responses);
+    }
+
+    @Override
+    protected void missed(String nodeUrl) {
+      missed.add(nodeUrl);
+    }
+
+    @Override
+    protected void hedged(String late, String hedge) {
+      hedges.put(late, hedge);
+    }
+
+    @Override
+    protected HttpResponse selectResponseFromCluster(Map<String, HttpResponse> responses) {
+      return responses.values().iterator().next();
+    }
+
+    @Override
+    protected HttpResponse makeRequest(String nodeUrl) throws IOException {
+      long delay = delays.get(nodeUrl);
+      if (delay < 0)
+        throw new IOException("Node is down " + nodeUrl);
+
+      try {
+        Thread.sleep(delay);
+      }
+      catch (InterruptedException e) {
+        throw new IOException(e);
+      }
+      StreamedResponse response = new StreamedResponse();
+      opened.put(nodeUrl, response);
+      return response;
+    }
+
+    @Override
+    public boolean wellDone(int statusCode) {
+      return statusCode == SC_OK;
+    }
+
+    @Override
+    public String httpMethod() {
+      return "GET";
+    }
+  }
+
+  private static class StreamedResponse extends BasicHttpResponse implements Closeable {
+    private volatile boolean released;
+
+    StreamedResponse() {
+      super(HttpVersion.HTTP_1_1, SC_OK, "OK");
+    }
+
+    @Override
+    public void close() {
+      released = true;
+    }
+  }
+
+  private static class ResolvedResponses {
+    private Map<String, HttpResponse> responses = Collections.emptyMap();
+
+    synchronized void set(Map<String, HttpResponse> responses) {
+      this.responses = responses;
+      notifyAll();
+    }
+
+    synchronized Set<String> keySet() {
+      return responses.keySet();
+    }
+
+    synchronized boolean isEmpty() {
+      return responses.isEmpty();
+    }
+
+    synchronized Map<String, HttpResponse> get(String node, long timeout, TimeUnit unit) throws InterruptedException {
+      long deadline = System.nanoTime() + unit.toNanos(timeout);
+      while (!responses.containsKey(node) && System.nanoTime() < deadline) {
+        TimeUnit.NANOSECONDS.timedWait(this, deadline - System.nanoTime());
+      }
+      return responses;
+    }
+  }
+}
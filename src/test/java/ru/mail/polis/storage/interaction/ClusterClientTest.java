@@ -0,0 +1,30 @@
+package ru.mail.polis.storage.interaction;
+
+import org.apache.http.client.methods.HttpGet;
+import org.junit.Test;
+
+import java.net.ServerSocket;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ClusterClientTest {
+
+  @Test
+  public void timeoutOnHungNode() throws Exception {
+    // Accepts connections to the backlog, but never responds
+    try (ServerSocket hung = new ServerSocket(0);
+         ClusterClient client = new ClusterClient(1, 1, 200, 200)) {
+      long start = System.nanoTime();
+      try {
+        client.execute(new HttpGet("http://localhost:" + hung.getLocalPort() + "/v0/status"));
+        fail();
+      }
+      catch (SocketTimeoutException e) {
+        // Expected
+      }
+      assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2));
+    }
+  }
+}
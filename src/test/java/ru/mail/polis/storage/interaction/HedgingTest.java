@@ -0,0 +1,55 @@
+package ru.mail.polis.storage.interaction;
+
+import org.junit.Test;
+import ru.mail.polis.metrics.Metrics;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class HedgingTest {
+
+  @Test
+  public void delayIsPercentileOfRecentLatencies() {
+    Hedging hedging = new Hedging(95, 0.05, new Metrics());
+    assertEquals(Long.MAX_VALUE, hedging.delayNanos("node"));
+
+    for (int i = 1; i <= 6 * Hedging.MIN_SAMPLES; i++) {
+      hedging.record("node", TimeUnit.MILLISECONDS.toNanos(i));
+    }
+    assertEquals(TimeUnit.MILLISECONDS.toNanos(92), hedging.delayNanos("node"));
+    assertEquals(Long.MAX_VALUE, hedging.delayNanos("other"));
+
+    // Old latencies leave the window
+    for (int i = 0; i < Hedging.WINDOW; i++) {
+      hedging.record("node", TimeUnit.MILLISECONDS.toNanos(1));
+    }
+    assertEquals(TimeUnit.MILLISECONDS.toNanos(1), hedging.delayNanos("node"));
+  }
+
+  @Test
+  public void budgetLimitsHedges() {
+    Hedging hedging = new Hedging(95, 0.1, new Metrics());
+    assertFalse(hedging.tryHedge());
+    for (int i = 0; i < 10; i++) {
+      hedging.started();
+    }
+    assertTrue(hedging.tryHedge());
+    assertFalse(hedging.tryHedge());
+
+    for (int i = 0; i < 1000; i++) {
+      hedging.started();
+    }
+    int hedges = 0;
+    while (hedging.tryHedge()) {
+      hedges++;
+    }
+    assertEquals(10, hedges);
+  }
+
+  @Test
+  public void noBudgetDisables() {
+    assertFalse(new Hedging(95, 0, new Metrics()).enabled());
+    assertTrue(new Hedging(95, 0.05, new Metrics()).enabled());
+  }
+}
@@ -0,0 +1,181 @@
+package ru.mail.polis.storage.interaction;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class HintedHandoffTest {
+
+  private File data;
+  private HttpServer node;
+  private String nodeUrl;
+  private volatile boolean online;
+  private volatile int failures;
+  private final List<String> received = new CopyOnWriteArrayList<>();
+
+  @Before
+  public void setUp() throws Exception {
+    data = Files.createTempDirectory("hints").toFile();
+    node = HttpServer.create(new InetSocketAddress("localhost", 0), 16);
+    node.createContext("/v0/status", this::status);
+    node.createContext("/v0/internal", this::internal);
+    node.start();
+    nodeUrl = "http://localhost:" + node.getAddress().getPort();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    node.stop(0);
+    File hints = new File(data, "hints");
+    File[] files = hints.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        assertTrue(file.delete());
+      }
+      assertTrue(hints.delete());
+    }
+    assertTrue(data.delete());
+  }
+
+  private void status(HttpExchange http) throws IOException {
+    byte[] body = (online ? "ONLINE" : "OFFLINE").getBytes();
+    http.sendResponseHeaders(200, body.length);
+    try (OutputStream out = http.getResponseBody()) {
+      out.write(body);
+    }
+  }
+
+  private void internal(HttpExchange http) throws IOException {
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    try (InputStream in = http.getRequestBody()) {
+      byte[] buffer = new byte[1024];
+      for (int read = in.read(buffer); read > 0; read = in.read(buffer)) {
+        body.write(buffer, 0, read);
+      }
+    }
+    String id = http.getRequestURI().getQuery().substring("id=".length());
+    if (failures > 0) {
+      failures--;
+      received.add("FAILED " + id);
+      http.sendResponseHeaders(503, -1);
+      http.close();
+      return;
+    }
+    if (id.startsWith("bad")) {
+      received.add("REJECTED " + id);
+      http.sendResponseHeaders(400, -1);
+      http.close();
+      return;
+    }
+    String timestamp = http.getRequestHeaders().getFirst(AbstractClusterInteraction.TIMESTAMP_HEADER);
+    if ("PUT".equals(http.getRequestMethod())) {
+      received.add("PUT " + id + " " + body + " " + timestamp);
+      http.sendResponseHeaders(201, -1);
+    }
+    else {
+      received.add("DELETE " + id + " " + timestamp);
+      http.sendResponseHeaders(202, -1);
+    }
+    http.close();
+  }
+
+  @Test
+  public void deliverOnceNodeIsOnline() throws Exception {
+    try (ClusterClient client = new ClusterClient(1, 2, 500, 500);
+         HintedHandoff hints = new HintedHandoff(data, client, 1000)) {
+      hints.hintUpsert(nodeUrl, "a", "first".getBytes(), 1);
+      hints.hintDelete(nodeUrl, "b", 2);
+
+      Thread.sleep(2 * HintedHandoff.DELIVERY_PERIOD_MILLIS);
+      assertTrue(received.isEmpty());
+
+      online = true;
+      hints.hintUpsert(nodeUrl, "c", "second".getBytes(), 3);
+      awaitReceived(3);
+      assertEquals("PUT a first 1", received.get(0));
+      assertEquals("DELETE b 2", received.get(1));
+      assertEquals("PUT c second 3", received.get(2));
+    }
+  }
+
+  @Test
+  public void deliverAfterRestart() throws Exception {
+    try (ClusterClient client = new ClusterClient(1, 2, 500, 500)) {
+      try (HintedHandoff hints = new HintedHandoff(data, client, 1000)) {
+        hints.hintUpsert(nodeUrl, "a", "value".getBytes(), 1);
+      }
+
+      online = true;
+      HintedHandoff restarted = new HintedHandoff(data, client, 1000);
+      try {
+        awaitReceived(1);
+        assertEquals("PUT a value 1", received.get(0));
+      }
+      finally {
+        restarted.close();
+      }
+    }
+  }
+
+  @Test
+  public void setAsideRejectedHint() throws Exception {
+    online = true;
+    try (ClusterClient client = new ClusterClient(1, 2, 500, 500);
+         HintedHandoff hints = new HintedHandoff(data, client, 1000)) {
+      hints.hintUpsert(nodeUrl, "bad", "value".getBytes(), 1);
+      hints.hintUpsert(nodeUrl, "good", "value".getBytes(), 2);
+      awaitReceived(2);
+      assertEquals("REJECTED bad", received.get(0));
+      assertEquals("PUT good value 2", received.get(1));
+    }
+    File[] rejected = new File(data, "hints").listFiles((dir, name) -> name.endsWith(".rejected"));
+    assertNotNull(rejected);
+    assertEquals(1, rejected.length);
+    assertTrue(rejected[0].length() > 0);
+  }
+
+  @Test
+  public void retryFromFailedHint() throws Exception {
+    online = true;
+    failures = 1;
+    try (ClusterClient client = new ClusterClient(1, 2, 500, 500);
+         HintedHandoff hints = new HintedHandoff(data, client, 1000)) {
+      hints.hintUpsert(nodeUrl, "a", "first".getBytes(), 1);
+      hints.hintUpsert(nodeUrl, "b", "second".getBytes(), 2);
+      awaitReceived(3);
+      assertEquals("FAILED a", received.get(0));
+      assertEquals("PUT a first 1", received.get(1));
+      assertEquals("PUT b second 2", received.get(2));
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectZeroRate() throws Exception {
+    try (ClusterClient client = new ClusterClient(1, 2, 500, 500)) {
+      new HintedHandoff(data, client, 0).close();
+    }
+  }
+
+  private void awaitReceived(int count) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (received.size() < count && System.nanoTime() < deadline) {
+      Thread.sleep(50);
+    }
+    assertEquals(count, received.size());
+  }
+}
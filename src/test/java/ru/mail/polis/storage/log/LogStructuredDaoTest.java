@@ -0,0 +1,128 @@
+package ru.mail.polis.storage.log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import ru.mail.polis.storage.DataDeletedException;
+import ru.mail.polis.storage.GroupCommit;
+import ru.mail.polis.storage.IdNotFoundException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+public class LogStructuredDaoTest {
+
+  private File dir;
+  private LogStructuredDao dao;
+
+  @Before
+  public void setUp() throws Exception {
+    dir = Files.createTempDirectory("log-dao").toFile();
+    dao = new LogStructuredDao(dir, 1024, GroupCommit.Mode.BATCH, 0);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    dao.close();
+    File[] files = dir.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        assertTrue(file.delete());
+      }
+    }
+    assertTrue(dir.delete());
+  }
+
+  @Test
+  public void getReturnsLatestValue() throws Exception {
+    dao.upsert("key", "first".getBytes());
+    dao.upsert("key", "second".getBytes());
+    assertArrayEquals("second".getBytes(), dao.get("key"));
+  }
+
+  @Test
+  public void getEmptyValue() throws Exception {
+    dao.upsert("key", new byte[]{});
+    assertArrayEquals(new byte[]{}, dao.get("key"));
+  }
+
+  @Test(expected = IdNotFoundException.class)
+  public void getAbsent() throws Exception {
+    dao.get("absent");
+  }
+
+  @Test(expected = DataDeletedException.class)
+  public void getDeleted() throws Exception {
+    dao.upsert("key", "value".getBytes());
+    dao.delete("key");
+    dao.get("key");
+  }
+
+  @Test
+  public void recoverAfterReopen() throws Exception {
+    for (int i = 0; i < 100; i++) {
+      dao.upsert("key" + i, ("value" + i).getBytes());
+    }
+    dao.delete("key0");
+    reopen();
+
+    assertTrue(dir.listFiles().length > 1);
+    for (int i = 1; i < 100; i++) {
+      assertArrayEquals(("value" + i).getBytes(), dao.get("key" + i));
+    }
+    try {
+      dao.get("key0");
+      fail();
+    }
+    catch (DataDeletedException e) {
+      // Expected
+    }
+  }
+
+  @Test
+  public void ignoreOlderVersion() throws Exception {
+    dao.upsert("key", "newer".getBytes(), 20);
+    dao.upsert("key", "older".getBytes(), 10);
+    dao.delete("key", 10);
+    reopen();
+    assertArrayEquals("newer".getBytes(), dao.get("key"));
+    assertEquals(20, dao.getValue("key").timestamp());
+  }
+
+  @Test
+  public void truncateTornRecord() throws Exception {
+    dao.upsert("key", "value".getBytes());
+    dao.upsert("torn", "value".getBytes());
+    dao.close();
+
+    File segment = new File(dir, "segment-0.log");
+    try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+      file.setLength(file.length() - 2);
+    }
+    reopen();
+
+    assertTrue(dao.truncatedOnRecovery() > 0);
+    assertArrayEquals("value".getBytes(), dao.get("key"));
+    try {
+      dao.get("torn");
+      fail();
+    }
+    catch (IdNotFoundException e) {
+      // Expected
+    }
+
+    dao.upsert("torn", "again".getBytes());
+    reopen();
+    assertEquals(0, dao.truncatedOnRecovery());
+    assertArrayEquals("again".getBytes(), dao.get("torn"));
+  }
+
+  private void reopen() throws IOException {
+    dao.close();
+    dao = new LogStructuredDao(dir, 1024, GroupCommit.Mode.BATCH, 0);
+  }
+}
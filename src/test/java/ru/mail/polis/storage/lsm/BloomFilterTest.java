@@ -0,0 +1,59 @@
+package ru.mail.polis.storage.lsm;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+
+import static org.junit.Assert.*;
+
+public class BloomFilterTest {
+
+  private static final int KEYS = 10_000;
+
+  @Test
+  public void noFalseNegatives() {
+    BloomFilter filter = BloomFilter.create(KEYS);
+    for (int i = 0; i < KEYS; i++) {
+      filter.add("key" + i);
+    }
+    for (int i = 0; i < KEYS; i++) {
+      assertTrue(filter.mightContain("key" + i));
+    }
+  }
+
+  @Test
+  public void falsePositiveRate() {
+    BloomFilter filter = BloomFilter.create(KEYS);
+    for (int i = 0; i < KEYS; i++) {
+      filter.add("key" + i);
+    }
+    int falsePositives = 0;
+    for (int i = 0; i < KEYS; i++) {
+      if (filter.mightContain("absent" + i)) {
+        falsePositives++;
+      }
+    }
+    assertTrue("False positives: " + falsePositives, falsePositives < KEYS / 50);
+  }
+
+  @Test
+  public void writeAndRead() throws Exception {
+    BloomFilter filter = BloomFilter.create(KEYS);
+    for (int i = 0; i < KEYS; i++) {
+      filter.add("key" + i);
+    }
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      filter.writeTo(out);
+    }
+
+    BloomFilter read = BloomFilter.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+    for (int i = 0; i < KEYS; i++) {
+      assertEquals(filter.mightContain("key" + i), read.mightContain("key" + i));
+      assertEquals(filter.mightContain("absent" + i), read.mightContain("absent" + i));
+    }
+  }
+}
@@ -0,0 +1,260 @@
+package ru.mail.polis.storage.lsm;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import ru.mail.polis.storage.DataDeletedException;
+import ru.mail.polis.storage.Entry;
+import ru.mail.polis.storage.GroupCommit;
+import ru.mail.polis.storage.IdNotFoundException;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+
+import static org.junit.Assert.*;
+
+public class LsmDaoTest {
+
+  private static final long MEMTABLE_SIZE = 4 * 1024;
+
+  private File dir;
+  private LsmDao dao;
+
+  @Before
+  public void setUp() throws Exception {
+    dir = Files.createTempDirectory("lsm-dao").toFile();
+    dao = new LsmDao(dir, MEMTABLE_SIZE, GroupCommit.Mode.BATCH, 0);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    dao.close();
+    File[] files = dir.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        assertTrue(file.delete());
+      }
+    }
+    assertTrue(dir.delete());
+  }
+
+  @Test
+  public void getReturnsLatestValue() throws Exception {
+    dao.upsert("key", "first".getBytes());
+    dao.upsert("key", "second".getBytes());
+    assertArrayEquals("second".getBytes(), dao.get("key"));
+  }
+
+  @Test(expected = IdNotFoundException.class)
+  public void getAbsent() throws Exception {
+    dao.get("absent");
+  }
+
+  @Test(expected = DataDeletedException.class)
+  public void getDeleted() throws Exception {
+    dao.upsert("key", "value".getBytes());
+    dao.delete("key");
+    dao.get("key");
+  }
+
+  @Test
+  public void readThroughFlushesAndCompactions() throws Exception {
+    for (int round = 0; round < 10; round++) {
+      for (int i = 0; i < 100; i++) {
+        dao.upsert("key" + i, value(round, i));
+      }
+      dao.delete("key" + round);
+    }
+
+    for (int i = 0; i < 100; i++) {
+      assertValue(i);
+    }
+    reopen();
+    for (int i = 0; i < 100; i++) {
+      assertValue(i);
+    }
+
+    long tables = Arrays.stream(dir.listFiles()).filter(f -> SSTable.generationOf(f.getName()) >= 0).count();
+    assertTrue("Compaction should keep number of tables bounded", tables < 10 * 100 * 100 / MEMTABLE_SIZE);
+  }
+
+  @Test
+  public void mergeKeepsNewestVersion() throws Exception {
+    Iterator<Cell> newest = Arrays.asList(Cell.value("a", wrap("new"), 2), Cell.tombstone("c", 2)).iterator();
+    Iterator<Cell> oldest = Arrays.asList(
+      Cell.value("a", wrap("old"), 1),
+      Cell.value("b", wrap("old"), 1),
+      Cell.value("c", wrap("old"), 1)).iterator();
+    Iterator<Cell> merged = new MergeIterator(Arrays.asList(newest, oldest, Collections.<Cell>emptyIterator()));
+
+    assertEquals(wrap("new"), merged.next().value);
+    assertEquals(wrap("old"), merged.next().value);
+    assertTrue(merged.next().tombstone);
+    assertFalse(merged.hasNext());
+  }
+
+  @Test
+  public void mergeByTimestampRatherThanSource() throws Exception {
+    Iterator<Cell> newest = Collections.singletonList(Cell.value("a", wrap("late"), 1)).iterator();
+    Iterator<Cell> oldest = Collections.singletonList(Cell.value("a", wrap("new"), 2)).iterator();
+    Iterator<Cell> merged = new MergeIterator(Arrays.asList(newest, oldest));
+
+    assertEquals(wrap("new"), merged.next().value);
+    assertFalse(merged.hasNext());
+  }
+
+  @Test
+  public void rangeOverMemTableAndTables() throws Exception {
+    for (int round = 0; round < 3; round++) {
+      for (int i = 0; i < 100; i++) {
+        dao.upsert(String.format("key%03d", i), value(round, i));
+      }
+      // Leave the last round partly in the memtable
+      if (round == 1) {
+        reopen();
+      }
+    }
+    dao.delete("key015");
+
+    Iterator<Entry> range = dao.range("key010", "key020");
+    for (int i = 10; i < 20; i++) {
+      Entry entry = range.next();
+      assertEquals(String.format("key%03d", i), entry.key());
+      if (i == 15) {
+        assertTrue(entry.value().isTombstone());
+      }
+      else {
+        assertEquals(ByteBuffer.wrap(value(2, i)), entry.value().data());
+      }
+    }
+    assertFalse(range.hasNext());
+
+    Iterator<Entry> tail = dao.range("key0985", null);
+    assertEquals("key099", tail.next().key());
+    assertFalse(tail.hasNext());
+  }
+
+  private void assertValue(int i) throws IOException {
+    // Every key is rewritten in the next round, except the one deleted in the last round
+    if (i == 9) {
+      try {
+        dao.get("key" + i);
+        fail();
+      }
+      catch (DataDeletedException e) {
+        return;
+      }
+    }
+    assertArrayEquals(value(9, i), dao.get("key" + i));
+  }
+
+  @Test
+  public void recoverFromLogAfterCrash() throws Exception {
+    dao.upsert("key", "value".getBytes());
+    dao.upsert("deleted", "value".getBytes());
+    dao.delete("deleted");
+
+    // Abandon the storage without closing it as if the process crashed
+    dao = new LsmDao(dir, MEMTABLE_SIZE, GroupCommit.Mode.BATCH, 0);
+
+    assertArrayEquals("value".getBytes(), dao.get("key"));
+    try {
+      dao.get("deleted");
+      fail();
+    }
+    catch (DataDeletedException e) {
+      // Expected
+    }
+  }
+
+  @Test
+  public void ignoreOlderVersionInTable() throws Exception {
+    dao.upsert("key", "newer".getBytes(), 20);
+    reopen();
+    dao.upsert("key", "older".getBytes(), 10);
+    dao.delete("key", 10);
+    assertArrayEquals("newer".getBytes(), dao.get("key"));
+    assertEquals(20, dao.getValue("key").timestamp());
+
+    // The older version in the newer table too
+    reopen();
+    assertArrayEquals("newer".getBytes(), dao.get("key"));
+    assertEquals(wrap("newer"), dao.range("key", null).next().value().data());
+
+    dao.delete("key", 20);
+    assertTrue(dao.getValue("key").isTombstone());
+    dao.upsert("key", "same".getBytes(), 20);
+    assertTrue(dao.getValue("key").isTombstone());
+  }
+
+  @Test
+  public void lookUpOlderTableWhichMayWin() throws Exception {
+    dao.upsert("other", "older".getBytes(), 30);
+    reopen();
+    dao.delete("key", 20);
+    reopen();
+    dao.upsert("key", "same".getBytes(), 20);
+    dao.upsert("other", "newer".getBytes(), 10);
+    reopen();
+
+    // The tombstone of an older table wins the tie, and the oldest table holds the newer version of the other key
+    assertTrue(dao.getValue("key").isTombstone());
+    assertArrayEquals("older".getBytes(), dao.get("other"));
+  }
+
+  @Test
+  public void getBufferFromMappedTable() throws Exception {
+    dao.upsert("key", "value".getBytes());
+    reopen();
+    ByteBuffer value = dao.getBuffer("key");
+    assertTrue(value.isReadOnly());
+    assertEquals(wrap("value"), value);
+  }
+
+  @Test
+  public void rebuildMissingFilter() throws Exception {
+    for (int i = 0; i < 100; i++) {
+      dao.upsert("key" + i, value(0, i));
+    }
+    dao.close();
+    File[] filters = dir.listFiles((d, name) -> name.endsWith(".bloom"));
+    assertTrue(filters.length > 0);
+    for (File filter : filters) {
+      assertTrue(filter.delete());
+    }
+    reopen();
+
+    assertEquals(filters.length, dir.listFiles((d, name) -> name.endsWith(".bloom")).length);
+    for (int i = 0; i < 100; i++) {
+      assertArrayEquals(value(0, i), dao.get("key" + i));
+    }
+    for (int i = 0; i < 1000; i++) {
+      try {
+        dao.get("absent" + i);
+        fail();
+      }
+      catch (IdNotFoundException e) {
+        // Expected
+      }
+    }
+    assertTrue(dao.filterFalsePositiveRate() < 0.05);
+  }
+
+  private static ByteBuffer wrap(String value) {
+    return ByteBuffer.wrap(value.getBytes());
+  }
+
+  private static byte[] value(int round, int i) {
+    return ("value-" + round + "-" + i + "-padding-to-fill-memtable").getBytes();
+  }
+
+  private void reopen() throws IOException {
+    dao.close();
+    dao = new LsmDao(dir, MEMTABLE_SIZE, GroupCommit.Mode.BATCH, 0);
+  }
+}
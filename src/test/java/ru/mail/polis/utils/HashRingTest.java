@@ -0,0 +1,64 @@
+package ru.mail.polis.utils;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class HashRingTest {
+
+  private static final int KEYS = 30_000;
+  private static final List<String> NODES = Arrays.asList("http://localhost:8080", "http://localhost:8081", "http://localhost:8082");
+
+  @Test
+  public void preferenceListHasDistinctNodes() {
+    HashRing ring = new HashRing(NODES);
+    for (int i = 0; i < 1000; i++) {
+      List<String> nodes = ring.nodesFor("key" + i, 3);
+      assertEquals(3, nodes.size());
+      assertEquals(3, new HashSet<>(nodes).size());
+      assertEquals(nodes.subList(0, 2), ring.nodesFor("key" + i, 2));
+    }
+    assertEquals(3, ring.nodesFor("key", 5).size());
+  }
+
+  @Test
+  public void sameRingRegardlessOfOrder() {
+    HashRing ring = new HashRing(NODES);
+    HashRing reversed = new HashRing(Arrays.asList(NODES.get(2), NODES.get(1), NODES.get(0)));
+    for (int i = 0; i < 1000; i++) {
+      assertEquals(ring.nodesFor("key" + i, 2), reversed.nodesFor("key" + i, 2));
+    }
+  }
+
+  @Test
+  public void spreadKeysEvenly() {
+    HashRing ring = new HashRing(NODES);
+    Map<String, Integer> owned = new HashMap<>();
+    for (int i = 0; i < KEYS; i++) {
+      owned.merge(ring.nodesFor("key" + i, 1).get(0), 1, Integer::sum);
+    }
+    for (String node : NODES) {
+      int share = owned.getOrDefault(node, 0);
+      assertTrue(node + " owns " + share, Math.abs(share - KEYS / NODES.size()) < KEYS / NODES.size() / 5);
+    }
+  }
+
+  @Test
+  public void addingNodeMovesFewKeys() {
+    HashRing ring = new HashRing(NODES);
+    HashRing grown = new HashRing(Arrays.asList(NODES.get(0), NODES.get(1), NODES.get(2), "http://localhost:8083"));
+    int moved = 0;
+    for (int i = 0; i < KEYS; i++) {
+      if (!ring.nodesFor("key" + i, 1).equals(grown.nodesFor("key" + i, 1))) {
+        moved++;
+      }
+    }
+    assertTrue("Moved " + moved, moved < KEYS / 4 * 1.2);
+  }
+}
@@ -0,0 +1,38 @@
+package ru.mail.polis.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class HybridClockTest {
+
+  @Test
+  public void increaseWithinMillisecond() {
+    long previous = HybridClock.now();
+    for (int i = 0; i < 10000; i++) {
+      long timestamp = HybridClock.now();
+      assertTrue(timestamp > previous);
+      previous = timestamp;
+    }
+  }
+
+  @Test
+  public void moveAfterRemoteTimestamp() {
+    // Another node a second ahead
+    long millis = System.currentTimeMillis() + 1000;
+    long remote = HybridClock.fromMillis(millis) + 5;
+    HybridClock.update(remote);
+    assertTrue(HybridClock.now() > remote);
+    assertEquals(millis, HybridClock.toMillis(remote));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectFarAheadTimestamp() {
+    HybridClock.update(HybridClock.fromMillis(System.currentTimeMillis() + 2 * HybridClock.MAX_DRIFT_MILLIS));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectNegativeTimestamp() {
+    HybridClock.update(-1);
+  }
+}
@@ -52,4 +52,11 @@ public class QueryParamsTest {
   public void replicasValuesShouldNotBeAbsent() throws Exception {
     extractQuery("id=77&replicas=");
   }
-}
\ No newline at end of file
+
+  @Test
+  public void extractReplicasWithoutId() {
+    assertEquals(new Replicas(2, 3), extractReplicas("replicas=2/3"));
+    assertNull(extractReplicas(null));
+    assertNull(extractReplicas("start=a"));
+  }
+}